@@ -5,6 +5,7 @@ public class Constants {
     public static final byte RRQ = 1;
     public static final byte WRQ = 2;
     public static final byte DATA = 3;
+    public static final byte ACK = 4;
     public static final byte ERROR = 5;
 
     // Constants
@@ -14,6 +15,13 @@ public class Constants {
     public static final String INCOMING = "incoming/";
     public static final String OUTGOING = "outgoing/";
 
+    // Block number after 65535 on the wire, 0 or 1; client and server must agree
+    public static final int ROLLOVER = Integer.getInteger("tftp.rollover", 0);
+
+    // "octet" sends files as they are, "netascii" translates line ends (RFC 764)
+    public static final String MODE = System.getProperty("tftp.mode", "octet");
+    public static final String MODE_NETASCII = "netascii";
+
     // Handshake
     public static final String HANDSHAKE_MESSAGE = "CONNECT";
     public static final int HANDSHAKE_LEN = 7;
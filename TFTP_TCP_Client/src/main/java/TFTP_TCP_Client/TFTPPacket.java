@@ -44,20 +44,23 @@ public class TFTPPacket {
     }
 
     /**
-     * Creates a base packet for either a read or write request.
+     * Creates a base packet for either a read or write request, carrying the filename
+     * and the transfer mode, each ended by a null byte.
      *
      * @param opcode The operation code.
      * @param filename The name of the file.
      * @return A byte array of the request packet.
      */
     public byte[] basePacket(byte opcode, String filename) {
-        byte[] request = new byte[(filename.getBytes()).length + 4];
+        byte[] name = filename.getBytes();
+        byte[] mode = Constants.MODE.getBytes();
+        byte[] request = new byte[name.length + mode.length + 4];
         request[1] = opcode;
 
         request[0] = 0;
-        System.arraycopy(filename.getBytes(), 0, request, 2, (filename.getBytes()).length);
-
-        request[request.length - 2] = 0;
+        System.arraycopy(name, 0, request, 2, name.length);
+        request[name.length + 2] = 0;
+        System.arraycopy(mode, 0, request, name.length + 3, mode.length);
         request[request.length - 1] = 0;
         return request;
     }
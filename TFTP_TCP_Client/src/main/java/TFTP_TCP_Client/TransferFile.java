@@ -28,7 +28,7 @@ public class TransferFile {
             }
 
             if (operation.getType() == TransferType.UPLOAD) {
-                return uploadFile(out, operation.getFilename());
+                return uploadFile(connection, out, in, operation.getFilename());
             } else {
                 return downloadFile(out, in, operation.getFilename());
             }
@@ -86,14 +86,19 @@ public class TransferFile {
     }
 
     /**
-     * Handles the process of uploading a file to the server.
+     * Handles the process of uploading a file to the server. The last block is ended by
+     * closing the sending side of the connection, and the upload only counts as done once the
+     * server acknowledges it on the other side, which it does after the file is safely on disk.
+     * Under -Dtftp.mode=netascii line ends are translated as the file is read.
      *
+     * @param connection The connection to the server.
      * @param outputStream The output stream to send data.
+     * @param inputStream The input stream to receive the server's acknowledgment.
      * @param filename The name of the file.
      * @return true if the upload was a success, false otherwise.
      * @throws IOException If an IO error occurs.
      */
-    private boolean uploadFile(DataOutputStream outputStream, String filename) throws IOException {
+    private boolean uploadFile(Socket connection, DataOutputStream outputStream, DataInputStream inputStream, String filename) throws IOException {
         Path sourcePath = Paths.get(Constants.OUTGOING + filename);
 
         TFTPPacket packetBuilder = new TFTPPacket();
@@ -101,15 +106,20 @@ public class TransferFile {
         outputStream.flush();
 
         try (FileInputStream fileStream = new FileInputStream(sourcePath.toString())) {
-            int blockNumber = 1;
+            InputStream source = Constants.MODE_NETASCII.equals(Constants.MODE) ? new NetasciiInputStream(fileStream) : fileStream;
+            long blockNumber = 1;
             byte[] buffer = new byte[Constants.LEN];
             int read;
 
-            while ((read = fileStream.read(buffer)) != -1) {
+            // A file that ends on a block boundary is finished with an empty block
+            do {
+                read = readBlock(source, buffer);
                 sendDataBlock(outputStream, packetBuilder, blockNumber, buffer, read);
                 blockNumber++;
-            }
+            } while (read == Constants.LEN);
 
+            connection.shutdownOutput();
+            awaitAck(inputStream, blockNumber - 1);
             return true;
         } catch (IOException e) {
             System.out.println("Error: " + e.getMessage());
@@ -117,25 +127,55 @@ public class TransferFile {
         }
     }
 
+    /**
+     * Waits for the server to acknowledge the last block of an upload.
+     *
+     * @param inputStream The stream to read the reply from.
+     * @param lastBlock The sequence number of the last block sent.
+     * @throws IOException If the server reports an error, closes the connection, or acknowledges the wrong block.
+     */
+    private void awaitAck(DataInputStream inputStream, long lastBlock) throws IOException {
+        byte[] headerBytes = new byte[4];
+        try {
+            inputStream.readFully(headerBytes);
+        } catch (EOFException e) {
+            throw new IOException("Upload not confirmed by server");
+        }
+
+        if (headerBytes[1] == Constants.ERROR) {
+            ByteArrayOutputStream errorMessage = new ByteArrayOutputStream();
+            int nextByte;
+            while ((nextByte = inputStream.read()) != 0 && nextByte != -1) {
+                errorMessage.write(nextByte);
+            }
+            throw new IOException(new String(errorMessage.toByteArray()));
+        }
+
+        short blockNum = (short) (((headerBytes[2] & 0xFF) << 8) | (headerBytes[3] & 0xFF));
+        if (headerBytes[0] != 0 || headerBytes[1] != Constants.ACK || blockNum != BlockSequence.toWire(lastBlock, Constants.ROLLOVER)) {
+            throw new IOException("Packet Format Invalid");
+        }
+    }
+
     /**
      * Sends data to the server during a file transfer.
      *
      * @param outputStream The output stream to send the data.
      * @param packet The object used to build the packet.
-     * @param blockNum The block number.
+     * @param blockNum The block's sequence number, sent as its 16-bit wire number.
      * @param data The data to send.
      * @param size The size of the data being sent.
      * @throws IOException If an IO error occurs while sending packet.
      */
-    private void sendDataBlock(DataOutputStream outputStream, TFTPPacket packet, int blockNum, byte[] data, int size) throws IOException {
-        byte[] p = packet.dataPacket(blockNum, data, size);
+    private void sendDataBlock(DataOutputStream outputStream, TFTPPacket packet, long blockNum, byte[] data, int size) throws IOException {
+        byte[] p = packet.dataPacket(BlockSequence.toWire(blockNum, Constants.ROLLOVER), data, size);
         outputStream.write(p);
         outputStream.flush();
     }
 
     /**
      * Handles the process of downloading a file from the server by sending a read request to the server
-     * and getting the data in blocks.
+     * and getting the data in blocks. Under -Dtftp.mode=netascii line ends are translated back as they are written.
      *
      * @param outputStream The stream to send data to the server.
      * @param inputStream Input stream to receive the file data from server.
@@ -156,15 +196,16 @@ public class TransferFile {
         Path destinationPath = Paths.get(Constants.INCOMING + filename);
         boolean transferSuccessful = false;
 
-        try (FileOutputStream fileOutputStream = new FileOutputStream(destinationPath.toString())) {
-            short expectedBlockNumber = 1;
+        try (FileOutputStream fileStream = new FileOutputStream(destinationPath.toString());
+             OutputStream fileOutputStream = Constants.MODE_NETASCII.equals(Constants.MODE) ? new NetasciiOutputStream(fileStream) : fileStream) {
+            long expectedBlockNumber = 1;
             boolean transferComplete = false;
 
             while (!transferComplete) {
                 byte[] headerBytes = new byte[4];
-                int headerSize = inputStream.read(headerBytes, 0, 4);
-
-                if (headerSize != 4) {
+                try {
+                    inputStream.readFully(headerBytes);
+                } catch (EOFException e) {
                     throw new IOException("Invalid Header");
                 }
 
@@ -183,9 +224,9 @@ public class TransferFile {
 
                 short blockNum = (short) (((headerBytes[2] & 0xFF) << 8) | (headerBytes[3] & 0xFF));
 
-                if (blockNum == expectedBlockNumber) {
+                if (blockNum == BlockSequence.toWire(expectedBlockNumber, Constants.ROLLOVER)) {
                     byte[] dataBuffer = new byte[Constants.LEN];
-                    int bytesReceived = inputStream.read(dataBuffer, 0, Constants.LEN);
+                    int bytesReceived = readBlock(inputStream, dataBuffer);
 
                     if (bytesReceived > 0) {
                         fileOutputStream.write(dataBuffer, 0, bytesReceived);
@@ -214,4 +255,25 @@ public class TransferFile {
         }
         return transferSuccessful;
     }
+
+    /**
+     * Reads one block of data, which is a full block unless the stream ends first.
+     * A single read may return only part of a block, so it is repeated until the block is full.
+     *
+     * @param in The stream to read from.
+     * @param buf The buffer to fill, one block long.
+     * @return The number of bytes read, less than the buffer's length only at the end of the stream.
+     * @throws IOException If an IO error occurs while reading.
+     */
+    private int readBlock(InputStream in, byte[] buf) throws IOException {
+        int total = 0;
+        while (total < buf.length) {
+            int read = in.read(buf, total, buf.length - total);
+            if (read == -1) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
 }
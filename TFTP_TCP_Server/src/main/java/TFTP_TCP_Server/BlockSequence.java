@@ -0,0 +1,23 @@
+package TFTP_TCP_Server;
+
+public class BlockSequence {
+    // Block numbers 1 to 65535 when the wire number rolls over to 1
+    private static final int CYCLE_FROM_ONE = 0xFFFF;
+
+    /**
+     * Gets the 16-bit block number sent on the wire for a block.
+     * Transfers count blocks with 64-bit sequence numbers, so files larger than 65535
+     * blocks keep going; only the number in the packet wraps. After 65535 it becomes 0,
+     * or 1 with -Dtftp.rollover=1. Both ends must be set the same way.
+     *
+     * @param seq The block's sequence number, counted from 1.
+     * @param rollover The wire number following 65535, 0 or 1.
+     * @return The block number to put in the packet.
+     */
+    public static short toWire(long seq, int rollover) {
+        if (rollover == 1 && seq > 0) {
+            return (short) ((seq - 1) % CYCLE_FROM_ONE + 1);
+        }
+        return (short) seq;
+    }
+}
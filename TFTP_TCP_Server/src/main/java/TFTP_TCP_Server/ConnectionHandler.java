@@ -8,8 +8,13 @@ import java.nio.file.Paths;
 
 public class ConnectionHandler {
     private final Socket connectedSocket;
+    private final Metrics metrics = Metrics.shared();
     private DataInputStream inputStream;
     private DataOutputStream outputStream;
+    private Log.Access access;
+    private Traffic.Flow flow;
+    private IdleReaper.Watch idle;
+    private Recorder.Connection trace;
 
     public ConnectionHandler(Socket socket) {
         this.connectedSocket = socket;
@@ -17,8 +22,14 @@ public class ConnectionHandler {
 
     /**
      * Processes the client session including handshake, reply, and request.
+     * A client that stops making progress is cut off by the idle reaper.
+     * A connection whose transfer fails has its recorded messages dumped, see Recorder.
      */
     public void process() {
+        long startedAt = metrics.sessionStarted();
+        flow = Traffic.shared().flow(connectedSocket.getInetAddress());
+        idle = IdleReaper.shared().watch(connectedSocket);
+        trace = Recorder.shared().connection(connectedSocket);
         try {
             inputStream = new DataInputStream(connectedSocket.getInputStream());
             outputStream = new DataOutputStream(connectedSocket.getOutputStream());
@@ -28,15 +39,27 @@ public class ConnectionHandler {
             handleRequest();
 
         } catch (IOException err) {
-            System.err.println("Client Error: " + err.getMessage());
+            String reason = idle.isReaped() ? "Idle timeout" : err.getMessage();
+            Log.shared().error("Client Error", reason);
+            if (access != null) {
+                access.setOutcome(reason);
+            }
         } finally {
+            idle.close();
             try {
                 if (inputStream != null) inputStream.close();
                 if (outputStream != null) outputStream.close();
                 connectedSocket.close();
-                System.out.println("Client Disconnected");
             } catch (IOException e) {
-                System.err.println("Error: " + e.getMessage());
+                Log.shared().error("Error", e.getMessage());
+            }
+            metrics.sessionEnded(startedAt);
+            Traffic.shared().release(connectedSocket.getInetAddress());
+            if (access != null) {
+                if (!access.isOk()) {
+                    trace.failed();
+                }
+                access.end();
             }
         }
     }
@@ -47,8 +70,10 @@ public class ConnectionHandler {
      * @throws IOException If an IO error occurs while sending the message.
      */
     private void replyHandshake() throws IOException {
-        outputStream.write(Constants.HANDSHAKE_MESSAGE.getBytes());
+        byte[] msg = Constants.HANDSHAKE_MESSAGE.getBytes();
+        outputStream.write(msg);
         outputStream.flush();
+        trace.sent(msg, 0, msg.length);
     }
 
     /**
@@ -59,6 +84,7 @@ public class ConnectionHandler {
     private void checkHandshake() throws IOException {
         byte[] buf = new byte[Constants.HANDSHAKE_LEN];
         int readBytes = inputStream.read(buf);
+        trace.received(buf, 0, readBytes);
 
         if (readBytes != Constants.HANDSHAKE_LEN) {
             throw new IOException("Invalid Handshake!");
@@ -79,6 +105,7 @@ public class ConnectionHandler {
     private void handleRequest() throws IOException {
         byte[] reqType = new byte[2];
         int readBytes = inputStream.read(reqType, 0, 2);
+        trace.received(reqType, 0, readBytes);
 
         if (readBytes != 2) {
             throw new IOException("Invalid Header");
@@ -100,34 +127,47 @@ public class ConnectionHandler {
 
     /**
      * Handles an upload request from the client by receiving and saving data.
+     * Blocks are written behind on the disk threads while the next ones are read, see
+     * WriteBehind; a failed write, such as on a full disk, ends the upload with an error.
+     * Once the last block is in, the file is synced together with any other uploads
+     * finishing at the same time, and only then is the upload confirmed with an ACK
+     * for the last block; a client that sees the ACK can count on the file surviving a crash.
+     * In netascii mode line ends are translated back as the data is written.
      *
      * @throws IOException If there is an issue during uploading file or IO error.
      */
     private void handleUpload() throws IOException {
-        String fname = FileUtils.readNullString(inputStream);
+        String fname = readString();
         if (fname == null || fname.isEmpty()) {
             sendError("Invalid filename in request");
             return;
         }
 
-        FileUtils.readNullString(inputStream);
+        boolean netascii = Constants.MODE_NETASCII.equalsIgnoreCase(readString());
 
         fname = new File(fname).getName();
         Path fpath = Paths.get(Constants.FILE_STORE, fname);
 
-        System.out.println("Processing Upload: " + fname);
+        access = Log.shared().access("WRQ", fname, connectedSocket.getInetAddress(), connectedSocket.getPort());
 
+        long nxtBlock = 1;
+        boolean durable = false;
+        WriteBehind behind = null;
         try (FileOutputStream fos = new FileOutputStream(fpath.toString())) {
-            short nxtBlock = 1;
+            NetasciiOutputStream ascii = netascii ? new NetasciiOutputStream(fos) : null;
+            OutputStream sink = ascii != null ? ascii : fos;
+            behind = Constants.WRITE_BEHIND > 0 ? new WriteBehind(sink, Constants.LEN, Constants.WRITE_BEHIND) : null;
+            byte[] buf = new byte[Constants.LEN];
             boolean done = false;
 
             while (!done) {
                 byte[] hdr = new byte[4];
-                int hdrSize = inputStream.read(hdr, 0, 4);
-
-                if (hdrSize != 4) {
+                try {
+                    inputStream.readFully(hdr);
+                } catch (EOFException e) {
                     throw new IOException("Incomplete Header");
                 }
+                trace.received(hdr, 0, hdr.length);
 
                 if (hdr[0] != 0 || hdr[1] != Constants.DATA) {
                     throw new IOException("Invalid Packet");
@@ -135,15 +175,19 @@ public class ConnectionHandler {
 
                 short blockId = (short) (((hdr[2] & 0xFF) << 8) | (hdr[3] & 0xFF));
 
-                if (blockId == nxtBlock) {
-                    byte[] buf = new byte[Constants.LEN];
-                    int dataLen = 0;
-                    int bytesRead = inputStream.read(buf, 0, Constants.LEN);
+                if (blockId == BlockSequence.toWire(nxtBlock, Constants.ROLLOVER)) {
+                    int dataLen = FileUtils.readBlock(inputStream, buf);
+                    trace.received(buf, 0, dataLen);
+                    idle.touch();
+                    Traffic.pause(flow.receive(dataLen + 4));
 
-                    if (bytesRead > 0) {
-                        dataLen = bytesRead;
-                        fos.write(buf, 0, dataLen);
+                    if (dataLen > 0 && behind != null) {
+                        behind.write(buf, 0, dataLen);
+                    } else if (dataLen > 0) {
+                        sink.write(buf, 0, dataLen);
                     }
+                    metrics.blockReceived(dataLen + 4);
+                    access.addBytes(dataLen);
 
                     nxtBlock++;
 
@@ -155,81 +199,125 @@ public class ConnectionHandler {
                 }
             }
 
-            System.out.println("Uploaded File Successfully: " + fname);
+            if (behind != null) {
+                behind.flush();
+            }
+            if (ascii != null) {
+                ascii.finish();
+            }
+            GroupCommit.shared().commit(fos.getChannel(), fpath.toAbsolutePath().getParent(), null);
+            durable = true;
+            access.setOutcome("ok");
 
         } catch (IOException err) {
-            System.err.println("Upload Error: " + err.getMessage());
-            sendError("Upload Error: " + err.getMessage());
+            if (behind != null) {
+                behind.close();
+            }
+            access.setOutcome(err.getMessage());
+            // Before the ERROR, which fails on a reaped connection
             Files.deleteIfExists(fpath);
+            sendError("Upload Error: " + err.getMessage());
+        } finally {
+            FileIndex.shared().refresh(fname);
+        }
+
+        if (durable) {
+            sendAck(BlockSequence.toWire(nxtBlock - 1, Constants.ROLLOVER));
         }
     }
 
     /**
      * Handles a download request from the client by sending the data.
+     * Missing files are turned away by the file index without touching the disk.
+     * In netascii mode line ends are translated as the file is read.
      *
      * @throws IOException If there is an issue during file download or an IO error.
      */
     private void handleDownload() throws IOException {
-        String fname = FileUtils.readNullString(inputStream);
+        String fname = readString();
         if (fname == null || fname.isEmpty()) {
             sendError("Invalid filename in request");
             return;
         }
 
-        FileUtils.readNullString(inputStream);
+        boolean netascii = Constants.MODE_NETASCII.equalsIgnoreCase(readString());
 
         fname = new File(fname).getName();
         Path fpath = Paths.get(Constants.FILE_STORE, fname);
 
-        System.out.println("Processing Download: " + fname);
+        access = Log.shared().access("RRQ", fname, connectedSocket.getInetAddress(), connectedSocket.getPort());
 
-        if (!Files.exists(fpath)) {
+        if (FileIndex.shared().lookup(fname) == null) {
+            access.setOutcome("File not found");
             sendError("File not found: " + fname);
             return;
         }
 
         try (FileInputStream fis = new FileInputStream(fpath.toString())) {
-            short blkId = 1;
+            InputStream source = netascii ? new NetasciiInputStream(fis) : fis;
+            long blkId = 1;
             byte[] buffer = new byte[Constants.LEN];
             int bytesRead;
 
-            while ((bytesRead = fis.read(buffer)) != -1) {
+            // A file that ends on a block boundary is finished with an empty block
+            do {
+                bytesRead = FileUtils.readBlock(source, buffer);
+                short wireId = BlockSequence.toWire(blkId, Constants.ROLLOVER);
                 byte[] dataPkt = new byte[bytesRead + 4];
                 dataPkt[1] = Constants.DATA;
-                dataPkt[2] = FileUtils.convertBlock(blkId, 2);
-                dataPkt[3] = FileUtils.convertBlock(blkId, 3);
+                dataPkt[2] = FileUtils.convertBlock(wireId, 2);
+                dataPkt[3] = FileUtils.convertBlock(wireId, 3);
 
                 dataPkt[0] = 0;
                 System.arraycopy(buffer, 0, dataPkt, 4, bytesRead);
 
+                Traffic.pause(flow.send(dataPkt.length));
                 outputStream.write(dataPkt);
                 outputStream.flush();
+                trace.sent(dataPkt, 0, dataPkt.length);
+                idle.touch();
+                metrics.blockSent(dataPkt.length);
+                access.addBytes(bytesRead);
 
                 blkId++;
+            } while (bytesRead == Constants.LEN);
 
-                if (bytesRead < Constants.LEN) {
-                    break;
-                }
-            }
-
-            if (bytesRead == Constants.LEN) {
-                byte[] endPkt = new byte[4];
-                endPkt[1] = Constants.DATA;
-                endPkt[2] = FileUtils.convertBlock(blkId, 2);
-                endPkt[3] = FileUtils.convertBlock(blkId, 3);
-
-                endPkt[0] = 0;
-                outputStream.write(endPkt);
-                outputStream.flush();
-            }
-
-            System.out.println("Downloaded File Successfully: " + fname);
+            access.setOutcome("ok");
 
         } catch (IOException e) {
+            access.setOutcome(e.getMessage());
             sendError("File download failed: " + e.getMessage());
         }
     }
 
+    /**
+     * Reads a null-terminated field of a request, recording it as read.
+     *
+     * @return The field.
+     * @throws IOException If the stream ends first or an IO error occurs.
+     */
+    private String readString() throws IOException {
+        String field = FileUtils.readNullString(inputStream);
+        if (Recorder.shared().isEnabled()) {
+            byte[] raw = (field + '\0').getBytes();
+            trace.received(raw, 0, raw.length);
+        }
+        return field;
+    }
+
+    /**
+     * Sends an ACK confirming that an upload is complete and durable.
+     *
+     * @param blockId The wire number of the last block.
+     * @throws IOException If an error occurs.
+     */
+    private void sendAck(short blockId) throws IOException {
+        byte[] ackPkt = {0, Constants.ACK, FileUtils.convertBlock(blockId, 2), FileUtils.convertBlock(blockId, 3)};
+        outputStream.write(ackPkt);
+        outputStream.flush();
+        trace.sent(ackPkt, 0, ackPkt.length);
+    }
+
     /**
      * Sends an error message to the client from a request failure.
      *
@@ -248,5 +336,7 @@ public class ConnectionHandler {
 
         outputStream.write(errPkt);
         outputStream.flush();
+        trace.sent(errPkt, 0, errPkt.length);
+        metrics.errorSent(errPkt.length);
     }
 }
\ No newline at end of file
@@ -5,14 +5,70 @@ public class Constants {
     public static final byte RRQ = 1;
     public static final byte WRQ = 2;
     public static final byte DATA = 3;
+    public static final byte ACK = 4;
     public static final byte ERROR = 5;
 
+    // Transfer modes; any other is sent as it is
+    public static final String MODE_NETASCII = "netascii";
+
     // Constants
     public static final int PORT = 1025;
     public static final int LEN = 512;
     public static final String FILE_STORE = "files/";
+    // File index, a watched listing of the file store
+    public static final boolean FILE_INDEX = Boolean.parseBoolean(System.getProperty("tftp.index", "true"));
+
+    // Block number after 65535 on the wire, 0 or 1; client and server must agree
+    public static final int ROLLOVER = Integer.getInteger("tftp.rollover", 0);
+
+    // Metrics snapshot, rewritten every interval in seconds; an empty name turns it off
+    public static final String METRICS_FILE = System.getProperty("tftp.metrics.file", "tftp-tcp-metrics.prom");
+    public static final int METRICS_INTERVAL = Integer.getInteger("tftp.metrics.interval", 10);
+
+    // Packet recorder: the last this many messages are kept for pcap dumps, 0 for off; each keeps at most snaplen bytes
+    public static final int PCAP_PACKETS = Integer.getInteger("tftp.pcap", 0);
+    public static final int PCAP_SNAPLEN = Integer.getInteger("tftp.pcap.snaplen", 96);
+    // Where dumps go, and the fewest milliseconds between dumps of failed connections, 0 for none
+    public static final String PCAP_DIR = System.getProperty("tftp.pcap.dir", ".");
+    public static final int PCAP_FAILURES = Integer.getInteger("tftp.pcap.failures", 10000);
+
+    // Logging, written out by a background thread; records that find the ring full are dropped
+    public static final int LOG_BUFFER = Integer.getInteger("tftp.log.buffer", 8192);
+    public static final boolean LOG_DEBUG = Boolean.parseBoolean(System.getProperty("tftp.log.debug", "false"));
+    public static final int LOG_DEBUG_RATE = Integer.getInteger("tftp.log.debug.rate", 20);
+    // Access log file, one line per transfer; empty writes it to the console
+    public static final String ACCESS_LOG = System.getProperty("tftp.log.access", "");
+
+    // Traffic shaping in bytes per second, 0 for no limit; these and the admission limits can be changed over JMX
+    public static final long SHAPE_GLOBAL = Long.getLong("tftp.shape.global", 0);
+    public static final long SHAPE_CLIENT = Long.getLong("tftp.shape.client", 0);
+    public static final long SHAPE_SUBNET = Long.getLong("tftp.shape.subnet", 0);
+    public static final long SHAPE_BURST = Long.getLong("tftp.shape.burst", 64 * 1024);
+    // IPv4 prefix length grouping clients into subnets; IPv6 clients are grouped by /64
+    public static final int SUBNET_PREFIX = Integer.getInteger("tftp.subnet.prefix", 24);
+    // Admission, 0 for no limit; a refused connection is closed straight away
+    public static final int ADMIT_SESSIONS = Integer.getInteger("tftp.admit.sessions", 0);
+    public static final int ADMIT_CLIENT = Integer.getInteger("tftp.admit.client", 0);
+    public static final int ADMIT_SUBNET = Integer.getInteger("tftp.admit.subnet", 0);
+
+    // Upload durability: "group" syncs uploads that finish together as one batch, "file" syncs each on its own, "none" never syncs
+    public static final String SYNC = System.getProperty("tftp.sync", "group");
+    // Microseconds a batch waits for more uploads, and the most it takes
+    public static final long SYNC_DELAY = Long.getLong("tftp.sync.delay", 0);
+    public static final int SYNC_BATCH = Integer.getInteger("tftp.sync.batch", 64);
+    // Upload write-behind, in blocks that can wait for the disk while the next are read (0 writes inline)
+    public static final int WRITE_BEHIND = Integer.getInteger("tftp.writebehind", 64);
+    public static final int DISK_THREADS = Integer.getInteger("tftp.disk.threads", 4);
+
+    // Milliseconds a connection may go without progress before it is closed, 0 for never; checked on a timing wheel of this many ticks
+    public static final int IDLE_TIMEOUT = Integer.getInteger("tftp.idle", 30000);
+    public static final int TIMER_TICK = Integer.getInteger("tftp.tick", 100);
+    public static final int TIMER_WHEEL = Integer.getInteger("tftp.wheel", 512);
 
     // Handshake
     public static final String HANDSHAKE_MESSAGE = "CONNECT";
     public static final int HANDSHAKE_LEN = 7;
+
+    // Threads: "virtual" runs each connection on its own virtual thread (Java 21+)
+    public static final String THREADS = System.getProperty("tftp.threads", "platform");
 }
@@ -0,0 +1,203 @@
+package TFTP_TCP_Server;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class FileIndex {
+    private static final FileIndex SHARED = open();
+
+    private final Path dir;
+    private final ConcurrentHashMap<String, Entry> files = new ConcurrentHashMap<>();
+    private volatile boolean watching;
+
+    /**
+     * Creates an empty index of a directory. It answers by asking the filesystem until it is started.
+     *
+     * @param dir The served directory.
+     */
+    public FileIndex(Path dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Gets the index of the served directory shared by all sessions, watched unless
+     * -Dtftp.index=false is set.
+     *
+     * @return The shared index.
+     */
+    public static FileIndex shared() {
+        return SHARED;
+    }
+
+    private static FileIndex open() {
+        FileIndex index = new FileIndex(Paths.get(Constants.FILE_STORE));
+        if (Constants.FILE_INDEX) {
+            index.start();
+        }
+        return index;
+    }
+
+    /**
+     * Fills the index from a listing of the directory and keeps it up to date from a
+     * WatchService on a daemon thread, so lookups never touch the filesystem.
+     * If the directory cannot be watched the index stays off and lookups ask the filesystem.
+     */
+    public void start() {
+        WatchService watcher;
+        try {
+            watcher = dir.getFileSystem().newWatchService();
+            dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            scan();
+        } catch (IOException e) {
+            Log.shared().error("File index disabled", e.getMessage());
+            return;
+        }
+
+        watching = true;
+        Thread thread = new Thread(() -> watch(watcher), "tftp-file-index");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Looks up a file in the served directory. While the directory is watched this is a
+     * map lookup, so requests for missing files are turned away without a system call.
+     * Only plain files directly inside the directory are indexed, so names with a path
+     * in them are not found.
+     *
+     * @param filename The requested name.
+     * @return The file's size and modification time, or null if there is no such file.
+     */
+    public Entry lookup(String filename) {
+        if (watching) {
+            return files.get(filename);
+        }
+        return stat(filename);
+    }
+
+    /**
+     * Updates the entry for a file straight away instead of waiting for the watcher,
+     * so a file is served as soon as an upload has finished.
+     *
+     * @param filename The name of the file in the served directory.
+     */
+    public void refresh(String filename) {
+        Path name = dir.getFileSystem().getPath(filename);
+        if (watching && !name.isAbsolute() && name.getNameCount() == 1) {
+            update(filename);
+        }
+    }
+
+    /**
+     * Takes events from the watcher for as long as the directory exists.
+     * When events were lost the whole directory is listed again.
+     *
+     * @param watcher The watcher the directory is registered with.
+     */
+    private void watch(WatchService watcher) {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    rescan();
+                } else {
+                    update(event.context().toString());
+                }
+            }
+
+            if (!key.reset()) {
+                break;
+            }
+        }
+        // The directory is gone or no longer watched, so lookups go back to the filesystem
+        watching = false;
+        Log.shared().info("File index stopped watching", dir);
+    }
+
+    private void scan() throws IOException {
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            for (Path path : entries) {
+                update(path.getFileName().toString());
+            }
+        }
+    }
+
+    private void rescan() {
+        Set<String> seen = new HashSet<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            for (Path path : entries) {
+                String name = path.getFileName().toString();
+                seen.add(name);
+                update(name);
+            }
+        } catch (IOException e) {
+            Log.shared().error("File index rescan failed", e.getMessage());
+            return;
+        }
+        files.keySet().retainAll(seen);
+    }
+
+    private void update(String filename) {
+        Entry entry = stat(filename);
+        if (entry != null) {
+            files.put(filename, entry);
+        } else {
+            files.remove(filename);
+        }
+    }
+
+    private Entry stat(String filename) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(dir.resolve(filename), BasicFileAttributes.class);
+            return attrs.isRegularFile() ? new Entry(attrs.size(), attrs.lastModifiedTime().toMillis()) : null;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    // What the index knows about a file
+    public static final class Entry {
+        private final long size;
+        private final long modified;
+
+        Entry(long size, long modified) {
+            this.size = size;
+            this.modified = modified;
+        }
+
+        /**
+         * Gets the size of the file.
+         *
+         * @return The size in bytes.
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Gets the time the file was last modified.
+         *
+         * @return The modification time in milliseconds since the epoch.
+         */
+        public long getModified() {
+            return modified;
+        }
+    }
+}
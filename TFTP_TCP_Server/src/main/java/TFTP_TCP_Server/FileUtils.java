@@ -22,6 +22,28 @@ public class FileUtils {
         return buf.toString();
     }
 
+    /**
+     * Reads the data of one block, which is a full block unless the stream ends first.
+     * A single read may return only part of what was sent, so a short read does not
+     * by itself mean the final block.
+     *
+     * @param in The stream to read from.
+     * @param buf The buffer to fill, one block long.
+     * @return The number of bytes read, less than the buffer's length only at the end of the stream.
+     * @throws IOException If an error occurs while reading.
+     */
+    public static int readBlock(InputStream in, byte[] buf) throws IOException {
+        int total = 0;
+        while (total < buf.length) {
+            int read = in.read(buf, total, buf.length - total);
+            if (read == -1) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
     /**
      * Converts a block number to a high of low byte.
      *
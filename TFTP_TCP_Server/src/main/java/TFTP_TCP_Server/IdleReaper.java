@@ -0,0 +1,131 @@
+package TFTP_TCP_Server;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+public class IdleReaper {
+    private static final IdleReaper SHARED = new IdleReaper();
+
+    private final long idleNanos = Constants.IDLE_TIMEOUT * 1_000_000L;
+    private final long tickNanos = Math.max(1, Constants.TIMER_TICK) * 1_000_000L;
+    private final TimerWheel wheel = new TimerWheel(tickNanos, Constants.TIMER_WHEEL);
+    // Connections opened since the last tick, put on the wheel by the reaper's thread
+    private final Queue<Watch> added = new ConcurrentLinkedQueue<>();
+
+    private IdleReaper() {
+        if (idleNanos > 0) {
+            Thread thread = new Thread(this::run, "tftp-reaper");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Gets the reaper shared by every connection.
+     *
+     * @return The shared reaper.
+     */
+    public static IdleReaper shared() {
+        return SHARED;
+    }
+
+    /**
+     * Starts watching a connection. A connection that makes no progress for
+     * -Dtftp.idle milliseconds has its socket closed, which ends a read or write it is
+     * blocked in, so a dead or stalled client cannot hold its thread for ever.
+     * Every connection's deadline sits on one hashed timing wheel run by the reaper's
+     * thread. Progress only records the time, without a lock; when the timeout comes up
+     * the reaper moves it on to the real deadline, so a busy connection costs one wheel
+     * operation per idle period rather than one per block.
+     *
+     * @param socket The connection's socket.
+     * @return The watch, to be touched on progress and closed when the connection ends.
+     */
+    public Watch watch(Socket socket) {
+        Watch watch = new Watch(socket);
+        if (idleNanos > 0) {
+            added.add(watch);
+        }
+        return watch;
+    }
+
+    /**
+     * Puts new connections on the wheel and fires the timeouts that are due, once per tick.
+     */
+    private void run() {
+        while (true) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(tickNanos);
+            } catch (InterruptedException e) {
+                // Carry on with the next tick
+            }
+            Watch watch;
+            while ((watch = added.poll()) != null) {
+                if (!watch.closed) {
+                    wheel.schedule(watch.timeout, watch.active + idleNanos);
+                }
+            }
+            wheel.advance(System.nanoTime());
+        }
+    }
+
+    // A connection's last sign of life and its idle timeout on the wheel
+    public class Watch {
+        private final Socket socket;
+        private final TimerWheel.Timeout timeout = new TimerWheel.Timeout(this::check);
+        private volatile long active = System.nanoTime();
+        private volatile boolean closed;
+        private volatile boolean reaped;
+
+        private Watch(Socket socket) {
+            this.socket = socket;
+        }
+
+        /**
+         * Records progress on the connection, which moves its idle deadline on.
+         */
+        public void touch() {
+            active = System.nanoTime();
+        }
+
+        /**
+         * Checks whether the connection was closed for being idle.
+         *
+         * @return true if the reaper closed the socket.
+         */
+        public boolean isReaped() {
+            return reaped;
+        }
+
+        /**
+         * Stops watching the connection. Its timeout is dropped from the wheel when it next comes up.
+         */
+        public void close() {
+            closed = true;
+        }
+
+        /**
+         * Runs on the reaper's thread when the timeout comes up: moves it on to the real
+         * deadline if the connection has made progress since, or closes the socket if not.
+         */
+        private void check() {
+            if (closed) {
+                return;
+            }
+            long deadline = active + idleNanos;
+            if (System.nanoTime() - deadline < 0) {
+                wheel.schedule(timeout, deadline);
+                return;
+            }
+            reaped = true;
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // The connection is going away either way
+            }
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package TFTP_TCP_Server;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+public class Metrics implements MetricsMBean {
+    private static final Metrics SHARED = new Metrics();
+
+    private final LongAdder sessionsStarted = new LongAdder();
+    private final LongAdder sessionsActive = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder blocksSent = new LongAdder();
+    private final LongAdder blocksReceived = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder syncBatches = new LongAdder();
+    private final LongAdder syncedFiles = new LongAdder();
+    private final LongAdder writeStalls = new LongAdder();
+    private final Histogram sessionTime = new Histogram();
+    private final Histogram syncTime = new Histogram();
+
+    // Rates over the last reporting interval, updated by the reporter thread
+    private long lastSent;
+    private long lastReceived;
+    private long lastAt = System.nanoTime();
+    private volatile double sendRate;
+    private volatile double receiveRate;
+
+    /**
+     * Gets the metrics shared by every connection.
+     *
+     * @return The shared metrics.
+     */
+    public static Metrics shared() {
+        return SHARED;
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server and starts writing a snapshot
+     * to -Dtftp.metrics.file every -Dtftp.metrics.interval seconds. An empty file name
+     * turns the snapshot off.
+     */
+    public void start() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("TFTP_TCP_Server:type=Metrics"));
+        } catch (JMException e) {
+            Log.shared().error("Metrics not registered with JMX", e.getMessage());
+        }
+
+        Path file = Constants.METRICS_FILE.isEmpty() ? null : Paths.get(Constants.METRICS_FILE);
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "tftp-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        int interval = Math.max(1, Constants.METRICS_INTERVAL);
+        reporter.scheduleAtFixedRate(() -> report(file), interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Counts a connection starting.
+     *
+     * @return The start time, to hand back to sessionEnded.
+     */
+    public long sessionStarted() {
+        sessionsStarted.increment();
+        sessionsActive.increment();
+        return System.nanoTime();
+    }
+
+    /**
+     * Counts a connection ending and records how long it ran.
+     *
+     * @param startedAt The time returned by sessionStarted.
+     */
+    public void sessionEnded(long startedAt) {
+        sessionsActive.decrement();
+        sessionTime.record((System.nanoTime() - startedAt) / 1_000_000L);
+    }
+
+    /**
+     * Counts a DATA block written to a client.
+     *
+     * @param bytes The length of the block with its header.
+     */
+    public void blockSent(int bytes) {
+        blocksSent.increment();
+        bytesSent.add(bytes);
+    }
+
+    /**
+     * Counts a DATA block read from a client.
+     *
+     * @param bytes The length of the block with its header.
+     */
+    public void blockReceived(int bytes) {
+        blocksReceived.increment();
+        bytesReceived.add(bytes);
+    }
+
+    /**
+     * Counts an ERROR written to a client.
+     *
+     * @param bytes The length of the ERROR packet.
+     */
+    public void errorSent(int bytes) {
+        errors.increment();
+        bytesSent.add(bytes);
+    }
+
+    /**
+     * Counts a batch of uploads made durable together and records how long it took.
+     *
+     * @param files The uploads in the batch.
+     * @param nanos The time spent syncing them.
+     */
+    public void syncBatch(int files, long nanos) {
+        syncBatches.increment();
+        syncedFiles.add(files);
+        syncTime.record(nanos / 1000L);
+    }
+
+    /**
+     * Counts an upload that had to wait for the disk because its write-behind queue was full.
+     */
+    public void writeStall() {
+        writeStalls.increment();
+    }
+
+    /**
+     * Updates the rates and writes the snapshot file, if there is one.
+     * The file is written next to its final name and moved over it, so a reader never sees half of it.
+     *
+     * @param file The snapshot file, or null for none.
+     */
+    private void report(Path file) {
+        long now = System.nanoTime();
+        long sent = bytesSent.sum();
+        long received = bytesReceived.sum();
+        double seconds = (now - lastAt) / 1e9;
+        sendRate = (sent - lastSent) / seconds;
+        receiveRate = (received - lastReceived) / seconds;
+        lastSent = sent;
+        lastReceived = received;
+        lastAt = now;
+
+        if (file == null) {
+            return;
+        }
+        try {
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.write(temp, snapshot().getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Log.shared().error("Metrics snapshot failed", e.getMessage());
+        }
+    }
+
+    /**
+     * Formats the metrics in the Prometheus text format.
+     *
+     * @return The snapshot.
+     */
+    public String snapshot() {
+        StringWriter text = new StringWriter();
+        PrintWriter out = new PrintWriter(text);
+        out.println("tftp_sessions_active " + getActiveSessions());
+        out.println("tftp_sessions_total " + getSessionsStarted());
+        out.println("tftp_bytes_total{direction=\"sent\"} " + getBytesSent());
+        out.println("tftp_bytes_total{direction=\"received\"} " + getBytesReceived());
+        out.printf("tftp_bytes_per_second{direction=\"sent\"} %.1f%n", getBytesSentPerSecond());
+        out.printf("tftp_bytes_per_second{direction=\"received\"} %.1f%n", getBytesReceivedPerSecond());
+        out.println("tftp_blocks_total{direction=\"sent\"} " + getBlocksSent());
+        out.println("tftp_blocks_total{direction=\"received\"} " + getBlocksReceived());
+        out.println("tftp_errors_total " + getErrors());
+        out.println("tftp_sync_batches_total " + getSyncBatches());
+        out.println("tftp_synced_files_total " + getSyncedFiles());
+        out.println("tftp_write_stalls_total " + getWriteStalls());
+        summary(out, "tftp_session_milliseconds", sessionTime);
+        summary(out, "tftp_sync_microseconds", syncTime);
+        out.flush();
+        return text.toString();
+    }
+
+    private static void summary(PrintWriter out, String name, Histogram histogram) {
+        for (double q : new double[] {0.5, 0.9, 0.99, 0.999}) {
+            out.println(name + "{quantile=\"" + q + "\"} " + histogram.percentile(q * 100));
+        }
+        out.println(name + "_max " + histogram.getMax());
+        out.println(name + "_sum " + histogram.getSum());
+        out.println(name + "_count " + histogram.getCount());
+    }
+
+    @Override
+    public long getActiveSessions() {
+        return sessionsActive.sum();
+    }
+
+    @Override
+    public long getSessionsStarted() {
+        return sessionsStarted.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public double getBytesSentPerSecond() {
+        return sendRate;
+    }
+
+    @Override
+    public double getBytesReceivedPerSecond() {
+        return receiveRate;
+    }
+
+    @Override
+    public long getBlocksSent() {
+        return blocksSent.sum();
+    }
+
+    @Override
+    public long getBlocksReceived() {
+        return blocksReceived.sum();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    @Override
+    public long getSyncBatches() {
+        return syncBatches.sum();
+    }
+
+    @Override
+    public long getSyncedFiles() {
+        return syncedFiles.sum();
+    }
+
+    @Override
+    public long getWriteStalls() {
+        return writeStalls.sum();
+    }
+
+    @Override
+    public long getSessionP50Millis() {
+        return sessionTime.percentile(50);
+    }
+
+    @Override
+    public long getSessionP99Millis() {
+        return sessionTime.percentile(99);
+    }
+
+    @Override
+    public long getSessionMaxMillis() {
+        return sessionTime.getMax();
+    }
+}
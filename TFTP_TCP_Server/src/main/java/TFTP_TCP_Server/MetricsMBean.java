@@ -0,0 +1,34 @@
+package TFTP_TCP_Server;
+
+// What JMX sees of Metrics, registered as TFTP_TCP_Server:type=Metrics
+public interface MetricsMBean {
+    long getActiveSessions();
+
+    long getSessionsStarted();
+
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    double getBytesSentPerSecond();
+
+    double getBytesReceivedPerSecond();
+
+    long getBlocksSent();
+
+    long getBlocksReceived();
+
+    long getErrors();
+
+    long getSyncBatches();
+
+    long getSyncedFiles();
+
+    long getWriteStalls();
+
+    long getSessionP50Millis();
+
+    long getSessionP99Millis();
+
+    long getSessionMaxMillis();
+}
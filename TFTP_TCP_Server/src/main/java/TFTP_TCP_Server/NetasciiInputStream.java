@@ -0,0 +1,99 @@
+package TFTP_TCP_Server;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+public class NetasciiInputStream extends FilterInputStream {
+    private static final int NONE = -1;
+
+    private final byte[] raw = new byte[Constants.LEN];
+    private int rawPos;
+    private int rawLen;
+    // The second byte of a pair that did not fit the last read
+    private int owed = NONE;
+
+    /**
+     * Translates a file to netascii (RFC 764) as it is read: a line feed comes out as
+     * CR LF and a carriage return as CR NUL. The file is read through a buffer of one
+     * block, so reading costs no allocation. A pair split by the end of a read is finished
+     * by the next one, so blocks filled from this stream are full until the last.
+     *
+     * @param in The file.
+     */
+    public NetasciiInputStream(InputStream in) {
+        super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (owed != NONE) {
+            int b = owed;
+            owed = NONE;
+            return b;
+        }
+        if (rawPos == rawLen && !fill()) {
+            return -1;
+        }
+        byte b = raw[rawPos++];
+        if (b == '\n' || b == '\r') {
+            owed = b == '\n' ? '\n' : 0;
+            return '\r';
+        }
+        return b & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int n = 0;
+        if (owed != NONE) {
+            b[off + n++] = (byte) owed;
+            owed = NONE;
+        }
+        while (n < len) {
+            if (rawPos == rawLen && !fill()) {
+                break;
+            }
+            byte c = raw[rawPos++];
+            if (c == '\n' || c == '\r') {
+                b[off + n++] = '\r';
+                owed = c == '\n' ? '\n' : 0;
+                if (n < len) {
+                    b[off + n++] = (byte) owed;
+                    owed = NONE;
+                }
+            } else {
+                b[off + n++] = c;
+            }
+        }
+        return n == 0 ? -1 : n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n && read() != -1) {
+            skipped++;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (owed != NONE ? 1 : 0) + rawLen - rawPos;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    private boolean fill() throws IOException {
+        rawLen = Math.max(0, in.read(raw, 0, raw.length));
+        rawPos = 0;
+        return rawLen > 0;
+    }
+}
@@ -0,0 +1,100 @@
+package TFTP_TCP_Server;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+public class NetasciiOutputStream extends FilterOutputStream {
+    private final byte[] buf = new byte[Constants.LEN];
+    // A CR ended the last write, and the next one says what it stood for
+    private boolean held;
+
+    /**
+     * Translates netascii (RFC 764) back as it is written to a file: CR LF is stored as a
+     * line feed and CR NUL as a carriage return. Translated bytes go through a buffer of
+     * one block, so writing costs no allocation. A pair split between two writes is
+     * joined up, so blocks can be written as they arrive.
+     *
+     * @param out The file.
+     */
+    public NetasciiOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (held) {
+            held = false;
+            if (b == '\n') {
+                out.write('\n');
+                return;
+            }
+            out.write('\r');
+            if (b == 0) {
+                return;
+            }
+        }
+        if (b == '\r') {
+            held = true;
+        } else {
+            out.write(b);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        int i = off;
+        int end = off + len;
+        int n = 0;
+        if (held && i < end) {
+            held = false;
+            if (b[i] == '\n' || b[i] == 0) {
+                buf[n++] = b[i] == '\n' ? (byte) '\n' : (byte) '\r';
+                i++;
+            } else {
+                // A bare CR, which netascii does not allow, is kept as it was
+                buf[n++] = '\r';
+            }
+        }
+
+        while (i < end) {
+            if (n == buf.length) {
+                out.write(buf, 0, n);
+                n = 0;
+            }
+            byte c = b[i++];
+            if (c != '\r') {
+                buf[n++] = c;
+            } else if (i == end) {
+                held = true;
+            } else if (b[i] == '\n') {
+                buf[n++] = '\n';
+                i++;
+            } else if (b[i] == 0) {
+                buf[n++] = '\r';
+                i++;
+            } else {
+                buf[n++] = '\r';
+            }
+        }
+        out.write(buf, 0, n);
+    }
+
+    /**
+     * Writes a CR still held back at the end of the transfer, without closing the file.
+     *
+     * @throws IOException If the file cannot be written.
+     */
+    public void finish() throws IOException {
+        if (held) {
+            held = false;
+            out.write('\r');
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+        super.close();
+    }
+}
@@ -0,0 +1,397 @@
+package TFTP_TCP_Server;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+public class Recorder implements RecorderMBean {
+    private static final Recorder SHARED = new Recorder(Constants.PCAP_PACKETS, Constants.PCAP_SNAPLEN);
+
+    // pcap with nanosecond timestamps, holding raw IPv4 or IPv6 packets with no link-layer header
+    private static final int PCAP_MAGIC_NANOS = 0xa1b23c4d;
+    private static final int LINKTYPE_RAW = 101;
+    private static final int IPV4_HEADER = 20;
+    private static final int IPV6_HEADER = 40;
+    private static final int TCP_HEADER = 20;
+    private static final int PROTO_TCP = 6;
+    private static final DateTimeFormatter FILE_TIME = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss.SSS").withZone(ZoneOffset.UTC);
+
+    // Ring of the last messages; a message claims a slot by moving next and publishes it by setting the slot's seq
+    private final Slot[] ring;
+    private final int mask;
+    private final int snaplen;
+    private final AtomicLong next = new AtomicLong();
+    // Turns System.nanoTime into nanoseconds since the epoch, taken once from the wall clock
+    private final long epochOffset = System.currentTimeMillis() * 1_000_000L - System.nanoTime();
+    private final long failureGapNanos = Constants.PCAP_FAILURES * 1_000_000L;
+    private final AtomicLong lastFailureDump = new AtomicLong();
+    private final LongAdder dumps = new LongAdder();
+    // Writes the dumps of failed connections, so a connection's thread never waits for them
+    private final ExecutorService writer;
+
+    private Recorder(int packets, int snaplen) {
+        int size = packets > 0 ? Integer.highestOneBit(Math.max(2, packets - 1)) << 1 : 0;
+        this.ring = size > 0 ? new Slot[size] : null;
+        this.mask = size - 1;
+        this.snaplen = Math.max(4, snaplen);
+        for (int i = 0; i < size; i++) {
+            ring[i] = new Slot(this.snaplen);
+        }
+        this.writer = size > 0 && Constants.PCAP_FAILURES > 0 ? Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "tftp-pcap");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+        lastFailureDump.set(System.nanoTime() - failureGapNanos);
+    }
+
+    /**
+     * Gets the message recorder shared by every connection.
+     *
+     * @return The shared recorder.
+     */
+    public static Recorder shared() {
+        return SHARED;
+    }
+
+    /**
+     * Registers the recorder with the platform MBean server, so its messages can be dumped
+     * while the server runs. Does nothing unless -Dtftp.pcap is set.
+     */
+    public void start() {
+        if (ring == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("TFTP_TCP_Server:type=Recorder"));
+        } catch (JMException e) {
+            Log.shared().error("Packet recorder not registered with JMX", e.getMessage());
+        }
+        Log.shared().info("Recording the last messages", ring.length);
+    }
+
+    /**
+     * Checks whether messages are being recorded, so a caller can skip building one.
+     *
+     * @return true if -Dtftp.pcap is set.
+     */
+    public boolean isEnabled() {
+        return ring != null;
+    }
+
+    /**
+     * Starts recording a connection's TFTP messages.
+     *
+     * @param socket The connection's socket.
+     * @return The connection's recorder.
+     */
+    public Connection connection(Socket socket) {
+        return new Connection(socket);
+    }
+
+    /**
+     * Keeps a message in the ring, overwriting the oldest. The cost is one atomic increment
+     * and a copy of at most -Dtftp.pcap.snaplen bytes into a slot allocated up front, so
+     * recording can stay on in production; with -Dtftp.pcap unset it is a single check.
+     */
+    private void record(Connection conn, boolean sent, byte[] buf, int off, int len) {
+        if (ring == null || len <= 0) {
+            return;
+        }
+        long n = next.getAndIncrement();
+        Slot slot = ring[(int) (n & mask)];
+        slot.seq = -1;
+        slot.nanos = System.nanoTime();
+        slot.conn = conn;
+        slot.sent = sent;
+        slot.length = len;
+        slot.captured = Math.min(len, snaplen);
+        System.arraycopy(buf, off, slot.data, 0, slot.captured);
+        slot.seq = n;
+    }
+
+    /**
+     * Dumps every message still in the ring to a pcap file in -Dtftp.pcap.dir.
+     *
+     * @return The file written.
+     * @throws IOException If the file cannot be written.
+     */
+    @Override
+    public String dump() throws IOException {
+        if (ring == null) {
+            throw new IOException("Packet recording is off; start the server with -Dtftp.pcap");
+        }
+        Path file = file("all");
+        write(file, snapshot(null));
+        return file.toAbsolutePath().toString();
+    }
+
+    @Override
+    public int getCapacity() {
+        return ring == null ? 0 : ring.length;
+    }
+
+    @Override
+    public int getSnapLength() {
+        return snaplen;
+    }
+
+    @Override
+    public long getRecorded() {
+        return next.get();
+    }
+
+    @Override
+    public long getDumps() {
+        return dumps.sum();
+    }
+
+    /**
+     * Copies the messages out of the ring, oldest first. A slot being written, or
+     * overwritten while it is copied, is skipped.
+     *
+     * @param conn Only this connection's messages, or null for all.
+     * @return The messages.
+     */
+    private List<Message> snapshot(Connection conn) {
+        List<Message> messages = new ArrayList<>();
+        long end = next.get();
+        for (long n = Math.max(0, end - ring.length); n < end; n++) {
+            Slot slot = ring[(int) (n & mask)];
+            if (slot.seq != n) {
+                continue;
+            }
+            if (conn != null && slot.conn != conn) {
+                continue;
+            }
+            Message message = new Message(slot);
+            if (slot.seq == n) {
+                messages.add(message);
+            }
+        }
+        return messages;
+    }
+
+    private Path file(String what) {
+        String time = FILE_TIME.format(Instant.now());
+        return Paths.get(Constants.PCAP_DIR, "tftp-tcp-" + time + "-" + what + ".pcap");
+    }
+
+    /**
+     * Writes messages as a pcap file. Each message becomes one TCP segment with the
+     * connection's real addresses and ports. Sequence numbers start at 1 in each direction
+     * at the first message in the file and run on by each message's full length, so a
+     * truncated message or one lost from the ring shows up as a gap in the stream. There is
+     * no handshake, and the checksums are left out.
+     *
+     * @param file The file.
+     * @param messages The messages, oldest first.
+     * @throws IOException If the file cannot be written.
+     */
+    private void write(Path file, List<Message> messages) throws IOException {
+        // The next sequence number from the server and from the client, per connection
+        Map<Connection, long[]> streams = new IdentityHashMap<>();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(PCAP_MAGIC_NANOS);
+            out.writeShort(2);
+            out.writeShort(4);
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeInt(65535);
+            out.writeInt(LINKTYPE_RAW);
+            for (Message message : messages) {
+                long[] seqs = streams.computeIfAbsent(message.conn, c -> new long[]{1, 1});
+                int dir = message.sent ? 0 : 1;
+                message.writeTo(out, seqs[dir], seqs[1 - dir]);
+                seqs[dir] += message.length;
+            }
+        }
+        dumps.increment();
+    }
+
+    // One connection's side of the recorder
+    public final class Connection {
+        private final InetAddress addr;
+        private final int port;
+        private final byte[] local;
+        private final int localPort;
+
+        private Connection(Socket socket) {
+            this.addr = socket.getInetAddress();
+            this.port = socket.getPort();
+            this.localPort = socket.getLocalPort();
+            byte[] localAddr = socket.getLocalAddress().getAddress();
+            int family = addr.getAddress().length;
+            this.local = localAddr.length == family ? localAddr : new byte[family];
+        }
+
+        /**
+         * Records a message sent to the client.
+         *
+         * @param buf The buffer holding the message.
+         * @param off The position of the message in buf.
+         * @param len The length of the message.
+         */
+        public void sent(byte[] buf, int off, int len) {
+            record(this, true, buf, off, len);
+        }
+
+        /**
+         * Records part of a message read from the client. The server reads a message a
+         * field at a time, so each read is recorded as it is made.
+         *
+         * @param buf The buffer holding what was read.
+         * @param off The position of it in buf.
+         * @param len The number of bytes read.
+         */
+        public void received(byte[] buf, int off, int len) {
+            record(this, false, buf, off, len);
+        }
+
+        /**
+         * Dumps the connection's messages still in the ring to its own pcap file in
+         * -Dtftp.pcap.dir. At most one connection is dumped every -Dtftp.pcap.failures
+         * milliseconds, so a burst of failures cannot fill the disk. The messages are picked
+         * out straight away, before newer ones overwrite them, and written on a background thread.
+         */
+        public void failed() {
+            if (writer == null) {
+                return;
+            }
+            long now = System.nanoTime();
+            long last = lastFailureDump.get();
+            if (now - last < failureGapNanos || !lastFailureDump.compareAndSet(last, now)) {
+                return;
+            }
+            List<Message> messages = snapshot(this);
+            Path file = file(addr.getHostAddress().replaceAll("[^0-9A-Za-z.]", "_") + "-" + port);
+            writer.execute(() -> {
+                try {
+                    write(file, messages);
+                    Log.shared().info("Failed connection dumped to", file);
+                } catch (IOException e) {
+                    Log.shared().error("Packet dump failed", e.getMessage());
+                }
+            });
+        }
+    }
+
+    // A ring slot, reused for every message that lands in it
+    private static final class Slot {
+        // The number of the message in the slot, -1 while it is being written
+        private volatile long seq = -1;
+        private final byte[] data;
+        private long nanos;
+        private Connection conn;
+        private boolean sent;
+        private int length;
+        private int captured;
+
+        private Slot(int snaplen) {
+            this.data = new byte[snaplen];
+        }
+    }
+
+    // A message copied out of the ring for a dump
+    private final class Message {
+        private final long nanos;
+        private final Connection conn;
+        private final boolean sent;
+        private final int length;
+        private final byte[] data;
+
+        private Message(Slot slot) {
+            this.nanos = slot.nanos;
+            this.conn = slot.conn;
+            this.sent = slot.sent;
+            this.length = slot.length;
+            this.data = Arrays.copyOf(slot.data, slot.captured);
+        }
+
+        private void writeTo(DataOutputStream out, long seq, long ack) throws IOException {
+            byte[] peer = conn.addr.getAddress();
+            byte[] src = sent ? conn.local : peer;
+            byte[] dst = sent ? peer : conn.local;
+            boolean v6 = conn.addr instanceof Inet6Address;
+            int headers = (v6 ? IPV6_HEADER : IPV4_HEADER) + TCP_HEADER;
+
+            long time = epochOffset + nanos;
+            out.writeInt((int) (time / 1_000_000_000L));
+            out.writeInt((int) (time % 1_000_000_000L));
+            out.writeInt(headers + data.length);
+            out.writeInt(headers + length);
+
+            if (v6) {
+                out.writeInt(0x60000000);
+                out.writeShort(TCP_HEADER + length);
+                out.writeByte(PROTO_TCP);
+                out.writeByte(64);
+                out.write(src);
+                out.write(dst);
+            } else {
+                out.write(ipv4Header(src, dst, IPV4_HEADER + TCP_HEADER + length));
+            }
+            out.writeShort(sent ? conn.localPort : conn.port);
+            out.writeShort(sent ? conn.port : conn.localPort);
+            out.writeInt((int) seq);
+            out.writeInt((int) ack);
+            // Five words of header, PSH and ACK set
+            out.writeByte(5 << 4);
+            out.writeByte(0x18);
+            out.writeShort(65535);
+            out.writeShort(0);
+            out.writeShort(0);
+            out.write(data);
+        }
+    }
+
+    /**
+     * Builds an IPv4 header for a TCP segment, with its checksum.
+     *
+     * @param src The source address.
+     * @param dst The destination address.
+     * @param total The length of the whole IP packet.
+     * @return The header.
+     */
+    private static byte[] ipv4Header(byte[] src, byte[] dst, int total) {
+        byte[] h = new byte[IPV4_HEADER];
+        h[0] = 0x45;
+        h[2] = (byte) (total >>> 8);
+        h[3] = (byte) total;
+        h[6] = 0x40;
+        h[8] = 64;
+        h[9] = PROTO_TCP;
+        System.arraycopy(src, 0, h, 12, 4);
+        System.arraycopy(dst, 0, h, 16, 4);
+        int sum = 0;
+        for (int i = 0; i < IPV4_HEADER; i += 2) {
+            sum += ((h[i] & 0xFF) << 8) | (h[i + 1] & 0xFF);
+        }
+        sum = (sum & 0xFFFF) + (sum >>> 16);
+        sum = ~((sum & 0xFFFF) + (sum >>> 16));
+        h[10] = (byte) (sum >>> 8);
+        h[11] = (byte) sum;
+        return h;
+    }
+}
@@ -0,0 +1,16 @@
+package TFTP_TCP_Server;
+
+import java.io.IOException;
+
+// What JMX sees of Recorder, registered as TFTP_TCP_Server:type=Recorder
+public interface RecorderMBean {
+    int getCapacity();
+
+    int getSnapLength();
+
+    long getRecorded();
+
+    long getDumps();
+
+    String dump() throws IOException;
+}
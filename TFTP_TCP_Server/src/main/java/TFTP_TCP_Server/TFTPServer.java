@@ -2,26 +2,48 @@ package TFTP_TCP_Server;
 
 import java.io.*;
 import java.net.*;
+import java.util.concurrent.ExecutorService;
 
 public class TFTPServer {
     // Main method: Init the server to listen on the port and accepts clients.
+    // Each connection gets its own thread, a virtual one with -Dtftp.threads=virtual on Java 21+.
     public static void main(String[] args) {
-        System.out.println("Listening on port: " + Constants.PORT);
+        Log.shared().start();
+        Metrics.shared().start();
+        Traffic.shared().start();
+        Recorder.shared().start();
+        Log.shared().info("Listening on port", Constants.PORT);
+        ExecutorService virtual = null;
+        if ("virtual".equals(Constants.THREADS)) {
+            virtual = VirtualThreads.newPerTaskExecutor();
+            if (virtual == null) {
+                Log.shared().info("Virtual threads need Java 21, using platform threads");
+            }
+        }
 
         try (ServerSocket srvSocket = new ServerSocket(Constants.PORT)) {
             while (true) {
                 try {
                     Socket cliSocket = srvSocket.accept();
-                    String addr = cliSocket.getInetAddress().getHostAddress();
-                    System.out.println("Connection: " + addr);
+                    if (!Traffic.shared().admit(cliSocket.getInetAddress())) {
+                        Log.shared().debug("Connection refused", cliSocket.getRemoteSocketAddress(), null);
+                        cliSocket.close();
+                        continue;
+                    }
+                    Log.shared().debug("Connection", cliSocket.getRemoteSocketAddress(), null);
 
-                    new Thread(() -> new ConnectionHandler(cliSocket).process()).start();
+                    Runnable handler = () -> new ConnectionHandler(cliSocket).process();
+                    if (virtual != null) {
+                        virtual.execute(handler);
+                    } else {
+                        new Thread(handler).start();
+                    }
                 } catch (IOException e) {
-                    System.err.println("Connection Error: " + e.getMessage());
+                    Log.shared().error("Connection Error", e.getMessage());
                 }
             }
         } catch (IOException err) {
-            System.err.println("Server Error: " + err.getMessage());
+            Log.shared().error("Server Error", err.getMessage());
             System.exit(1);
         }
     }
@@ -0,0 +1,153 @@
+package TFTP_TCP_Server;
+
+public class TimerWheel {
+    private final long tickNanos;
+    private final int mask;
+    private final long origin;
+    // Each bucket and the expired list are circular lists around a sentinel
+    private final Timeout[] buckets;
+    private final Timeout expired = new Timeout(null);
+    // The next tick to be processed, counted from origin
+    private long tick;
+    private int size;
+
+    /**
+     * Creates a hashed timing wheel. A timeout due at tick t goes in bucket t mod buckets,
+     * so scheduling and cancelling are O(1), and each tick only looks at one bucket, whose
+     * timeouts are due at that tick or a whole turn of the wheel later. A timeout fires on
+     * the first tick at or after its deadline, so it is up to one tick late.
+     * The wheel is not thread-safe; it is owned by the thread that calls advance.
+     *
+     * @param tickNanos The length of a tick.
+     * @param buckets The number of buckets, rounded up to a power of two. Timeouts further
+     *                off than a turn of the wheel cost one look per turn.
+     */
+    public TimerWheel(long tickNanos, int buckets) {
+        int n = Integer.highestOneBit(Math.max(1, buckets - 1)) << 1;
+        this.tickNanos = tickNanos;
+        this.mask = n - 1;
+        this.origin = System.nanoTime();
+        this.buckets = new Timeout[n];
+        for (int i = 0; i < n; i++) {
+            this.buckets[i] = new Timeout(null);
+        }
+    }
+
+    /**
+     * Schedules a timeout, moving it if it was already scheduled.
+     *
+     * @param timeout The timeout.
+     * @param deadline When it fires, from System.nanoTime.
+     */
+    public void schedule(Timeout timeout, long deadline) {
+        if (timeout.isScheduled()) {
+            timeout.unlink();
+        } else {
+            size++;
+        }
+        long due = Math.max(tick, ceilDiv(deadline - origin, tickNanos));
+        timeout.due = due;
+        timeout.linkBefore(buckets[(int) (due & mask)]);
+    }
+
+    /**
+     * Cancels a timeout if it is scheduled.
+     *
+     * @param timeout The timeout.
+     */
+    public void cancel(Timeout timeout) {
+        if (timeout.isScheduled()) {
+            timeout.unlink();
+            size--;
+        }
+    }
+
+    /**
+     * Processes every tick up to now, firing the timeouts that are due. The due timeouts
+     * are taken off the wheel before any of them runs, so a task can schedule or cancel
+     * any timeout, including ones due on the same tick. After a stall of more than a turn
+     * each bucket is still only looked at once. A task that throws is logged and the rest
+     * still run.
+     *
+     * @param now The current time from System.nanoTime.
+     */
+    public void advance(long now) {
+        long last = (now - origin) / tickNanos;
+        for (tick = Math.max(tick, last - mask); tick <= last; tick++) {
+            Timeout bucket = buckets[(int) (tick & mask)];
+            Timeout t = bucket.next;
+            while (t != bucket) {
+                Timeout next = t.next;
+                if (t.due <= last) {
+                    t.unlink();
+                    t.linkBefore(expired);
+                }
+                t = next;
+            }
+        }
+
+        while (expired.next != expired) {
+            Timeout t = expired.next;
+            t.unlink();
+            size--;
+            try {
+                t.task.run();
+            } catch (RuntimeException e) {
+                Log.shared().error("Timer task failed", e);
+            }
+        }
+    }
+
+    /**
+     * Gets the number of timeouts scheduled.
+     *
+     * @return The number of timeouts on the wheel.
+     */
+    public int size() {
+        return size;
+    }
+
+    private static long ceilDiv(long x, long y) {
+        return -Math.floorDiv(-x, y);
+    }
+
+    // A timer that can be scheduled on one wheel at a time; reused for every deadline of its owner
+    public static class Timeout {
+        private final Runnable task;
+        private Timeout prev = this;
+        private Timeout next = this;
+        private long due;
+
+        /**
+         * Creates a timeout that is not scheduled.
+         *
+         * @param task Run on the wheel's thread when the timeout fires.
+         */
+        public Timeout(Runnable task) {
+            this.task = task;
+        }
+
+        /**
+         * Checks whether the timeout is waiting to fire.
+         *
+         * @return true while it is on a wheel.
+         */
+        public boolean isScheduled() {
+            return next != this;
+        }
+
+        private void linkBefore(Timeout at) {
+            prev = at.prev;
+            next = at;
+            at.prev.next = this;
+            at.prev = this;
+        }
+
+        private void unlink() {
+            prev.next = next;
+            next.prev = prev;
+            prev = this;
+            next = this;
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package TFTP_TCP_Server;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+public class Traffic implements TrafficMBean {
+    private static final Traffic SHARED = new Traffic();
+
+    private final TokenBucket global = new TokenBucket(Constants.SHAPE_GLOBAL, Constants.SHAPE_BURST);
+    // Clients and subnets with admitted sessions; an entry goes when its last session ends
+    private final ConcurrentMap<InetAddress, Peer> clients = new ConcurrentHashMap<>();
+    private final ConcurrentMap<InetAddress, Peer> subnets = new ConcurrentHashMap<>();
+    private final AtomicInteger admitted = new AtomicInteger();
+    private final LongAdder refused = new LongAdder();
+
+    private volatile long clientRate = Constants.SHAPE_CLIENT;
+    private volatile long subnetRate = Constants.SHAPE_SUBNET;
+    private volatile long burst = Constants.SHAPE_BURST;
+    private volatile int maxSessions = Constants.ADMIT_SESSIONS;
+    private volatile int maxPerClient = Constants.ADMIT_CLIENT;
+    private volatile int maxPerSubnet = Constants.ADMIT_SUBNET;
+
+    /**
+     * Gets the traffic limits shared by every connection.
+     *
+     * @return The shared limits.
+     */
+    public static Traffic shared() {
+        return SHARED;
+    }
+
+    /**
+     * Registers the limits with the platform MBean server so they can be changed while the server runs.
+     */
+    public void start() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("TFTP_TCP_Server:type=Traffic"));
+        } catch (JMException e) {
+            Log.shared().error("Traffic limits not registered with JMX", e.getMessage());
+        }
+    }
+
+    /**
+     * Admits a new connection if the server, the client and the client's subnet are all
+     * under their session limits. An admitted connection must be released when it ends.
+     *
+     * @param addr The client's address.
+     * @return true if the session may start.
+     */
+    public boolean admit(InetAddress addr) {
+        int max = maxSessions;
+        if (admitted.incrementAndGet() > max && max > 0) {
+            admitted.decrementAndGet();
+            refused.increment();
+            return false;
+        }
+        if (!enter(clients, addr, maxPerClient, clientRate)) {
+            admitted.decrementAndGet();
+            refused.increment();
+            return false;
+        }
+        if (!enter(subnets, subnet(addr), maxPerSubnet, subnetRate)) {
+            leave(clients, addr);
+            admitted.decrementAndGet();
+            refused.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Releases a connection admitted by admit.
+     *
+     * @param addr The client's address.
+     */
+    public void release(InetAddress addr) {
+        leave(clients, addr);
+        leave(subnets, subnet(addr));
+        admitted.decrementAndGet();
+    }
+
+    /**
+     * Gets the buckets that pace an admitted connection's traffic.
+     *
+     * @param addr The client's address.
+     * @return The connection's flow.
+     */
+    public Flow flow(InetAddress addr) {
+        Peer client = clients.get(addr);
+        Peer net = subnets.get(subnet(addr));
+        return new Flow(global, client == null ? null : client.bucket, net == null ? null : net.bucket);
+    }
+
+    /**
+     * Blocks the calling connection's thread for the time a flow asked it to wait.
+     *
+     * @param nanos The time to wait, from Flow.send or Flow.receive.
+     */
+    public static void pause(long nanos) {
+        if (nanos <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean enter(ConcurrentMap<InetAddress, Peer> peers, InetAddress key, int limit, long rate) {
+        boolean[] entered = new boolean[1];
+        peers.compute(key, (k, peer) -> {
+            if (peer == null) {
+                peer = new Peer(new TokenBucket(rate, burst));
+            }
+            if (limit > 0 && peer.sessions >= limit) {
+                return peer.sessions == 0 ? null : peer;
+            }
+            peer.sessions++;
+            entered[0] = true;
+            return peer;
+        });
+        return entered[0];
+    }
+
+    private void leave(ConcurrentMap<InetAddress, Peer> peers, InetAddress key) {
+        peers.computeIfPresent(key, (k, peer) -> --peer.sessions == 0 ? null : peer);
+    }
+
+    /**
+     * Masks an address down to its subnet: the configured prefix for IPv4, /64 for IPv6.
+     *
+     * @param addr The address.
+     * @return The subnet's address.
+     */
+    private InetAddress subnet(InetAddress addr) {
+        byte[] bytes = addr.getAddress();
+        int prefix = bytes.length == 4 ? Constants.SUBNET_PREFIX : 64;
+        for (int i = 0; i < bytes.length; i++) {
+            int keep = prefix - i * 8;
+            if (keep <= 0) {
+                bytes[i] = 0;
+            } else if (keep < 8) {
+                bytes[i] &= (byte) (0xFF << (8 - keep));
+            }
+        }
+        try {
+            return InetAddress.getByAddress(bytes);
+        } catch (UnknownHostException e) {
+            return addr;
+        }
+    }
+
+    @Override
+    public long getGlobalRate() {
+        return global.getRate();
+    }
+
+    @Override
+    public void setGlobalRate(long bytesPerSecond) {
+        global.setRate(bytesPerSecond);
+    }
+
+    @Override
+    public long getClientRate() {
+        return clientRate;
+    }
+
+    @Override
+    public void setClientRate(long bytesPerSecond) {
+        clientRate = bytesPerSecond;
+        for (Peer peer : clients.values()) {
+            peer.bucket.setRate(bytesPerSecond);
+        }
+    }
+
+    @Override
+    public long getSubnetRate() {
+        return subnetRate;
+    }
+
+    @Override
+    public void setSubnetRate(long bytesPerSecond) {
+        subnetRate = bytesPerSecond;
+        for (Peer peer : subnets.values()) {
+            peer.bucket.setRate(bytesPerSecond);
+        }
+    }
+
+    @Override
+    public long getBurst() {
+        return burst;
+    }
+
+    @Override
+    public void setBurst(long bytes) {
+        burst = bytes;
+        global.setBurst(bytes);
+        for (Peer peer : clients.values()) {
+            peer.bucket.setBurst(bytes);
+        }
+        for (Peer peer : subnets.values()) {
+            peer.bucket.setBurst(bytes);
+        }
+    }
+
+    @Override
+    public int getMaxSessions() {
+        return maxSessions;
+    }
+
+    @Override
+    public void setMaxSessions(int sessions) {
+        maxSessions = sessions;
+    }
+
+    @Override
+    public int getMaxSessionsPerClient() {
+        return maxPerClient;
+    }
+
+    @Override
+    public void setMaxSessionsPerClient(int sessions) {
+        maxPerClient = sessions;
+    }
+
+    @Override
+    public int getMaxSessionsPerSubnet() {
+        return maxPerSubnet;
+    }
+
+    @Override
+    public void setMaxSessionsPerSubnet(int sessions) {
+        maxPerSubnet = sessions;
+    }
+
+    @Override
+    public int getAdmittedSessions() {
+        return admitted.get();
+    }
+
+    @Override
+    public long getRefused() {
+        return refused.sum();
+    }
+
+    // The buckets one connection's blocks are paced by; any but the global one may be null
+    public static final class Flow {
+        private final TokenBucket global;
+        private final TokenBucket client;
+        private final TokenBucket subnet;
+
+        private Flow(TokenBucket global, TokenBucket client, TokenBucket subnet) {
+            this.global = global;
+            this.client = client;
+            this.subnet = subnet;
+        }
+
+        /**
+         * Reserves egress for a block the connection is about to send. It counts against
+         * the global bucket as well as the client's and subnet's.
+         *
+         * @param bytes The block's length with its header.
+         * @return The nanoseconds to wait before sending it.
+         */
+        public long send(long bytes) {
+            return Math.max(global.reserve(bytes), receive(bytes));
+        }
+
+        /**
+         * Reserves for a block the connection has received. Only the client's and
+         * subnet's buckets are charged; an upload is slowed by reading it more slowly,
+         * which TCP's flow control passes back to the client.
+         *
+         * @param bytes The block's length with its header.
+         * @return The nanoseconds to wait before reading on.
+         */
+        public long receive(long bytes) {
+            long wait = client == null ? 0 : client.reserve(bytes);
+            return subnet == null ? wait : Math.max(wait, subnet.reserve(bytes));
+        }
+    }
+
+    // Connections from one client or subnet, and the bucket they share; guarded by the map
+    private static final class Peer {
+        private final TokenBucket bucket;
+        private int sessions;
+
+        private Peer(TokenBucket bucket) {
+            this.bucket = bucket;
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package TFTP_TCP_Server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class VirtualThreads {
+    /**
+     * Creates an executor that starts a new virtual thread for each task.
+     * Virtual threads arrived in Java 21 while the server still builds for Java 8,
+     * so the factory is looked up at runtime.
+     *
+     * @return The executor, or null if this JVM has no virtual threads.
+     */
+    public static ExecutorService newPerTaskExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
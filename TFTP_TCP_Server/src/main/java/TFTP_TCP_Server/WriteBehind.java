@@ -0,0 +1,180 @@
+package TFTP_TCP_Server;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class WriteBehind {
+    private static final ExecutorService DISK = createExecutor();
+
+    private final OutputStream out;
+    private final Metrics metrics = Metrics.shared();
+    // Chunks waiting to be filled, and filled chunks waiting for the disk, in block order
+    private final BlockingQueue<Chunk> free;
+    private final Queue<Chunk> filled = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final Runnable drain = this::drain;
+    // The first write that failed; every later write and the flush report it
+    private volatile IOException failure;
+    private volatile CompletableFuture<Void> flushed;
+    private volatile boolean closed;
+
+    /**
+     * Creates the write-behind stage for one upload. Blocks are copied into one of depth
+     * chunks and written to the file in order on the shared disk threads, so the
+     * connection can read the next blocks off the socket while earlier ones are still
+     * being written. Once every chunk is waiting for the disk the connection waits too,
+     * and TCP flow control slows the client down to the disk's pace.
+     *
+     * @param out The file. Only ever written by one thread at a time.
+     * @param blockSize The block size.
+     * @param depth The number of blocks that can wait for the disk.
+     */
+    public WriteBehind(OutputStream out, int blockSize, int depth) {
+        this.out = out;
+        this.free = new ArrayBlockingQueue<>(depth);
+        for (int i = 0; i < depth; i++) {
+            free.add(new Chunk(blockSize));
+        }
+    }
+
+    /**
+     * Creates the disk threads shared by every upload.
+     *
+     * @return The executor.
+     */
+    private static ExecutorService createExecutor() {
+        AtomicInteger threadId = new AtomicInteger();
+        return Executors.newFixedThreadPool(Math.max(1, Constants.DISK_THREADS), task -> {
+            Thread thread = new Thread(task, "tftp-disk-" + threadId.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queues a block to be written, waiting for a free chunk if every one is queued.
+     *
+     * @param src The buffer holding the block.
+     * @param off The position of the block in src.
+     * @param len The length of the block.
+     * @throws IOException If an earlier block could not be written, such as the disk being full.
+     */
+    public void write(byte[] src, int off, int len) throws IOException {
+        check();
+        Chunk chunk = free.poll();
+        if (chunk == null) {
+            metrics.writeStall();
+            try {
+                chunk = free.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for the disk");
+            }
+            check();
+        }
+        System.arraycopy(src, off, chunk.data, 0, len);
+        chunk.length = len;
+        filled.add(chunk);
+        kick();
+    }
+
+    /**
+     * Waits until every queued block has been written. No more blocks may be queued afterwards.
+     *
+     * @throws IOException If a block could not be written.
+     */
+    public void flush() throws IOException {
+        if (flushed == null) {
+            flushed = new CompletableFuture<>();
+            kick();
+        }
+        try {
+            flushed.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the disk");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Drops the blocks still queued. A write already running finishes or fails on the closed file.
+     */
+    public void close() {
+        closed = true;
+    }
+
+    private void check() throws IOException {
+        IOException e = failure;
+        if (e != null) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    private void kick() {
+        if (draining.compareAndSet(false, true)) {
+            DISK.execute(drain);
+        }
+    }
+
+    /**
+     * Writes the queued blocks in order and hands their chunks back. After a failure the
+     * rest are dropped, and the connection learns of it from its next write or the flush.
+     */
+    private void drain() {
+        try {
+            while (true) {
+                // Read before the queue, so an empty queue means every block before the flush is written
+                CompletableFuture<Void> done = flushed;
+                Chunk chunk = filled.poll();
+                if (chunk == null) {
+                    if (done != null) {
+                        if (failure != null) {
+                            done.completeExceptionally(failure);
+                        } else {
+                            done.complete(null);
+                        }
+                    }
+                    break;
+                }
+                if (failure == null && !closed) {
+                    try {
+                        out.write(chunk.data, 0, chunk.length);
+                    } catch (IOException e) {
+                        failure = e;
+                    }
+                }
+                free.add(chunk);
+            }
+        } finally {
+            draining.set(false);
+        }
+        // A block or the flush may have arrived after the last check
+        CompletableFuture<Void> done = flushed;
+        if (!filled.isEmpty() || (done != null && !done.isDone())) {
+            kick();
+        }
+    }
+
+    // A block waiting for the disk
+    private static class Chunk {
+        private final byte[] data;
+        private int length;
+
+        private Chunk(int blockSize) {
+            this.data = new byte[blockSize];
+        }
+    }
+}
@@ -7,16 +7,48 @@ public class Constants {
     public static final byte DATA = 3;
     public static final byte ACK = 4;
     public static final byte ERROR = 5;
+    public static final byte OACK = 6;
 
     // Error codes
     public static final short ERR_FILE_NOT_FOUND = 1;
+    public static final short ERR_DISK_FULL = 3;
+    // Option negotiation failed (RFC 2347)
+    public static final short ERR_OPTION = 8;
 
     // Constants
     public static final int PORT = 1025;
     public static final String HOST = "localhost";
     public static final int TIMEOUT = 5000;
+
+    // Retransmission, in milliseconds
+    public static final int INITIAL_RTO = 1000;
+    public static final int MIN_RTO = Integer.getInteger("tftp.rto.min", 20);
+    public static final int MAX_RTO = Integer.getInteger("tftp.rto.max", 5000);
+    public static final int MAX_RETRIES = Integer.getInteger("tftp.retries", 8);
     public static final int LEN = 512;
     public static final int MAX_LEN = LEN + 4;
     public static final String INCOMING = "incoming/";
     public static final String OUTGOING = "outgoing/";
+
+    // Options (RFC 2347, RFC 2348, RFC 7440)
+    // "octet" sends files as they are, "netascii" translates line ends (RFC 764)
+    public static final String MODE = System.getProperty("tftp.mode", "octet");
+    public static final String MODE_NETASCII = "netascii";
+    public static final String OPT_BLKSIZE = "blksize";
+    public static final int MIN_BLKSIZE = 8;
+    public static final int MAX_BLKSIZE = 65464;
+    public static final int BLKSIZE = Integer.getInteger("tftp.blksize", 1468);
+    public static final String OPT_WINDOWSIZE = "windowsize";
+    public static final int MAX_WINDOWSIZE = 65535;
+    public static final int WINDOWSIZE = Integer.getInteger("tftp.windowsize", 8);
+    // Transfer size (RFC 2349)
+    public static final String OPT_TSIZE = "tsize";
+    // Block number after 65535 on the wire, 0 or 1, asked of the server with the rollover option
+    public static final String OPT_ROLLOVER = "rollover";
+    public static final int ROLLOVER = Integer.getInteger("tftp.rollover", 0);
+
+    // Multicast downloads (RFC 2090), asked for with -Dtftp.multicast=true
+    public static final String OPT_MULTICAST = "multicast";
+    public static final boolean MULTICAST = Boolean.getBoolean("tftp.multicast");
+    public static final String MCAST_INTERFACE = System.getProperty("tftp.multicast.interface");
 }
\ No newline at end of file
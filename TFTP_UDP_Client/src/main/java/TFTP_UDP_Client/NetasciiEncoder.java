@@ -0,0 +1,126 @@
+package TFTP_UDP_Client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class NetasciiEncoder {
+    private static final int NONE = -1;
+
+    private final FileChannel channel;
+    private final byte[] raw;
+    private final ByteBuffer rawBuf;
+    // File position of raw[0], and how many bytes of the file raw holds
+    private long rawAt;
+    private int rawLen;
+    // The next file byte to translate, and the second byte of a pair that did not fit the last block
+    private long position;
+    private int owed = NONE;
+    private long next = 1;
+
+    // Where each block still in the window started, so it can be translated again for a resend
+    private final long[] blocks;
+    private final long[] starts;
+    private final int[] owes;
+
+    /**
+     * Creates the translation stage between a file and its DATA packets for a netascii
+     * upload (RFC 764): a line feed goes out as CR LF and a carriage return as CR NUL.
+     * The file is read through a scratch buffer of one block, and translated straight into
+     * the packet, so a block costs no allocation. A pair that does not fit at the end
+     * of a block is carried into the next one, so translated blocks are always full
+     * until the last. The state at the start of each block in the window is kept, and a
+     * resent block is translated again from there.
+     *
+     * @param channel The file, read by position.
+     * @param blockSize The negotiated block size.
+     * @param window The most blocks that can be resent, the negotiated window size.
+     */
+    public NetasciiEncoder(FileChannel channel, int blockSize, int window) {
+        this.channel = channel;
+        this.raw = new byte[blockSize];
+        this.rawBuf = ByteBuffer.wrap(raw);
+        this.blocks = new long[window + 1];
+        this.starts = new long[window + 1];
+        this.owes = new int[window + 1];
+    }
+
+    /**
+     * Translates a block into a buffer.
+     *
+     * @param block The block number, the next one or one still in the window.
+     * @param dst The buffer to write to.
+     * @param off The position in dst to write at.
+     * @param blockSize The block size.
+     * @return The number of bytes written, less than the block size for the final block.
+     * @throws IOException If the file cannot be read, or the block is older than the window.
+     */
+    public int readBlock(long block, byte[] dst, int off, int blockSize) throws IOException {
+        int slot = (int) (block % blocks.length);
+        if (block != next) {
+            if (blocks[slot] != block) {
+                throw new IOException("Block " + block + " is no longer available");
+            }
+            position = starts[slot];
+            owed = owes[slot];
+        }
+        blocks[slot] = block;
+        starts[slot] = position;
+        owes[slot] = owed;
+
+        int n = 0;
+        if (owed != NONE) {
+            dst[off + n++] = (byte) owed;
+            owed = NONE;
+        }
+        while (n < blockSize) {
+            int i = (int) (position - rawAt);
+            if (i < 0 || i >= rawLen) {
+                if (!fill()) {
+                    break;
+                }
+                i = 0;
+            }
+            // Copy plain bytes up to the next CR or LF, or the end of the block or the scratch buffer
+            int end = Math.min(rawLen, i + blockSize - n);
+            int start = i;
+            while (i < end && raw[i] != '\n' && raw[i] != '\r') {
+                i++;
+            }
+            System.arraycopy(raw, start, dst, off + n, i - start);
+            n += i - start;
+            position += i - start;
+            if (i == end) {
+                continue;
+            }
+
+            dst[off + n++] = '\r';
+            owed = raw[i] == '\n' ? '\n' : 0;
+            position++;
+            if (n < blockSize) {
+                dst[off + n++] = (byte) owed;
+                owed = NONE;
+            }
+        }
+        next = block + 1;
+        return n;
+    }
+
+    /**
+     * Reads the file into the scratch buffer from the current position.
+     *
+     * @return false at the end of the file.
+     * @throws IOException If the file cannot be read.
+     */
+    private boolean fill() throws IOException {
+        rawBuf.clear();
+        while (rawBuf.hasRemaining()) {
+            if (channel.read(rawBuf, position + rawBuf.position()) == -1) {
+                break;
+            }
+        }
+        rawAt = position;
+        rawLen = rawBuf.position();
+        return rawLen > 0;
+    }
+}
@@ -0,0 +1,74 @@
+package TFTP_UDP_Client;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.BlockingQueue;
+
+public class PacketPump implements Runnable {
+    private static final int POLL_MILLIS = 100;
+
+    private final DatagramSocket socket;
+    private final BlockingQueue<DatagramPacket> inbox;
+    private final int size;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    /**
+     * Creates a pump that receives from a socket on its own thread and queues every
+     * packet, so one thread can wait on several sockets at once.
+     *
+     * @param socket The socket to receive from.
+     * @param inbox The queue packets are added to.
+     * @param size The largest packet expected.
+     * @param name The name of the pump's thread.
+     */
+    public PacketPump(DatagramSocket socket, BlockingQueue<DatagramPacket> inbox, int size, String name) {
+        this.socket = socket;
+        this.inbox = inbox;
+        this.size = size;
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Starts the pump's thread.
+     */
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Stops the pump and waits for its thread to finish, so it takes no packet meant for
+     * whoever uses the socket next. The pump notices within a poll interval.
+     */
+    public void stop() {
+        running = false;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            socket.setSoTimeout(POLL_MILLIS);
+            while (running) {
+                DatagramPacket packet = new DatagramPacket(new byte[size], size);
+                try {
+                    socket.receive(packet);
+                } catch (SocketTimeoutException e) {
+                    continue;
+                }
+                inbox.add(packet);
+            }
+        } catch (IOException e) {
+            if (running) {
+                System.out.println("Receive Error: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -1,5 +1,11 @@
 package TFTP_UDP_Client;
 
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
 public class TFTPPacket {
     /**
      * Creates a read request packet for the client to send to server.
@@ -25,24 +31,88 @@ public class TFTPPacket {
 
     /**
      * A method that creates a packet for a read or write request.
-     * The packet consists of a header (0, opcode) and the filename.
+     * The packet consists of a header (0, opcode), the filename, the mode and the
+     * options the client wants to negotiate, each terminated by a null byte.
      *
      * @param filename The name of the file for the request.
      * @param opcode The opcode indicating the type of request.
      * @return A byte array representing the packet.
      */
     private static byte[] createPacket(String filename, byte opcode) {
-        byte[] fileNameBytes = filename.getBytes();
-        byte[] packet = new byte[fileNameBytes.length + 4];
+        Map<String, String> options = new LinkedHashMap<>();
+        options.put(Constants.OPT_BLKSIZE, Integer.toString(Constants.BLKSIZE));
+        options.put(Constants.OPT_WINDOWSIZE, Integer.toString(Constants.WINDOWSIZE));
+        options.put(Constants.OPT_ROLLOVER, Integer.toString(Constants.ROLLOVER));
+        // The server fills in the size of a file being read; an upload tells the server its size.
+        // A netascii transfer's size is only known once it is translated, so it is not sent.
+        if (!Constants.MODE_NETASCII.equals(Constants.MODE)) {
+            long tsize = opcode == Constants.RRQ ? 0 : new File(Constants.OUTGOING + filename).length();
+            options.put(Constants.OPT_TSIZE, Long.toString(tsize));
+        }
+        if (opcode == Constants.RRQ && Constants.MULTICAST) {
+            options.put(Constants.OPT_MULTICAST, "");
+        }
 
+        int len = 2 + filename.getBytes().length + 1 + Constants.MODE.length() + 1;
+        for (Map.Entry<String, String> opt : options.entrySet()) {
+            len += opt.getKey().length() + opt.getValue().length() + 2;
+        }
+
+        byte[] packet = new byte[len];
         packet[0] = 0;
         packet[1] = opcode;
 
-        System.arraycopy(fileNameBytes, 0, packet, 2, fileNameBytes.length);
-        packet[packet.length - 1] = 0;
+        int pos = putString(packet, 2, filename);
+        pos = putString(packet, pos, Constants.MODE);
+        for (Map.Entry<String, String> opt : options.entrySet()) {
+            pos = putString(packet, pos, opt.getKey());
+            pos = putString(packet, pos, opt.getValue());
+        }
         return packet;
     }
 
+    /**
+     * Copies a string into a packet followed by a null byte.
+     *
+     * @param packet The packet being built.
+     * @param pos The position to write at.
+     * @param value The string to write.
+     * @return The position after the null byte.
+     */
+    private static int putString(byte[] packet, int pos, String value) {
+        byte[] bytes = value.getBytes();
+        System.arraycopy(bytes, 0, packet, pos, bytes.length);
+        packet[pos + bytes.length] = 0;
+        return pos + bytes.length + 1;
+    }
+
+    /**
+     * Reads the option names and values out of an OACK packet.
+     *
+     * @param data The data of the OACK packet.
+     * @param length The length of the OACK packet.
+     * @return The acknowledged options, keyed by lower case name.
+     */
+    public static Map<String, String> parseOack(byte[] data, int length) {
+        Map<String, String> options = new LinkedHashMap<>();
+        String name = null;
+        int start = 2;
+
+        for (int i = 2; i < length; i++) {
+            if (data[i] == 0) {
+                String field = new String(data, start, i - start, StandardCharsets.US_ASCII);
+                if (name == null) {
+                    name = field.toLowerCase(Locale.ROOT);
+                } else {
+                    options.put(name, field);
+                    name = null;
+                }
+                start = i + 1;
+            }
+        }
+        return options;
+    }
+
     /**
      * Creates a data packet to be sent to the server during file transfer.
      * The packet contains block number, the data to be transferred, and the size of the block.
@@ -81,6 +151,25 @@ public class TFTPPacket {
         return packet;
     }
 
+    /**
+     * Creates an error packet, sent by the client to abandon a transfer.
+     *
+     * @param code The TFTP error code.
+     * @param msg The error message, terminated with a null byte in the packet.
+     * @return A byte array representing the error packet.
+     */
+    public static byte[] errorPacket(short code, String msg) {
+        byte[] text = msg.getBytes(StandardCharsets.US_ASCII);
+        byte[] packet = new byte[text.length + 5];
+        packet[1] = Constants.ERROR;
+        packet[2] = convertBlock(code, 2);
+        packet[3] = convertBlock(code, 3);
+        System.arraycopy(text, 0, packet, 4, text.length);
+
+        packet[0] = 0;
+        return packet;
+    }
+
     /**
      * Converts a block number to a high of low byte.
      *
@@ -2,6 +2,13 @@ package TFTP_UDP_Client;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 public class TFTPUtils {
     /**
@@ -54,6 +61,9 @@ public class TFTPUtils {
             case Constants.ERR_FILE_NOT_FOUND:
                 errorType = "File Not Found";
                 break;
+            case Constants.ERR_DISK_FULL:
+                errorType = "Disk Full";
+                break;
         }
 
         System.out.println("Error: " + errorType);
@@ -61,7 +71,9 @@ public class TFTPUtils {
 
     /**
      * Sends a write request to the server to upload a file.
-     * It sends the WRQ packet, waits for the first ACK, and then sends the file in blocks.
+     * It sends the WRQ packet, waits for the first ACK, and then sends the file in blocks
+     * to the port the first ACK came from, which is the server's transfer ID.
+     * The WRQ is resent if the server does not answer before the retransmission timer expires.
      *
      * @param filename The name of the file to be uploaded.
      * @param addr The address of the server.
@@ -72,9 +84,12 @@ public class TFTPUtils {
     public static void writeRequest(String filename, InetAddress addr, DatagramSocket socket, int port) throws IOException {
         byte[] packet = TFTPPacket.writePacket(filename);
         DatagramPacket send = new DatagramPacket(packet, packet.length, addr, port);
-        socket.send(send);
-        firstAck(socket);
-        sendFile(addr, port, socket, filename);
+        RetransmitTimer timer = new RetransmitTimer();
+        DatagramPacket ack = firstAck(socket, send, timer);
+        int blockSize = option(socket, ack, Constants.OPT_BLKSIZE, Constants.LEN, Constants.MIN_BLKSIZE, Constants.MAX_BLKSIZE);
+        int windowSize = option(socket, ack, Constants.OPT_WINDOWSIZE, 1, 1, Constants.MAX_WINDOWSIZE);
+        int rollover = option(socket, ack, Constants.OPT_ROLLOVER, 0, 0, 1);
+        sendFile(addr, ack.getPort(), socket, filename, blockSize, windowSize, rollover, timer);
     }
 
     /**
@@ -91,7 +106,59 @@ public class TFTPUtils {
         byte[] packet = TFTPPacket.readPacket(filename);
         DatagramPacket send = new DatagramPacket(packet, packet.length, addr, port);
         socket.send(send);
-        recvFile(socket, filename);
+        recvFile(socket, filename, send);
+    }
+
+    /**
+     * Reads a negotiated option from the server's first reply.
+     * An OACK carries the values the server accepted, any other reply means the server
+     * ignored the options and the RFC 1350 default applies. A value that is not a number
+     * or is out of range is answered with ERROR 8 (RFC 2347), which ends the transfer.
+     *
+     * @param socket The socket used to answer a bad OACK.
+     * @param packet The first packet received from the server.
+     * @param name The option name.
+     * @param def The value to use if the server did not acknowledge the option.
+     * @param min The smallest valid value.
+     * @param max The largest valid value.
+     * @return The value to use for the transfer.
+     * @throws IOException If the value is invalid or the ERROR cannot be sent.
+     */
+    private static int option(DatagramSocket socket, DatagramPacket packet, String name, int def, int min, int max) throws IOException {
+        if (packet.getData()[1] != Constants.OACK) {
+            return def;
+        }
+
+        Map<String, String> options = TFTPPacket.parseOack(packet.getData(), packet.getLength());
+        String value = options.get(name);
+        if (value == null) {
+            return def;
+        }
+        try {
+            int parsed = Integer.parseInt(value);
+            if (parsed >= min && parsed <= max) {
+                return parsed;
+            }
+        } catch (NumberFormatException e) {
+            // Refused below, the same as a value out of range
+        }
+        sendError(socket, packet.getAddress(), packet.getPort(), Constants.ERR_OPTION, "Invalid " + name);
+        throw new IOException("Invalid " + name + " in OACK: " + value);
+    }
+
+    /**
+     * Reads the file size from the server's OACK (RFC 2349).
+     *
+     * @param packet The OACK.
+     * @return The size in bytes, or -1 if the server did not send a valid one.
+     */
+    private static long transferSize(DatagramPacket packet) {
+        String value = TFTPPacket.parseOack(packet.getData(), packet.getLength()).get(Constants.OPT_TSIZE);
+        try {
+            return value != null ? Long.parseLong(value) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
     }
 
     /**
@@ -99,11 +166,11 @@ public class TFTPUtils {
      * Checks the received packet for errors and valid acknowledgment.
      *
      * @param socket The socket used to receive the acknowledgment.
+     * @return The block number carried by the acknowledgment.
      * @throws IOException If an IO error occurs or an error packet is received.
      */
-    private static void recvAck(DatagramSocket socket) throws IOException {
+    private static short recvAck(DatagramSocket socket) throws IOException {
         byte[] buf = new byte[Constants.MAX_LEN];
-        socket.setSoTimeout(Constants.TIMEOUT);
         DatagramPacket packet = new DatagramPacket(buf, buf.length);
 
         socket.receive(packet);
@@ -117,73 +184,384 @@ public class TFTPUtils {
         if (data[1] != Constants.ACK) {
             System.out.println("Invalid Acknowledgement: " + data[1]);
         }
+        return (short) (((data[2] & 0xFF) << 8) | (data[3] & 0xFF));
+    }
+
+    /**
+     * Waits for an acknowledgment that falls inside the current window.
+     * The 16-bit block number is unwrapped to the sequence number nearest the last
+     * acknowledged block, and stale acknowledgments from earlier windows are skipped.
+     *
+     * @param socket The socket used to receive the acknowledgment.
+     * @param base The oldest unacknowledged block.
+     * @param next The block after the last one sent.
+     * @param rollover The block number that follows 65535 on the wire.
+     * @param repeats Whether a repeated acknowledgment for the block before base is returned rather than skipped.
+     * @return The highest block the server acknowledged.
+     * @throws IOException If an IO error occurs, the wait times out or an error packet is received.
+     */
+    private static long awaitAck(DatagramSocket socket, long base, long next, int rollover, boolean repeats) throws IOException {
+        while (true) {
+            long acked = BlockSequence.fromWire(recvAck(socket), base - 1, rollover);
+            if (acked >= (repeats ? base - 1 : base) && acked < next) {
+                return acked;
+            }
+        }
     }
 
     /**
      * Receives file from the server and writes it to incoming folder.
-     * The method waits for data packets from the server, writes data to a file, and sends ACK for each block.
+     * The method waits for data packets from the server, writes them to the file and ACKs the
+     * last block of each window, after acknowledging any OACK with ACK 0. A gap or a timeout
+     * is answered with an ACK for the last block received in order, so the server resends
+     * from there. A multicast transfer is handed to recvMulticast, and a transfer that does
+     * not complete leaves no file behind.
      *
      * @param socket The socket used to receive data.
      * @param fileName The name of file to save the received data.
+     * @param request The read request, resent if the server does not answer.
      * @throws IOException If an IO error occurs while receiving or writing the file.
      */
-    private static void recvFile(DatagramSocket socket, String fileName) throws IOException {
+    private static void recvFile(DatagramSocket socket, String fileName, DatagramPacket request) throws IOException {
         File incomingDir = new File(Constants.INCOMING);
         if (!incomingDir.exists()) {
             incomingDir.mkdirs();
         }
 
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        FileOutputStream fileOutput = null;
+        File target = new File(Constants.INCOMING + fileName);
+        RandomAccessFile output = null;
+        NetasciiDecoder decoder = null;
+        boolean netascii = Constants.MODE_NETASCII.equals(Constants.MODE);
+        boolean complete = false;
 
         try {
-            short block = 1;
+            long block = 1;
+            int blockSize = Constants.LEN;
+            int windowSize = 1;
+            int rollover = 0;
+            int inWindow = 0;
+            boolean gapAcked = false;
+            RetransmitTimer timer = new RetransmitTimer();
+            long ackedAt = System.nanoTime();
+            boolean ackRepeated = false;
             boolean finished = false;
-            boolean receivedData = false;
+            InetAddress serverAddr = null;
+            int serverPort = -1;
+            byte[] buf = new byte[Math.max(Constants.BLKSIZE, Constants.LEN) + 4];
+            ByteBuffer payload = ByteBuffer.wrap(buf, 4, buf.length - 4).slice();
 
             while (!finished) {
-                byte[] buf = new byte[Constants.MAX_LEN];
-
                 DatagramPacket packet = new DatagramPacket(buf, buf.length);
-                socket.receive(packet);
+                try {
+                    socket.setSoTimeout(timer.timeout());
+                    socket.receive(packet);
+                } catch (SocketTimeoutException e) {
+                    if (!timer.backoff()) {
+                        throw e;
+                    }
+                    if (serverAddr == null) {
+                        socket.send(request);
+                    } else {
+                        sendAck(socket, serverAddr, serverPort, BlockSequence.toWire(block - 1, rollover));
+                    }
+                    inWindow = 0;
+                    ackRepeated = true;
+                    continue;
+                }
 
                 if (isErrorPacket(packet.getData())) {
                     handleErrorPacket(packet);
                     return;
                 }
 
-                if (!receivedData) {
-                    receivedData = true;
+                serverAddr = packet.getAddress();
+                serverPort = packet.getPort();
+
+                if (packet.getData()[1] == Constants.OACK) {
+                    blockSize = option(socket, packet, Constants.OPT_BLKSIZE, Constants.LEN, Constants.MIN_BLKSIZE, Constants.MAX_BLKSIZE);
+                    windowSize = option(socket, packet, Constants.OPT_WINDOWSIZE, 1, 1, Constants.MAX_WINDOWSIZE);
+                    rollover = option(socket, packet, Constants.OPT_ROLLOVER, 0, 0, 1);
+
+                    long tsize = transferSize(packet);
+                    String multicast = TFTPPacket.parseOack(packet.getData(), packet.getLength()).get(Constants.OPT_MULTICAST);
+                    if (multicast != null) {
+                        recvMulticast(socket, fileName, serverAddr, serverPort, blockSize, windowSize, rollover, tsize, multicast);
+                        return;
+                    }
+                    if (output == null && tsize >= 0) {
+                        output = new RandomAccessFile(target, "rw");
+                        output.setLength(tsize);
+                    }
+                    // Room for a whole window, so a burst is not dropped by the socket
+                    socket.setReceiveBufferSize(Math.max(socket.getReceiveBufferSize(), 2 * windowSize * (blockSize + 4)));
+                    sendAck(socket, serverAddr, serverPort, (short) 0);
+                    ackedAt = System.nanoTime();
+                    ackRepeated = false;
+                    continue;
+                }
+
+                if (output == null) {
+                    output = new RandomAccessFile(target, "rw");
+                }
+                if (netascii && decoder == null) {
+                    decoder = new NetasciiDecoder(output.getChannel());
                 }
 
                 short recvBlock = (short) (((packet.getData()[2] & 0xFF) << 8) | (packet.getData()[3] & 0xFF));
-                if (recvBlock == block) {
+                if (recvBlock == BlockSequence.toWire(block, rollover)) {
                     int size = packet.getLength() - 4;
-                    outputStream.write(packet.getData(), 4, size);
-                    sendAck(socket, packet.getAddress(), packet.getPort(), block);
-                    block++;
+                    if (decoder != null) {
+                        decoder.write(buf, 4, size, payload);
+                    } else {
+                        output.write(buf, 4, size);
+                    }
+
+                    // The first block after an ACK measures the round trip, unless the ACK was repeated
+                    if (inWindow == 0 && !ackRepeated) {
+                        timer.sample(System.nanoTime() - ackedAt);
+                    }
+                    timer.reset();
+                    inWindow++;
+                    gapAcked = false;
 
-                    if (size < Constants.LEN) {
+                    if (size < blockSize) {
+                        sendAck(socket, serverAddr, serverPort, recvBlock);
                         finished = true;
+                    } else if (inWindow == windowSize) {
+                        sendAck(socket, serverAddr, serverPort, recvBlock);
+                        inWindow = 0;
+                        ackedAt = System.nanoTime();
+                        ackRepeated = false;
                     }
+                    block++;
+                } else if (!gapAcked) {
+                    sendAck(socket, serverAddr, serverPort, BlockSequence.toWire(block - 1, rollover));
+                    inWindow = 0;
+                    ackRepeated = true;
+                    gapAcked = true;
                 }
             }
 
-            if (receivedData) {
-                fileOutput = new FileOutputStream(Constants.INCOMING + fileName);
-                fileOutput.write(outputStream.toByteArray());
-                System.out.println("File Received: " + fileName);
+            if (decoder != null) {
+                decoder.finish();
             }
+            // Drops whatever was preallocated past the end, and the tail of any older copy
+            output.setLength(output.getFilePointer());
+            complete = true;
+            System.out.println("File Received: " + fileName);
         } finally {
+            if (output != null) {
+                output.close();
+                if (!complete) {
+                    target.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Picks the interface to join a multicast group on: the one named by
+     * -Dtftp.multicast.interface, otherwise the one the route to the group goes out of,
+     * which is where the server's datagrams arrive when both use the default route.
+     * Failing that, the first interface that is up and supports multicast.
+     *
+     * @param group The multicast group.
+     * @param port The group's port.
+     * @return The interface to join on.
+     * @throws IOException If the named interface does not exist or no interface can be used.
+     */
+    private static NetworkInterface multicastInterface(InetAddress group, int port) throws IOException {
+        if (Constants.MCAST_INTERFACE != null) {
+            NetworkInterface named = NetworkInterface.getByName(Constants.MCAST_INTERFACE);
+            if (named == null) {
+                throw new SocketException("No network interface " + Constants.MCAST_INTERFACE);
+            }
+            return named;
+        }
+        try (DatagramSocket probe = new DatagramSocket()) {
+            probe.connect(group, port);
+            NetworkInterface routed = NetworkInterface.getByInetAddress(probe.getLocalAddress());
+            if (routed != null) {
+                return routed;
+            }
+        } catch (SocketException e) {
+            // No route to the group, look for any interface below
+        }
+        for (NetworkInterface candidate : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            if (candidate.isUp() && candidate.supportsMulticast()) {
+                return candidate;
+            }
+        }
+        throw new SocketException("No network interface for multicast group " + group.getHostAddress());
+    }
+
+    /**
+     * Receives a file sent to a multicast group (RFC 2090).
+     * The client joins the group named in the server's OACK and keeps every block it sees,
+     * in whatever order, writing each at its place in the file. Only the master client
+     * acknowledges: at the end of each window it ACKs the last block it has in order, so the
+     * server resends from its first gap. A client that is not master just listens until the
+     * server makes it master with another OACK, and ACKs the last block once it has the whole
+     * file so the server stops waiting for it. A listener only keeps blocks when the tsize
+     * in the OACK shows the file is within one cycle of 16-bit block numbers; for larger
+     * files it waits to become master.
+     *
+     * @param socket The unicast socket the request was sent from.
+     * @param fileName The name of the file to save the received data.
+     * @param serverAddr The address of the server.
+     * @param serverPort The server's transfer ID.
+     * @param blockSize The negotiated block size.
+     * @param windowSize The negotiated window size.
+     * @param rollover The block number that follows 65535 on the wire.
+     * @param tsize The file size from the OACK, or -1 if the server did not send it.
+     * @param multicast The value of the multicast option: address, port and master flag.
+     * @throws IOException If an IO error occurs, the option is malformed or the server goes quiet.
+     */
+    private static void recvMulticast(DatagramSocket socket, String fileName, InetAddress serverAddr, int serverPort,
+                                      int blockSize, int windowSize, int rollover, long tsize, String multicast) throws IOException {
+        String[] fields = multicast.split(",");
+        if (fields.length != 3) {
+            throw new IOException("Invalid multicast option: " + multicast);
+        }
+        InetAddress group = InetAddress.getByName(fields[0]);
+        int groupPort = Integer.parseInt(fields[1]);
+        boolean master = "1".equals(fields[2]);
+
+        File target = new File(Constants.INCOMING + fileName);
+        BlockingQueue<DatagramPacket> inbox = new LinkedBlockingQueue<>();
+        int previousTimeout = socket.getSoTimeout();
+        boolean complete = false;
+
+        try (MulticastSocket groupSocket = new MulticastSocket(groupPort);
+             RandomAccessFile file = new RandomAccessFile(target, "rw")) {
+            if (tsize >= 0) {
+                file.setLength(tsize);
+            }
+            groupSocket.setReceiveBufferSize(Math.max(groupSocket.getReceiveBufferSize(), 2 * windowSize * (blockSize + 4)));
+            groupSocket.joinGroup(new InetSocketAddress(group, groupPort), multicastInterface(group, groupPort));
+
+            PacketPump unicast = new PacketPump(socket, inbox, Constants.MAX_LEN, "tftp-unicast");
+            PacketPump groupPump = new PacketPump(groupSocket, inbox, blockSize + 4, "tftp-multicast");
+            unicast.start();
+            groupPump.start();
+
             try {
-                if (outputStream != null) {
-                    outputStream.close();
+                BitSet have = new BitSet();
+                long contiguous = 0;
+                long lastBlock = -1;
+                long length = 0;
+                long lastSeen = 0;
+                long windowEnd = windowSize;
+                // Past one cycle of wire numbers a block seen mid-stream could belong to any cycle,
+                // so a listener keeps blocks only when the whole file fits in one
+                boolean placeable = tsize >= 0 && tsize / blockSize < (rollover == 1 ? 0xFFFF : 0x10000) - 1;
+                RetransmitTimer timer = new RetransmitTimer();
+
+                if (master) {
+                    sendAck(socket, serverAddr, serverPort, (short) 0);
+                }
+
+                while (lastBlock == -1 || contiguous < lastBlock) {
+                    DatagramPacket packet;
+                    try {
+                        packet = inbox.poll(timer.timeout(), TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted");
+                    }
+
+                    if (packet == null) {
+                        if (!timer.backoff()) {
+                            throw new SocketTimeoutException("Multicast transfer timed out");
+                        }
+                        if (master) {
+                            sendAck(socket, serverAddr, serverPort, BlockSequence.toWire(contiguous, rollover));
+                            windowEnd = contiguous + windowSize;
+                        }
+                        continue;
+                    }
+
+                    // Group traffic leaves from the server's multicast interface, so DATA is matched on the port alone
+                    byte[] data = packet.getData();
+                    boolean fromServer = packet.getPort() == serverPort
+                            && (data[1] == Constants.DATA || serverAddr.equals(packet.getAddress()));
+                    if (!fromServer || packet.getLength() < 4) {
+                        continue;
+                    }
+
+                    if (isErrorPacket(data)) {
+                        handleErrorPacket(packet);
+                        return;
+                    }
+
+                    if (data[1] == Constants.OACK) {
+                        String value = TFTPPacket.parseOack(data, packet.getLength()).get(Constants.OPT_MULTICAST);
+                        if (value != null && value.endsWith(",1")) {
+                            master = true;
+                            sendAck(socket, serverAddr, serverPort, BlockSequence.toWire(contiguous, rollover));
+                            windowEnd = contiguous + windowSize;
+                        }
+                        continue;
+                    }
+
+                    if (data[1] != Constants.DATA) {
+                        continue;
+                    }
+
+                    if (!master && !placeable) {
+                        timer.reset();
+                        continue;
+                    }
+
+                    // The server sends the master the window after its last ACK, so its blocks are
+                    // unwrapped near the blocks it has in order; a listener's near the last one seen
+                    short wire = (short) (((data[2] & 0xFF) << 8) | (data[3] & 0xFF));
+                    long block;
+                    if (master) {
+                        block = BlockSequence.fromWire(wire, contiguous, rollover);
+                    } else {
+                        block = lastSeen == 0 ? wire & 0xFFFF : BlockSequence.fromWire(wire, lastSeen, rollover);
+                    }
+                    if (block < 1 || block > Integer.MAX_VALUE) {
+                        continue;
+                    }
+                    lastSeen = block;
+                    timer.reset();
+
+                    int size = packet.getLength() - 4;
+                    if (!have.get((int) block)) {
+                        file.seek((block - 1) * blockSize);
+                        file.write(data, 4, size);
+                        have.set((int) block);
+                        if (size < blockSize) {
+                            lastBlock = block;
+                            length = (block - 1) * blockSize + size;
+                        }
+                        while (have.get((int) contiguous + 1)) {
+                            contiguous++;
+                        }
+                    }
+
+                    if (master && (block >= windowEnd || block == lastBlock || contiguous == lastBlock)) {
+                        sendAck(socket, serverAddr, serverPort, BlockSequence.toWire(contiguous, rollover));
+                        windowEnd = contiguous + windowSize;
+                    }
                 }
-                if (fileOutput != null) {
-                    fileOutput.close();
+
+                if (!master) {
+                    sendAck(socket, serverAddr, serverPort, BlockSequence.toWire(lastBlock, rollover));
                 }
-            } catch (IOException e) {
-                System.out.println("Error closing streams: " + e.getMessage());
+                file.setLength(length);
+                complete = true;
+                System.out.println("File Received: " + fileName);
+            } finally {
+                groupPump.stop();
+                unicast.stop();
+                socket.setSoTimeout(previousTimeout);
+            }
+        } finally {
+            if (!complete) {
+                target.delete();
             }
         }
     }
@@ -204,53 +582,145 @@ public class TFTPUtils {
         socket.send(sendP);
     }
 
+    /**
+     * Sends an error packet to the server, abandoning the transfer.
+     *
+     * @param socket The socket used to send the error.
+     * @param addr The server's address.
+     * @param port The server's transfer ID.
+     * @param code The TFTP error code.
+     * @param msg The error message.
+     * @throws IOException If an IO error occurs while sending the error.
+     */
+    private static void sendError(DatagramSocket socket, InetAddress addr, int port, short code, String msg) throws IOException {
+        byte[] packet = TFTPPacket.errorPacket(code, msg);
+        socket.send(new DatagramPacket(packet, packet.length, addr, port));
+    }
+
     /**
      * Waits for the first acknowledgment after sending a request to the server.
-     * This ACK is used to begin the file transferring.
+     * This ACK is used to begin the file transferring. The request is sent, and resent
+     * each time the retransmission timer expires without an answer.
      *
      * @param socket The socket used to receive the first ACK.
-     * @throws IOException If an IO error occurs or if an invalid ACK is received.
+     * @param request The write request to send.
+     * @param timer The transfer's retransmission timer.
+     * @return The ACK or OACK packet; its port is the server's transfer ID.
+     * @throws IOException If an IO error occurs, the server never answers, or an error packet is received.
      */
-    private static void firstAck(DatagramSocket socket) throws IOException {
-        byte[] buf = new byte[4];
+    private static DatagramPacket firstAck(DatagramSocket socket, DatagramPacket request, RetransmitTimer timer) throws IOException {
+        byte[] buf = new byte[Constants.MAX_LEN];
         DatagramPacket packet = new DatagramPacket(buf, buf.length);
-        socket.receive(packet);
+
+        while (true) {
+            socket.send(request);
+            long sentAt = System.nanoTime();
+            try {
+                socket.setSoTimeout(timer.timeout());
+                socket.receive(packet);
+                timer.sample(System.nanoTime() - sentAt);
+                timer.reset();
+                break;
+            } catch (SocketTimeoutException e) {
+                if (!timer.backoff()) {
+                    throw e;
+                }
+            }
+        }
 
         byte[] data = packet.getData();
-        if (data[1] != Constants.ACK) {
+        if (isErrorPacket(data)) {
+            handleErrorPacket(packet);
+            throw new IOException("Server Error");
+        }
+
+        if (data[1] != Constants.ACK && data[1] != Constants.OACK) {
             System.out.println("Invalid ACK");
         }
+        return packet;
     }
 
     /**
      * Sends the file to the server in blocks.
-     * This method reads the file, creates data packets, sends them to server, and waits for ACK.
+     * This method reads the file, creates data packets and sends up to a window of them
+     * before waiting for an ACK. The next window starts after the block the server
+     * acknowledged, and a timeout resends the window from the oldest unacknowledged block.
+     * Timeouts adapt to the measured round trip time and back off on each retry.
+     * Under -Dtftp.mode=netascii each block is translated as it is read, see NetasciiEncoder.
      *
      * @param addr The address of the server.
      * @param port The port of the server.
      * @param socket The socket used to send data.
      * @param filename The name of the file to be sent.
+     * @param blockSize The negotiated block size.
+     * @param windowSize The negotiated window size.
+     * @param rollover The block number that follows 65535 on the wire.
+     * @param timer The transfer's retransmission timer.
      */
-    private static void sendFile(InetAddress addr, int port, DatagramSocket socket, String filename) {
+    private static void sendFile(InetAddress addr, int port, DatagramSocket socket, String filename, int blockSize, int windowSize, int rollover, RetransmitTimer timer) {
         String path = Constants.OUTGOING + filename;
-        try (FileInputStream input = new FileInputStream(path)) {
-            short block = 1;
-            byte[] buf = new byte[Constants.LEN];
-            int read;
+        try (RandomAccessFile input = new RandomAccessFile(path, "r")) {
+            long length = input.length();
+            NetasciiEncoder encoder = null;
+            long lastBlock = length / blockSize + 1;
+            if (Constants.MODE_NETASCII.equals(Constants.MODE)) {
+                // Found once a translated block comes up short
+                encoder = new NetasciiEncoder(input.getChannel(), blockSize, windowSize);
+                lastBlock = -1;
+            }
+            long base = 1;
+            long sent = 1;
+            // The window already resent for a repeated ACK
+            long gapResent = 0;
+            byte[] buf = new byte[blockSize];
+
+            while (true) {
+                long next = base;
+                boolean retransmit = base < sent;
+                while (next < base + windowSize && (lastBlock == -1 || next <= lastBlock)) {
+                    int size;
+                    if (encoder != null) {
+                        size = encoder.readBlock(next, buf, 0, blockSize);
+                        if (size < blockSize) {
+                            lastBlock = next;
+                        }
+                    } else {
+                        long off = (next - 1) * blockSize;
+                        size = (int) Math.min(blockSize, length - off);
+                        input.seek(off);
+                        input.readFully(buf, 0, size);
+                    }
+                    sendData(addr, port, BlockSequence.toWire(next, rollover), buf, size, socket);
+                    next++;
+                }
+                sent = Math.max(sent, next);
+                long sentAt = System.nanoTime();
+
+                long acked;
+                try {
+                    socket.setSoTimeout(timer.timeout());
+                    acked = awaitAck(socket, base, next, rollover, windowSize > 1 && gapResent != base);
+                } catch (SocketTimeoutException e) {
+                    if (!timer.backoff()) {
+                        throw e;
+                    }
+                    continue;
+                }
 
-            while ((read = input.read(buf, 0, Constants.LEN)) != -1) {
-                sendData(addr, port, block, buf, read, socket);
-                recvAck(socket);
-                block++;
+                if (acked >= base) {
+                    if (!retransmit) {
+                        timer.sample(System.nanoTime() - sentAt);
+                    }
+                    timer.reset();
+                }
 
-                if (read < Constants.LEN) {
+                if (acked == lastBlock) {
                     break;
                 }
-            }
-
-            if (read == Constants.LEN) {
-                sendData(addr, port, block, new byte[0], 0, socket);
-                recvAck(socket);
+                if (acked == base - 1) {
+                    gapResent = base;
+                }
+                base = acked + 1;
             }
 
             System.out.println("File Sent: " + filename);
@@ -0,0 +1,232 @@
+package TFTP_UDP_Server;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class BlockCache {
+    private static final BlockCache SHARED = new BlockCache(Constants.CACHE_BYTES);
+
+    private final ConcurrentHashMap<Key, Block> blocks = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, AtomicLong> generations = new ConcurrentHashMap<>();
+    private final AtomicLong used = new AtomicLong();
+    private final ReentrantLock evictLock = new ReentrantLock();
+    private final long budget;
+    private Iterator<Map.Entry<Key, Block>> hand;
+
+    /**
+     * Creates a cache that holds at most the given number of data bytes.
+     *
+     * @param budget The byte budget, 0 to disable caching.
+     */
+    public BlockCache(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Gets the process-wide cache shared by all read sessions.
+     *
+     * @return The shared cache.
+     */
+    public static BlockCache shared() {
+        return SHARED;
+    }
+
+    /**
+     * Checks whether the cache holds anything at all.
+     *
+     * @return true if the byte budget is above zero.
+     */
+    public boolean isEnabled() {
+        return budget > 0;
+    }
+
+    /**
+     * Gets the current generation of a file. The generation is odd while the file is being
+     * replaced, and readers that see it change while they open the file must not use the cache.
+     *
+     * @param file The absolute path of the file.
+     * @return The file's generation.
+     */
+    public long generation(String file) {
+        AtomicLong gen = generations.get(file);
+        return gen == null ? 0 : gen.get();
+    }
+
+    /**
+     * Marks a file as being replaced, called just before the new file is moved into place.
+     *
+     * @param file The absolute path of the file.
+     */
+    public void beginUpdate(String file) {
+        generations.computeIfAbsent(file, f -> new AtomicLong()).incrementAndGet();
+    }
+
+    /**
+     * Marks the replacement of a file as finished and drops its cached blocks.
+     *
+     * @param file The absolute path of the file.
+     */
+    public void endUpdate(String file) {
+        generations.get(file).incrementAndGet();
+
+        for (Map.Entry<Key, Block> entry : blocks.entrySet()) {
+            if (entry.getKey().file.equals(file) && blocks.remove(entry.getKey(), entry.getValue())) {
+                used.addAndGet(-entry.getValue().data.length);
+            }
+        }
+    }
+
+    /**
+     * Copies a cached block into a buffer.
+     *
+     * @param key The block to look up.
+     * @param dst The buffer to copy into.
+     * @param off The position in dst to copy to.
+     * @return The length of the block, or -1 if it is not cached.
+     */
+    public int get(Key key, byte[] dst, int off) {
+        Block block = blocks.get(key);
+        if (block == null) {
+            return -1;
+        }
+
+        block.referenced = true;
+        System.arraycopy(block.data, 0, dst, off, block.data.length);
+        return block.data.length;
+    }
+
+    /**
+     * Adds a block read from disk, evicting older blocks if the budget is exceeded.
+     *
+     * @param key The block being added.
+     * @param src The buffer holding the block.
+     * @param off The position of the block in src.
+     * @param len The length of the block.
+     */
+    public void put(Key key, byte[] src, int off, int len) {
+        if (len > budget) {
+            return;
+        }
+
+        byte[] data = new byte[len];
+        System.arraycopy(src, off, data, 0, len);
+
+        if (blocks.putIfAbsent(key.copy(), new Block(data)) == null && used.addAndGet(len) > budget) {
+            evict();
+        }
+    }
+
+    /**
+     * Evicts blocks with a CLOCK sweep until the cache is back under budget.
+     * Blocks read since the hand last passed get a second chance. Only one thread sweeps
+     * at a time, others carry on without waiting.
+     */
+    private void evict() {
+        if (!evictLock.tryLock()) {
+            return;
+        }
+
+        try {
+            int scanned = 0;
+            int limit = 2 * blocks.size() + 1;
+
+            while (used.get() > budget && scanned++ < limit) {
+                if (hand == null || !hand.hasNext()) {
+                    hand = blocks.entrySet().iterator();
+                    if (!hand.hasNext()) {
+                        return;
+                    }
+                }
+
+                Map.Entry<Key, Block> entry = hand.next();
+                Block block = entry.getValue();
+                if (block.referenced) {
+                    block.referenced = false;
+                } else if (blocks.remove(entry.getKey(), block)) {
+                    used.addAndGet(-block.data.length);
+                }
+            }
+        } finally {
+            evictLock.unlock();
+        }
+    }
+
+    // A cached block and its CLOCK reference bit.
+    private static class Block {
+        private final byte[] data;
+        private volatile boolean referenced = true;
+
+        private Block(byte[] data) {
+            this.data = data;
+        }
+    }
+
+    /**
+     * Identifies a block of a particular version of a file at a particular block size.
+     * A read session keeps one key and moves it between blocks with setBlock, so lookups do not allocate.
+     */
+    public static class Key {
+        private final String file;
+        private final long generation;
+        private final long modified;
+        private final int blockSize;
+        private long block;
+
+        /**
+         * Creates a key for a file as it was when a read session opened it.
+         *
+         * @param file The absolute path of the file.
+         * @param generation The generation of the file when it was opened.
+         * @param modified The last modified time of the file.
+         * @param blockSize The block size of the session.
+         */
+        public Key(String file, long generation, long modified, int blockSize) {
+            this.file = file;
+            this.generation = generation;
+            this.modified = modified;
+            this.blockSize = blockSize;
+        }
+
+        /**
+         * Points the key at another block of the same file.
+         *
+         * @param block The block number.
+         * @return This key.
+         */
+        public Key setBlock(long block) {
+            this.block = block;
+            return this;
+        }
+
+        /**
+         * Copies the key, for a map entry or for another thread to move between blocks.
+         *
+         * @return A new key for the same block.
+         */
+        Key copy() {
+            return new Key(file, generation, modified, blockSize).setBlock(block);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return block == k.block && blockSize == k.blockSize && generation == k.generation
+                    && modified == k.modified && file.equals(k.file);
+        }
+
+        @Override
+        public int hashCode() {
+            int h = file.hashCode();
+            h = 31 * h + (int) (block ^ (block >>> 32));
+            h = 31 * h + blockSize;
+            h = 31 * h + (int) (modified ^ (modified >>> 32));
+            return 31 * h + (int) generation;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package TFTP_UDP_Server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BlockPrefetcher {
+    private static final ExecutorService IO = createExecutor();
+
+    private final BlockReader reader;
+    private final BlockCache.Key key;
+    private final int blockSize;
+    private final int depth;
+    private final boolean wait;
+    private final Metrics metrics = Metrics.shared();
+
+    // Block b sits in slot b % depth; blocks and lengths are published by the write to loaded
+    private final byte[][] slots;
+    private final ByteBuffer[] views;
+    private final long[] blocks;
+    private final int[] lengths;
+
+    // The last block loaded into the ring, and the last block handed to the session
+    private volatile long loaded;
+    private volatile long consumed;
+    // Set at the end of the file, on a read error or on close; nothing more is loaded
+    private volatile boolean done;
+    private volatile boolean waiting;
+    private final AtomicBoolean pumping = new AtomicBoolean();
+    private final Runnable pump = this::pump;
+
+    /**
+     * Creates the read-ahead for one session and starts loading its first blocks, which
+     * overlaps them with the OACK's round trip. Up to depth blocks past the last one the
+     * session took are loaded into a ring on the shared I/O threads, one task per session
+     * at a time, so the send path finds each new block in memory instead of waiting on
+     * the disk. Blocks the session asks for again, to resend them, come from the block
+     * cache or the disk as before.
+     *
+     * @param reader The reader whose file is loaded.
+     * @param key The session's cache key, or null if the session bypasses the cache. Used
+     *            only by the I/O threads.
+     * @param blockSize The negotiated block size.
+     * @param depth The number of blocks to keep loaded ahead.
+     * @param wait Whether the session waits for a block that is being loaded. Event loops
+     *             must not wait, and read it themselves instead.
+     */
+    public BlockPrefetcher(BlockReader reader, BlockCache.Key key, int blockSize, int depth, boolean wait) {
+        this.reader = reader;
+        this.key = key;
+        this.blockSize = blockSize;
+        this.depth = depth;
+        this.wait = wait;
+        this.slots = new byte[depth][blockSize];
+        this.views = new ByteBuffer[depth];
+        for (int i = 0; i < depth; i++) {
+            views[i] = ByteBuffer.wrap(slots[i]);
+        }
+        this.blocks = new long[depth];
+        this.lengths = new int[depth];
+        kick();
+    }
+
+    /**
+     * Creates the I/O threads shared by every session's read-ahead.
+     *
+     * @return The executor.
+     */
+    private static ExecutorService createExecutor() {
+        AtomicInteger threadId = new AtomicInteger();
+        return Executors.newFixedThreadPool(Math.max(1, Constants.IO_THREADS), task -> {
+            Thread thread = new Thread(task, "tftp-io-" + threadId.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Copies the next block out of the ring, if it has been loaded, and makes room for
+     * another. Only the block after the last one taken can come from the ring.
+     *
+     * @param block The block number.
+     * @param dst The buffer to copy into.
+     * @param off The position in dst to copy to.
+     * @return The length of the block, or -1 if the caller must read it itself.
+     */
+    public int take(long block, byte[] dst, int off) {
+        if (block != consumed + 1) {
+            if (block > consumed) {
+                skip(block);
+            }
+            return -1;
+        }
+        if (loaded < block && wait && !done) {
+            await(block);
+        }
+        int slot = (int) (block % depth);
+        if (loaded < block || blocks[slot] != block) {
+            skip(block);
+            return -1;
+        }
+        int length = lengths[slot];
+        System.arraycopy(slots[slot], 0, dst, off, length);
+        consumed = block;
+        metrics.prefetch(true);
+        kick();
+        return length;
+    }
+
+    /**
+     * Stops loading. A load already running finishes or fails on the closed file.
+     */
+    public void close() {
+        done = true;
+    }
+
+    /**
+     * Moves past a block the session reads itself, so it is not loaded again.
+     *
+     * @param block The block number.
+     */
+    private void skip(long block) {
+        consumed = block;
+        metrics.prefetch(false);
+        kick();
+    }
+
+    /**
+     * Waits until a block has been loaded or loading has stopped.
+     *
+     * @param block The block number.
+     */
+    private synchronized void await(long block) {
+        waiting = true;
+        try {
+            while (loaded < block && !done) {
+                wait(100);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            waiting = false;
+        }
+    }
+
+    /**
+     * Starts a load on the I/O threads unless one is running already.
+     */
+    private void kick() {
+        if (!done && pumping.compareAndSet(false, true)) {
+            IO.execute(pump);
+        }
+    }
+
+    /**
+     * Loads blocks into the ring until it is depth blocks ahead of the session. A slot is
+     * only reused once the session has taken the block in it.
+     */
+    private void pump() {
+        try {
+            while (!done) {
+                long next = Math.max(loaded, consumed) + 1;
+                if (next > consumed + depth) {
+                    break;
+                }
+                int slot = (int) (next % depth);
+                int length = reader.load(key, next, slots[slot], 0, views[slot]);
+                lengths[slot] = length;
+                blocks[slot] = next;
+                loaded = next;
+                if (length < blockSize) {
+                    done = true;
+                }
+                wake();
+            }
+        } catch (IOException e) {
+            done = true;
+            wake();
+        } finally {
+            pumping.set(false);
+        }
+        // The session may have taken a block after the last check
+        if (Math.max(loaded, consumed) + 1 <= consumed + depth) {
+            kick();
+        }
+    }
+
+    private void wake() {
+        if (waiting) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package TFTP_UDP_Server;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+public class BlockReader implements Closeable {
+    private final FileChannel channel;
+    private final int blockSize;
+    private final byte[] packet;
+    private final ByteBuffer payload;
+    private final BlockCache cache = BlockCache.shared();
+    private final BlockCache.Key key;
+    private final NetasciiEncoder encoder;
+    private BlockPrefetcher prefetcher;
+
+    /**
+     * Opens a file for the lifetime of a read session.
+     * Blocks are read straight into the payload area of the given packet buffer,
+     * so reading a block neither reopens the file nor allocates.
+     * Blocks are served from the shared block cache when possible. If the file is being
+     * replaced while it is opened, the session bypasses the cache.
+     * Missing files are turned away by the file index before the filesystem is touched.
+     *
+     * @param filename Name of the file in the served directory.
+     * @param blockSize The negotiated block size.
+     * @param packet The DATA packet buffer, at least blockSize + 4 bytes long.
+     * @throws IOException If the file does not exist or cannot be opened.
+     */
+    public BlockReader(String filename, int blockSize, byte[] packet) throws IOException {
+        this(filename, blockSize, packet, false, 1);
+    }
+
+    /**
+     * Opens a file for a read session, translating it to netascii if asked. Translated
+     * blocks no longer sit at fixed places in the file, so they are not cached.
+     *
+     * @param filename Name of the file in the served directory.
+     * @param blockSize The negotiated block size.
+     * @param packet The DATA packet buffer, at least blockSize + 4 bytes long.
+     * @param netascii Whether line ends are translated (RFC 764).
+     * @param window The negotiated window size, the blocks a netascii read can resend.
+     * @throws IOException If the file does not exist or cannot be opened; FileNotFoundException if it does not exist.
+     */
+    public BlockReader(String filename, int blockSize, byte[] packet, boolean netascii, int window) throws IOException {
+        FileIndex.Entry entry = FileIndex.shared().lookup(filename);
+        if (entry == null) {
+            throw new FileNotFoundException("File not found: " + filename);
+        }
+        Path path = Paths.get(Constants.DIRECTORY, filename);
+        String file = path.toAbsolutePath().normalize().toString();
+        long generation = cache.generation(file);
+
+        try {
+            this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException("File not found: " + filename);
+        }
+        this.blockSize = blockSize;
+        this.packet = packet;
+        this.payload = ByteBuffer.wrap(packet, 4, blockSize).slice();
+
+        boolean stable = (generation & 1) == 0 && generation == cache.generation(file);
+        this.encoder = netascii ? new NetasciiEncoder(channel, blockSize, window) : null;
+        if (cache.isEnabled() && stable && !netascii) {
+            this.key = new BlockCache.Key(file, generation, entry.getModified(), blockSize);
+        } else {
+            this.key = null;
+        }
+    }
+
+    /**
+     * Reads a block into the packet buffer after its 4-byte header.
+     * Blocks are numbered from 1, so block n starts at offset (n - 1) * blockSize.
+     *
+     * @param block The block number.
+     * @return The number of bytes read, less than the block size for the final block.
+     * @throws IOException If an error occurs while reading the file.
+     */
+    public int readBlock(long block) throws IOException {
+        if (encoder != null) {
+            return encoder.readBlock(block, packet, 4, blockSize);
+        }
+        if (prefetcher != null) {
+            int prefetched = prefetcher.take(block, packet, 4);
+            if (prefetched >= 0) {
+                return prefetched;
+            }
+        }
+        return load(key, block, packet, 4, payload);
+    }
+
+    /**
+     * Starts loading the blocks after the last one read on the I/O threads, so they are
+     * in memory by the time they are sent. The read-ahead covers Constants.PREFETCH
+     * windows, up to Constants.PREFETCH_MAX blocks. Netascii reads translate the file in
+     * order as it is sent, so they do not read ahead.
+     *
+     * @param window The negotiated window size.
+     * @param wait Whether readBlock may wait for a block that is being loaded.
+     */
+    public void prefetch(int window, boolean wait) {
+        int depth = (int) Math.min(Constants.PREFETCH_MAX, (long) Constants.PREFETCH * window);
+        if (encoder == null && depth > 0 && prefetcher == null) {
+            prefetcher = new BlockPrefetcher(this, key == null ? null : key.copy(), blockSize, depth, wait);
+        }
+    }
+
+    /**
+     * Reads a block through the block cache. Blocks are numbered from 1, so block n starts
+     * at offset (n - 1) * blockSize.
+     *
+     * @param key The cache key of the calling thread, or null to bypass the cache.
+     * @param block The block number.
+     * @param dst The buffer to read into.
+     * @param off The position of the block in dst.
+     * @param view A buffer over dst of blockSize bytes from off.
+     * @return The number of bytes read, less than the block size for the final block.
+     * @throws IOException If an error occurs while reading the file.
+     */
+    int load(BlockCache.Key key, long block, byte[] dst, int off, ByteBuffer view) throws IOException {
+        if (key != null) {
+            int cached = cache.get(key.setBlock(block), dst, off);
+            if (cached >= 0) {
+                return cached;
+            }
+        }
+
+        long position = (block - 1) * blockSize;
+        view.clear();
+
+        while (view.hasRemaining()) {
+            int read = channel.read(view, position + view.position());
+            if (read == -1) {
+                break;
+            }
+        }
+
+        if (key != null) {
+            cache.put(key, dst, off, view.position());
+        }
+        return view.position();
+    }
+
+    /**
+     * Gets the size of the file.
+     *
+     * @return The file size in bytes.
+     * @throws IOException If the size cannot be read.
+     */
+    public long size() throws IOException {
+        return channel.size();
+    }
+
+    /**
+     * Gets the number of bytes the transfer will carry, for the tsize option.
+     *
+     * @return The file size, or -1 for netascii, whose length is only known once it is translated.
+     * @throws IOException If the size cannot be read.
+     */
+    public long transferSize() throws IOException {
+        return encoder != null ? -1 : channel.size();
+    }
+
+    /**
+     * Picks the TFTP error code for a failed download.
+     *
+     * @param e The exception that ended the download.
+     * @return ERR_FILE_NOT_FOUND if the file does not exist, ERR_ACCESS_VIOLATION if it
+     *         cannot be opened for reading, otherwise ERR_UNDEFINED.
+     */
+    public static short errorCode(IOException e) {
+        if (e instanceof FileNotFoundException) {
+            return Constants.ERR_FILE_NOT_FOUND;
+        }
+        if (e instanceof AccessDeniedException) {
+            return Constants.ERR_ACCESS_VIOLATION;
+        }
+        return Constants.ERR_UNDEFINED;
+    }
+
+    /**
+     * Stops any read-ahead and closes the file.
+     *
+     * @throws IOException If an error occurs while closing the file.
+     */
+    @Override
+    public void close() throws IOException {
+        if (prefetcher != null) {
+            prefetcher.close();
+        }
+        channel.close();
+    }
+}
@@ -0,0 +1,65 @@
+package TFTP_UDP_Server;
+
+public class BlockSequence {
+    // Block numbers 1 to 65535 when the wire number rolls over to 1
+    private static final int CYCLE_FROM_ONE = 0xFFFF;
+
+    /**
+     * Gets the 16-bit block number sent on the wire for a block.
+     * Sessions count blocks with 64-bit sequence numbers, so files larger than 65535
+     * blocks keep going; only the number in the packet wraps. After 65535 it becomes 0,
+     * or 1 when the session rolls over to 1, which some older clients expect.
+     * Sequence number 0 is the acknowledgment of a request or OACK and is always sent as 0.
+     *
+     * @param seq The block's sequence number, counted from 1.
+     * @param rollover The wire number following 65535, 0 or 1.
+     * @return The block number to put in the packet.
+     */
+    public static short toWire(long seq, int rollover) {
+        if (rollover == 1 && seq > 0) {
+            return (short) ((seq - 1) % CYCLE_FROM_ONE + 1);
+        }
+        return (short) seq;
+    }
+
+    /**
+     * Gets the sequence number of a block number read from the wire, taking the
+     * sequence number nearest to a reference the session already knows, such as
+     * the last block acknowledged or the block expected next.
+     *
+     * @param wire The block number in the packet.
+     * @param near The reference sequence number.
+     * @param rollover The wire number following 65535, 0 or 1.
+     * @return The sequence number, which may be below the reference for stale packets.
+     */
+    public static long fromWire(short wire, long near, int rollover) {
+        int value = wire & 0xFFFF;
+        if (rollover == 1) {
+            if (value == 0) {
+                return 0;
+            }
+            long ref = Math.max(near, 1);
+            int diff = Math.floorMod(value - (toWire(ref, 1) & 0xFFFF), CYCLE_FROM_ONE);
+            return ref + (diff > CYCLE_FROM_ONE / 2 ? diff - CYCLE_FROM_ONE : diff);
+        }
+        return near + (short) (value - (int) (near & 0xFFFF));
+    }
+
+    /**
+     * Gets the sequence number of a block number read from the wire, taking the first
+     * sequence number at or after a given one. Used where the peer may be far ahead of
+     * the reference, but never behind it.
+     *
+     * @param wire The block number in the packet.
+     * @param from The lowest sequence number the block can have.
+     * @param rollover The wire number following 65535, 0 or 1.
+     * @return The sequence number, or 0 for a wire 0 when rolling over to 1.
+     */
+    public static long fromWireAfter(short wire, long from, int rollover) {
+        if (rollover == 1 && wire == 0) {
+            return 0;
+        }
+        long seq = fromWire(wire, from, rollover);
+        return seq < from ? seq + (rollover == 1 ? CYCLE_FROM_ONE : 0x10000) : seq;
+    }
+}
@@ -0,0 +1,227 @@
+package TFTP_UDP_Server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class BlockWriter implements Closeable {
+    private final String filename;
+    private final Path target;
+    private Path temp;
+    private final FileChannel channel;
+    private final byte[] packet;
+    private final ByteBuffer payload;
+    private final NetasciiDecoder decoder;
+    private WriteBehind behind;
+    private boolean committed;
+
+    /**
+     * Starts an upload into a temporary file next to the target, so the served
+     * directory never shows a partially written file.
+     * Blocks are written straight from the payload area of the given packet buffer.
+     *
+     * With netascii, line ends are translated back as each block is written.
+     *
+     * @param filename Name of the file in the served directory.
+     * @param blockSize The negotiated block size.
+     * @param packet The receive buffer, at least blockSize + 4 bytes long.
+     * @param netascii Whether line ends are translated (RFC 764).
+     * @throws IOException If the temporary file cannot be created.
+     */
+    public BlockWriter(String filename, int blockSize, byte[] packet, boolean netascii) throws IOException {
+        this.filename = filename;
+        this.target = Paths.get(Constants.DIRECTORY, filename);
+        this.channel = createTemp();
+        this.payload = ByteBuffer.wrap(packet, 4, blockSize).slice();
+        this.decoder = netascii ? new NetasciiDecoder(channel) : null;
+        this.packet = packet;
+    }
+
+    /**
+     * Creates a uniquely named temporary file in the same directory as the target,
+     * which keeps the final rename on one filesystem.
+     *
+     * @return The channel for writing the temporary file.
+     * @throws IOException If the file cannot be created.
+     */
+    private FileChannel createTemp() throws IOException {
+        while (true) {
+            String name = "." + target.getFileName() + "." + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".part";
+            temp = target.resolveSibling(name);
+            try {
+                return FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            } catch (FileAlreadyExistsException e) {
+                // Name taken by another upload, pick another
+            }
+        }
+    }
+
+    /**
+     * Hands writes to the disk threads from now on, see WriteBehind. Up to
+     * Constants.WRITE_BEHIND windows, capped at Constants.WRITE_BEHIND_MAX blocks, can
+     * wait for the disk while the session carries on receiving.
+     *
+     * @param window The negotiated window size.
+     */
+    public void writeBehind(int window) {
+        int depth = (int) Math.min(Constants.WRITE_BEHIND_MAX, (long) Constants.WRITE_BEHIND * window);
+        if (depth > 0 && behind == null) {
+            behind = new WriteBehind(this::store, payload.capacity(), depth);
+        }
+    }
+
+    /**
+     * Checks whether writeBlock can take a block without waiting for the disk.
+     *
+     * @param onRoom Run on a disk thread once there is room again, if there is none now.
+     * @return true if writeBlock will not wait.
+     */
+    public boolean hasRoom(Runnable onRoom) {
+        return behind == null || behind.hasRoom(onRoom);
+    }
+
+    /**
+     * Appends the payload of the DATA packet currently in the packet buffer. With write-behind
+     * the payload is copied and written later, so the packet buffer can be reused at once.
+     *
+     * @param length The number of data bytes after the 4-byte header.
+     * @throws IOException If an error occurs while writing, such as the disk being full.
+     *                     With write-behind this is reported by a later call or the commit.
+     */
+    public void writeBlock(int length) throws IOException {
+        if (behind != null) {
+            behind.write(packet, 4, length);
+        } else {
+            store(packet, 4, length, payload);
+        }
+    }
+
+    /**
+     * Writes a block to the temporary file, translating it first for netascii.
+     *
+     * @param buf The buffer holding the block.
+     * @param off The position of the block in buf.
+     * @param len The length of the block.
+     * @param view A buffer over buf from off, used for the write.
+     * @throws IOException If an error occurs while writing.
+     */
+    private void store(byte[] buf, int off, int len, ByteBuffer view) throws IOException {
+        if (decoder != null) {
+            decoder.write(buf, off, len, view);
+            return;
+        }
+        view.clear().limit(len);
+        while (view.hasRemaining()) {
+            channel.write(view);
+        }
+    }
+
+    /**
+     * Finishes the upload and waits until it is durable: the data is flushed to disk in a
+     * batch with other uploads finishing at the same time, the temporary file is renamed
+     * over the target in a single step, and the directory is flushed so the rename survives
+     * a crash. The final ACK must not go out before this returns.
+     *
+     * @throws IOException If the data cannot be written or synced or the file cannot be moved into place.
+     */
+    public void commit() throws IOException {
+        if (behind != null) {
+            behind.flush();
+        }
+        finish();
+        GroupCommit.shared().commit(channel, target.toAbsolutePath().getParent(), this::publish);
+    }
+
+    /**
+     * Finishes the upload like commit, without waiting.
+     *
+     * @return Completed once the upload is durable, or exceptionally if it failed.
+     */
+    public CompletableFuture<Void> commitAsync() {
+        CompletableFuture<Void> written = behind != null ? behind.flushAsync() : CompletableFuture.completedFuture(null);
+        return written.thenCompose(ignored -> {
+            try {
+                finish();
+            } catch (IOException e) {
+                CompletableFuture<Void> failed = new CompletableFuture<>();
+                failed.completeExceptionally(e);
+                return failed;
+            }
+            return GroupCommit.shared().submit(channel, target.toAbsolutePath().getParent(), this::publish);
+        });
+    }
+
+    /**
+     * Picks the TFTP error code for a failed upload.
+     *
+     * @param e The exception that ended the upload.
+     * @return ERR_DISK_FULL if the disk ran out of space, otherwise ERR_UNDEFINED.
+     */
+    public static short errorCode(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            String msg = t.getMessage();
+            // Linux and macOS, then Windows
+            if (msg != null && (msg.contains("No space left") || msg.contains("not enough space"))) {
+                return Constants.ERR_DISK_FULL;
+            }
+        }
+        return Constants.ERR_UNDEFINED;
+    }
+
+    /**
+     * Writes out anything the netascii translation still holds back.
+     *
+     * @throws IOException If the file cannot be written.
+     */
+    private void finish() throws IOException {
+        if (decoder != null) {
+            decoder.finish();
+        }
+    }
+
+    /**
+     * Moves the synced temporary file into place. Cached blocks of the old file are dropped
+     * and the file index is updated before readers are let back in.
+     *
+     * @throws IOException If the file cannot be moved into place.
+     */
+    private void publish() throws IOException {
+        channel.close();
+
+        BlockCache cache = BlockCache.shared();
+        String file = target.toAbsolutePath().normalize().toString();
+        cache.beginUpdate(file);
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            committed = true;
+            FileIndex.shared().refresh(filename);
+        } finally {
+            cache.endUpdate(file);
+        }
+    }
+
+    /**
+     * Closes the writer, discarding the temporary file if the upload was not committed.
+     *
+     * @throws IOException If an error occurs while closing or deleting the file.
+     */
+    @Override
+    public void close() throws IOException {
+        if (behind != null) {
+            behind.close();
+        }
+        if (!committed) {
+            channel.close();
+            Files.deleteIfExists(temp);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package TFTP_UDP_Server;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public class BufferPool {
+    private static final BufferPool SHARED = new BufferPool(Constants.POOL_BUFFERS);
+    private static final int MIN_SHIFT = 9;
+    private static final int MAX_SHIFT = 16;
+
+    private final AtomicReferenceArray<byte[]>[] classes;
+
+    /**
+     * Creates a pool with one size class for each power of two from 512 bytes to 64 KB,
+     * which covers every block size up to 65464 plus the 4-byte header.
+     *
+     * @param capacity The number of free buffers kept per size class.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(int capacity) {
+        classes = new AtomicReferenceArray[MAX_SHIFT - MIN_SHIFT + 1];
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new AtomicReferenceArray<>(capacity);
+        }
+    }
+
+    /**
+     * Gets the process-wide pool for packet buffers.
+     *
+     * @return The shared pool.
+     */
+    public static BufferPool shared() {
+        return SHARED;
+    }
+
+    /**
+     * Hands out a buffer of at least the given size, reusing a released one if available.
+     * The buffer may be larger than asked for and may hold data from its last use.
+     *
+     * @param size The minimum size of the buffer.
+     * @return A buffer whose length is a power of two.
+     */
+    public byte[] acquire(int size) {
+        int index = sizeClass(size);
+        if (index >= classes.length) {
+            return new byte[size];
+        }
+
+        AtomicReferenceArray<byte[]> free = classes[index];
+        int n = free.length();
+        int start = probe(n);
+        for (int i = 0; i < n; i++) {
+            byte[] buf = free.getAndSet((start + i) % n, null);
+            if (buf != null) {
+                return buf;
+            }
+        }
+        return new byte[1 << (index + MIN_SHIFT)];
+    }
+
+    /**
+     * Returns a buffer to the pool. Buffers that did not come from the pool, or that
+     * do not fit because the size class is full, are left to the garbage collector.
+     *
+     * @param buf The buffer to recycle.
+     */
+    public void release(byte[] buf) {
+        int index = sizeClass(buf.length);
+        if (index >= classes.length || buf.length != 1 << (index + MIN_SHIFT)) {
+            return;
+        }
+
+        AtomicReferenceArray<byte[]> free = classes[index];
+        int n = free.length();
+        int start = probe(n);
+        for (int i = 0; i < n; i++) {
+            if (free.compareAndSet((start + i) % n, null, buf)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Finds the size class for a buffer size, the smallest power of two that holds it.
+     *
+     * @param size The buffer size.
+     * @return The index of the size class.
+     */
+    private static int sizeClass(int size) {
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+        return Math.max(shift, MIN_SHIFT) - MIN_SHIFT;
+    }
+
+    // Spreads threads over the slots so they do not all fight over the first one.
+    private static int probe(int n) {
+        return (int) ((Thread.currentThread().getId() * 0x9E3779B9L) >>> 16) % n;
+    }
+}
@@ -0,0 +1,28 @@
+package TFTP_UDP_Server;
+
+import java.io.IOException;
+
+public interface ChannelHandler {
+    /**
+     * Called by the event loop when the channel has datagrams waiting.
+     * Implementations must drain what they can without blocking.
+     *
+     * @throws IOException If an IO error occurs while receiving.
+     */
+    void onReadable() throws IOException;
+
+    /**
+     * Called by the event loop when the channel can take more datagrams after a
+     * send found the socket buffer full.
+     *
+     * @throws IOException If an IO error occurs while sending.
+     */
+    void onWritable() throws IOException;
+
+    /**
+     * Called by the event loop when onReadable or onWritable threw.
+     *
+     * @param e The exception thrown.
+     */
+    void failed(IOException e);
+}
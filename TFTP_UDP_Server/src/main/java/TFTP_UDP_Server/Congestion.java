@@ -0,0 +1,215 @@
+package TFTP_UDP_Server;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class Congestion {
+    private static final Congestion SHARED = new Congestion();
+    private static final String NONE = "none";
+    // Sessions opened between sweeps of the clients not seen for a while
+    private static final int SWEEP_EVERY = 256;
+
+    private final boolean enabled = !NONE.equals(Constants.CC);
+    private final long idleNanos = Constants.CC_IDLE * 1_000_000L;
+    private final long targetNanos = Constants.CC_DELAY * 1000L;
+    // Waits shorter than a timer tick cannot be kept on the event loops, so they are run together
+    private final long quantumNanos = Constants.TIMER_TICK * 1_000_000L;
+    private final ConcurrentMap<InetAddress, Controller> clients = new ConcurrentHashMap<>();
+    private final AtomicInteger opened = new AtomicInteger();
+
+    private Congestion() {
+    }
+
+    /**
+     * Gets the congestion state shared by every session.
+     *
+     * @return The shared state.
+     */
+    public static Congestion shared() {
+        return SHARED;
+    }
+
+    /**
+     * Starts congestion control for a session. Each client has one congestion window,
+     * shared by its sessions and kept between them, so what a transfer learned about the
+     * path carries over to the next one.
+     *
+     * @param addr The client's address.
+     * @return The session's view of the client's controller.
+     */
+    public Session session(InetAddress addr) {
+        long now = System.nanoTime();
+        if (opened.incrementAndGet() % SWEEP_EVERY == 0) {
+            clients.values().removeIf(c -> now - c.usedAt > idleNanos);
+        }
+        Controller controller = clients.computeIfAbsent(addr, a -> new Controller());
+        controller.usedAt = now;
+        return new Session(controller);
+    }
+
+    // A client's congestion window in blocks, grown and shrunk by AIMD on ACK round trips and losses
+    private final class Controller {
+        private double cwnd = Math.max(1, Constants.CC_INITIAL);
+        private double ssthresh = Double.MAX_VALUE;
+        private long srtt;
+        private long minRtt = Long.MAX_VALUE;
+        // The last sample's queueing delay was over the target
+        private boolean queued;
+        // No second decrease until a round trip after the last, so one loss event halves once
+        private long recoverUntil;
+        private volatile long usedAt;
+
+        private synchronized void sample(long rtt) {
+            srtt = srtt == 0 ? rtt : srtt + (rtt - srtt) / 8;
+            minRtt = Math.min(minRtt, rtt);
+            long queueing = rtt - minRtt;
+            queued = queueing > targetNanos;
+            if (queueing > 4 * targetNanos) {
+                decrease(false);
+            }
+        }
+
+        private synchronized void acked(long blocks, int window) {
+            if (queued || cwnd >= window) {
+                return;
+            }
+            if (cwnd < ssthresh) {
+                cwnd += blocks;
+            } else {
+                cwnd += blocks / cwnd;
+            }
+            cwnd = Math.min(cwnd, window);
+        }
+
+        private synchronized void decrease(boolean timeout) {
+            long now = System.nanoTime();
+            if (!timeout && now - recoverUntil < 0) {
+                return;
+            }
+            ssthresh = Math.max(2, cwnd * Constants.CC_BETA);
+            cwnd = timeout ? 1 : ssthresh;
+            recoverUntil = now + srtt;
+        }
+
+        private synchronized long interval(int window) {
+            return cwnd >= window || srtt == 0 ? 0 : (long) (srtt / cwnd);
+        }
+
+        private synchronized long hold(int window) {
+            return cwnd >= window || srtt == 0 ? 0 : (long) (srtt * (window / cwnd - 1));
+        }
+
+        private synchronized long blocks() {
+            return (long) cwnd;
+        }
+
+        private synchronized String describe() {
+            return String.format("cwnd=%.1f srtt_us=%d min_rtt_us=%d", cwnd, srtt / 1000L,
+                    minRtt == Long.MAX_VALUE ? 0 : minRtt / 1000L);
+        }
+    }
+
+    // One session's use of its client's controller, with the session's own pacing and counts
+    public final class Session {
+        private final Controller controller;
+        private long nextSend;
+        private long losses;
+        private long timeouts;
+
+        private Session(Controller controller) {
+            this.controller = controller;
+        }
+
+        /**
+         * Feeds a round trip measured on an ACK. Queueing delay over -Dtftp.cc.delay stops
+         * the window from growing, and four times that counts as a loss.
+         *
+         * @param rtt The round trip in nanoseconds.
+         */
+        public void sample(long rtt) {
+            if (enabled && rtt > 0) {
+                controller.sample(rtt);
+            }
+        }
+
+        /**
+         * Grows the window for blocks acknowledged without loss: by one block per block in
+         * slow start, then by one block per window's worth. It never grows past the
+         * negotiated window, which is all the session can put in flight.
+         *
+         * @param blocks The blocks newly acknowledged.
+         * @param window The negotiated window size.
+         */
+        public void acked(long blocks, int window) {
+            if (enabled) {
+                controller.acked(blocks, window);
+            }
+        }
+
+        /**
+         * Shrinks the window by -Dtftp.cc.beta for a lost block, at most once a round trip.
+         */
+        public void lost() {
+            losses++;
+            if (enabled) {
+                controller.decrease(false);
+            }
+        }
+
+        /**
+         * Shrinks the window to one block for a retransmission timeout.
+         */
+        public void timedOut() {
+            timeouts++;
+            if (enabled) {
+                controller.decrease(true);
+            }
+        }
+
+        /**
+         * Paces a block being sent. A negotiated window can only be sent whole, as the
+         * client acknowledges once it has all of it, so a congestion window smaller than
+         * that spreads the blocks over a round trip per cwnd blocks instead, which keeps
+         * about cwnd blocks in flight. Blocks only wait once they are a timer tick ahead of
+         * their pace, so on a short path they go in bursts of a tick's worth.
+         *
+         * @param window The negotiated window size.
+         * @return How long to wait before sending, in nanoseconds.
+         */
+        public long pace(int window) {
+            long interval = enabled ? controller.interval(window) : 0;
+            long now = System.nanoTime();
+            if (interval == 0) {
+                nextSend = now;
+                return 0;
+            }
+            long wait = nextSend - now;
+            nextSend = Math.max(nextSend, now) + interval;
+            return wait < quantumNanos ? 0 : wait;
+        }
+
+        /**
+         * Paces a window being received by holding back its ACK, so the client sends a
+         * window about every window / cwnd round trips. Holds shorter than a timer tick are skipped.
+         *
+         * @param window The negotiated window size.
+         * @return How long to wait before acknowledging, in nanoseconds.
+         */
+        public long holdAck(int window) {
+            long hold = enabled ? controller.hold(window) : 0;
+            return hold < quantumNanos ? 0 : hold;
+        }
+
+        /**
+         * Records the session's congestion statistics.
+         *
+         * @param access The session's access record, which carries them to the log.
+         */
+        public void end(Log.Access access) {
+            access.setDetail(controller.describe() + " losses=" + losses + " timeouts=" + timeouts);
+            Metrics.shared().congestionWindow(controller.blocks());
+        }
+    }
+}
@@ -2,13 +2,130 @@ package TFTP_UDP_Server;
 
 public class Constants {
     // Opcodes
+    public static final byte RRQ = 1;
+    public static final byte WRQ = 2;
     public static final byte DATA = 3;
     public static final byte ACK = 4;
     public static final byte ERROR = 5;
+    public static final byte OACK = 6;
+
+    // Error codes
+    public static final short ERR_UNDEFINED = 0;
+    public static final short ERR_FILE_NOT_FOUND = 1;
+    public static final short ERR_ACCESS_VIOLATION = 2;
+    public static final short ERR_DISK_FULL = 3;
+    public static final short ERR_UNKNOWN_TID = 5;
 
     // Constants
     public static final int LEN = 512;
     public static final int MAX_LEN = LEN + 4;
     public static final int PORT = 1025;
     public static String DIRECTORY = "files/";
+
+    // Options (RFC 2347, RFC 2348, RFC 7440)
+    public static final String MODE_NETASCII = "netascii";
+    public static final String OPT_BLKSIZE = "blksize";
+    public static final int MIN_BLKSIZE = 8;
+    public static final int MAX_BLKSIZE = 65464;
+    public static final String OPT_WINDOWSIZE = "windowsize";
+    public static final int MAX_WINDOWSIZE = Integer.getInteger("tftp.windowsize.max", 64);
+    // Transfer size (RFC 2349)
+    public static final String OPT_TSIZE = "tsize";
+    // Block number after 65535 on the wire, 0 or 1, unless the client asks with the rollover option
+    public static final String OPT_ROLLOVER = "rollover";
+    public static final int ROLLOVER = Integer.getInteger("tftp.rollover", 0);
+
+    // Multicast (RFC 2090), read requests on the thread engine only
+    public static final String OPT_MULTICAST = "multicast";
+    public static final boolean MULTICAST = Boolean.parseBoolean(System.getProperty("tftp.multicast", "true"));
+    public static final String MCAST_GROUP = System.getProperty("tftp.multicast.group", "239.255.0.1");
+    public static final int MCAST_PORT = Integer.getInteger("tftp.multicast.port", 1758);
+    public static final int MCAST_GROUPS = Integer.getInteger("tftp.multicast.groups", 16);
+    public static final int MCAST_TTL = Integer.getInteger("tftp.multicast.ttl", 1);
+    public static final String MCAST_INTERFACE = System.getProperty("tftp.multicast.interface");
+
+    // Retransmission, in milliseconds
+    public static final int INITIAL_RTO = 1000;
+    public static final int MIN_RTO = Integer.getInteger("tftp.rto.min", 20);
+    public static final int MAX_RTO = Integer.getInteger("tftp.rto.max", 5000);
+    public static final int MAX_RETRIES = Integer.getInteger("tftp.retries", 8);
+
+    // File index, a watched listing of the served directory
+    public static final boolean FILE_INDEX = Boolean.parseBoolean(System.getProperty("tftp.index", "true"));
+
+    // Metrics, written in the Prometheus text format every interval; an empty name turns the file off
+    public static final String METRICS_FILE = System.getProperty("tftp.metrics.file", "tftp-udp-metrics.prom");
+    public static final int METRICS_INTERVAL = Integer.getInteger("tftp.metrics.interval", 10);
+
+    // Packet recorder: the last this many packets are kept for pcap dumps, 0 for off; each keeps at most snaplen bytes
+    public static final int PCAP_PACKETS = Integer.getInteger("tftp.pcap", 0);
+    public static final int PCAP_SNAPLEN = Integer.getInteger("tftp.pcap.snaplen", 96);
+    // Where dumps go, and the fewest milliseconds between dumps of failed sessions, 0 for none
+    public static final String PCAP_DIR = System.getProperty("tftp.pcap.dir", ".");
+    public static final int PCAP_FAILURES = Integer.getInteger("tftp.pcap.failures", 10000);
+
+    // Logging, written out by a background thread; records that find the ring full are dropped
+    public static final int LOG_BUFFER = Integer.getInteger("tftp.log.buffer", 8192);
+    public static final boolean LOG_DEBUG = Boolean.parseBoolean(System.getProperty("tftp.log.debug", "false"));
+    public static final int LOG_DEBUG_RATE = Integer.getInteger("tftp.log.debug.rate", 20);
+    // Access log file, one line per transfer; empty writes it to the console
+    public static final String ACCESS_LOG = System.getProperty("tftp.log.access", "");
+
+    // Traffic shaping in bytes per second, 0 for no limit; these and the admission limits can be changed over JMX
+    public static final long SHAPE_GLOBAL = Long.getLong("tftp.shape.global", 0);
+    public static final long SHAPE_CLIENT = Long.getLong("tftp.shape.client", 0);
+    public static final long SHAPE_SUBNET = Long.getLong("tftp.shape.subnet", 0);
+    public static final long SHAPE_BURST = Long.getLong("tftp.shape.burst", 64 * 1024);
+    // IPv4 prefix length grouping clients into subnets; IPv6 clients are grouped by /64
+    public static final int SUBNET_PREFIX = Integer.getInteger("tftp.subnet.prefix", 24);
+    // Admission, 0 for no limit; "reject" answers a refused request with an ERROR, "defer" drops it for the client to retry
+    public static final int ADMIT_SESSIONS = Integer.getInteger("tftp.admit.sessions", 0);
+    public static final int ADMIT_CLIENT = Integer.getInteger("tftp.admit.client", 0);
+    public static final int ADMIT_SUBNET = Integer.getInteger("tftp.admit.subnet", 0);
+    public static final String ADMIT_POLICY = System.getProperty("tftp.admit.policy", "reject");
+
+    // Block cache
+    public static final long CACHE_BYTES = Long.getLong("tftp.cache.bytes", 64L * 1024 * 1024);
+
+    // Download read-ahead, in windows of blocks loaded ahead of the sender (0 turns it off), capped in blocks
+    public static final int PREFETCH = Integer.getInteger("tftp.prefetch", 2);
+    public static final int PREFETCH_MAX = Integer.getInteger("tftp.prefetch.max", 64);
+    public static final int IO_THREADS = Integer.getInteger("tftp.io.threads", 8);
+    // Upload write-behind, in windows of blocks that can wait for the disk (0 writes inline), capped in blocks
+    public static final int WRITE_BEHIND = Integer.getInteger("tftp.writebehind", 2);
+    public static final int WRITE_BEHIND_MAX = Integer.getInteger("tftp.writebehind.max", 64);
+    public static final int DISK_THREADS = Integer.getInteger("tftp.disk.threads", 4);
+
+    // Congestion control per client: "aimd", or "none" to always send and acknowledge whole windows at once
+    public static final String CC = System.getProperty("tftp.cc", "aimd");
+    // Initial window in blocks, the factor a loss multiplies it by, and the queueing delay in microseconds that stops it growing
+    public static final int CC_INITIAL = Integer.getInteger("tftp.cc.initial", 4);
+    public static final double CC_BETA = Double.parseDouble(System.getProperty("tftp.cc.beta", "0.5"));
+    public static final long CC_DELAY = Long.getLong("tftp.cc.delay", 5000);
+    // Milliseconds a client's window is kept after its last session
+    public static final long CC_IDLE = Long.getLong("tftp.cc.idle", 600000);
+
+    // Session engine
+    public static final int WORKER_THREADS = Integer.getInteger("tftp.workers", 64);
+    public static final int MAX_PENDING = Integer.getInteger("tftp.pending", 1024);
+    public static final int POOL_BUFFERS = Integer.getInteger("tftp.pool.buffers", 256);
+    // Receivers sharing the server port, each with its own worker group
+    public static final int LISTENERS = Integer.getInteger("tftp.listeners", 1);
+    // "virtual" runs each session on its own virtual thread (Java 21+) instead of the worker pool
+    public static final String THREADS = System.getProperty("tftp.threads", "platform");
+
+    // Selector engine, chosen with -Dtftp.engine=nio
+    public static final String ENGINE = System.getProperty("tftp.engine", "threads");
+    public static final int EVENT_LOOPS = Integer.getInteger("tftp.loops", Runtime.getRuntime().availableProcessors());
+    // Also caps the sessions running on virtual threads
+    public static final int MAX_SESSIONS = Integer.getInteger("tftp.sessions.max", 16384);
+    public static final int TIMER_TICK = Integer.getInteger("tftp.tick", 10);
+    // Buckets in each loop's timing wheel; one turn is this many ticks
+    public static final int TIMER_WHEEL = Integer.getInteger("tftp.wheel", 512);
+
+    // Upload durability: "group" syncs uploads that finish together as one batch, "file" syncs each on its own, "none" never syncs
+    public static final String SYNC = System.getProperty("tftp.sync", "group");
+    // Microseconds a batch waits for more uploads, and the most it takes
+    public static final long SYNC_DELAY = Long.getLong("tftp.sync.delay", 0);
+    public static final int SYNC_BATCH = Integer.getInteger("tftp.sync.batch", 64);
 }
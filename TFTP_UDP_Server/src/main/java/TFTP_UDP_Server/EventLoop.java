@@ -0,0 +1,161 @@
+package TFTP_UDP_Server;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class EventLoop implements Runnable {
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final long tickNanos = Constants.TIMER_TICK * 1_000_000L;
+
+    // Retransmission timers and pauses of the sessions owned by this loop
+    private final TimerWheel wheel = new TimerWheel(tickNanos, Constants.TIMER_WHEEL);
+
+    /**
+     * Creates an event loop with its own selector. The loop does not run until started.
+     *
+     * @param name The name of the loop's thread.
+     * @throws IOException If the selector cannot be opened.
+     */
+    public EventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+    }
+
+    /**
+     * Starts the loop's thread.
+     */
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Queues a task to run on the loop's thread and wakes the selector so it runs promptly.
+     * Everything that touches a session or registers a channel goes through here, so a
+     * session is only ever used by the one thread that owns it.
+     *
+     * @param task The task to run.
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Registers a channel with this loop's selector. Must be called on the loop's thread.
+     *
+     * @param channel The non-blocking channel.
+     * @param ops The interest set.
+     * @param handler The handler for the channel's events.
+     * @return The selection key.
+     * @throws ClosedChannelException If the channel is closed.
+     */
+    public SelectionKey register(SelectableChannel channel, int ops, ChannelHandler handler) throws ClosedChannelException {
+        return channel.register(selector, ops, handler);
+    }
+
+    /**
+     * Schedules a timeout on this loop's timing wheel, moving it if it was already
+     * scheduled. Must be called on the loop's thread.
+     *
+     * @param timeout The timeout.
+     * @param deadline When it fires, from System.nanoTime.
+     */
+    void schedule(TimerWheel.Timeout timeout, long deadline) {
+        wheel.schedule(timeout, deadline);
+    }
+
+    /**
+     * Cancels a timeout on this loop's timing wheel. Must be called on the loop's thread.
+     *
+     * @param timeout The timeout.
+     */
+    void cancel(TimerWheel.Timeout timeout) {
+        wheel.cancel(timeout);
+    }
+
+    /**
+     * Runs the loop: waits for ready channels or the next timer tick, runs queued tasks,
+     * dispatches channel events, and on each tick fires the timers that have expired.
+     * Timers live on a hashed timing wheel, so arming, moving and cancelling one is O(1)
+     * and a tick only looks at the timers due around it, however many sessions the loop has.
+     */
+    @Override
+    public void run() {
+        long nextTick = System.nanoTime() + tickNanos;
+        while (true) {
+            try {
+                long wait = (nextTick - System.nanoTime()) / 1_000_000L;
+                if (wait > 0 && tasks.isEmpty()) {
+                    selector.select(wait);
+                } else {
+                    selector.selectNow();
+                }
+
+                runTasks();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    dispatch(key);
+                }
+
+                long now = System.nanoTime();
+                if (now - nextTick >= 0) {
+                    wheel.advance(now);
+                    nextTick = now + tickNanos;
+                }
+            } catch (IOException e) {
+                Log.shared().error("Event loop error", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Runs the tasks queued so far. Tasks queued while these run wait for the next pass.
+     */
+    private void runTasks() {
+        for (int n = tasks.size(); n > 0; n--) {
+            Runnable task = tasks.poll();
+            if (task == null) {
+                break;
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Log.shared().error("Event loop task failed", e);
+            }
+        }
+    }
+
+    /**
+     * Hands a ready key's events to its handler. A handler that throws fails, so its
+     * session closes and the loop carries on with the others.
+     *
+     * @param key The selected key.
+     */
+    private void dispatch(SelectionKey key) {
+        ChannelHandler handler = (ChannelHandler) key.attachment();
+        try {
+            if (key.isValid() && key.isReadable()) {
+                handler.onReadable();
+            }
+            if (key.isValid() && key.isWritable()) {
+                handler.onWritable();
+            }
+        } catch (IOException e) {
+            handler.failed(e);
+        } catch (RuntimeException e) {
+            Log.shared().error("Channel handler failed", e);
+            handler.failed(new IOException("Internal server error", e));
+        }
+    }
+}
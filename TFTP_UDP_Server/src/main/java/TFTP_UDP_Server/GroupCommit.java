@@ -0,0 +1,199 @@
+package TFTP_UDP_Server;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class GroupCommit {
+    private static final GroupCommit SHARED = new GroupCommit();
+    private static final String NONE = "none";
+    private static final String FILE = "file";
+
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final boolean sync = !NONE.equals(Constants.SYNC);
+    private final int maxBatch = FILE.equals(Constants.SYNC) ? 1 : Math.max(1, Constants.SYNC_BATCH);
+    private final long delayNanos = Constants.SYNC_DELAY * 1000L;
+
+    private GroupCommit() {
+        Thread thread = new Thread(this::run, "tftp-sync");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Gets the committer shared by every upload.
+     *
+     * @return The shared committer.
+     */
+    public static GroupCommit shared() {
+        return SHARED;
+    }
+
+    /**
+     * Queues a finished upload to be made durable. Uploads that finish while a batch is
+     * being synced are synced together in the next one, and the directories they were
+     * published to are synced once per batch instead of once per file, so concurrent
+     * uploads share the cost of the flushes. With -Dtftp.sync.delay a batch also waits
+     * that many microseconds for company, trading latency for fewer flushes;
+     * -Dtftp.sync=file syncs every upload on its own and -Dtftp.sync=none not at all.
+     *
+     * @param channel The file's channel, left open.
+     * @param directory The directory the file ends up in.
+     * @param publish Run once the data is on disk and before the directory is synced,
+     *                to close the file and move it into place; may be null.
+     * @return Completed once the file and its directory entry are durable.
+     */
+    public CompletableFuture<Void> submit(FileChannel channel, Path directory, Publish publish) {
+        Request request = new Request(channel, directory, publish);
+        queue.add(request);
+        return request.done;
+    }
+
+    /**
+     * Queues a finished upload and waits until it is durable. See submit.
+     *
+     * @param channel The file's channel, left open.
+     * @param directory The directory the file ends up in.
+     * @param publish Run once the data is on disk; may be null.
+     * @throws IOException If the file could not be synced or published.
+     */
+    public void commit(FileChannel channel, Path directory, Publish publish) throws IOException {
+        try {
+            submit(channel, directory, publish).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for sync");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Takes the uploads waiting and commits them as one batch, for as long as the server runs.
+     */
+    private void run() {
+        List<Request> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+                long deadline = System.nanoTime() + delayNanos;
+                while (batch.size() < maxBatch) {
+                    long left = deadline - System.nanoTime();
+                    Request next = left > 0 ? queue.poll(left, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                // Commit whatever was taken before the interrupt
+            }
+
+            long startedAt = System.nanoTime();
+            commit(batch);
+            Metrics.shared().syncBatch(batch.size(), System.nanoTime() - startedAt);
+            batch.clear();
+        }
+    }
+
+    /**
+     * Syncs every file in the batch, publishes the ones that made it to disk, syncs each
+     * of their directories once, and then lets the uploads know. An upload that throws
+     * fails on its own and the rest of the batch goes on.
+     *
+     * @param batch The uploads to commit.
+     */
+    private void commit(List<Request> batch) {
+        Set<Path> directories = new LinkedHashSet<>();
+        for (Request request : batch) {
+            try {
+                if (sync) {
+                    request.channel.force(true);
+                }
+                if (request.publish != null) {
+                    request.publish.run();
+                }
+                directories.add(request.directory);
+            } catch (IOException e) {
+                request.failure = e;
+            } catch (RuntimeException e) {
+                Log.shared().error("Upload commit failed", e);
+                request.failure = e;
+            }
+        }
+
+        if (sync) {
+            for (Path directory : directories) {
+                try {
+                    syncDirectory(directory);
+                } catch (IOException e) {
+                    for (Request request : batch) {
+                        if (request.failure == null && request.directory.equals(directory)) {
+                            request.failure = e;
+                        }
+                    }
+                }
+            }
+        }
+
+        for (Request request : batch) {
+            if (request.failure == null) {
+                request.done.complete(null);
+            } else {
+                request.done.completeExceptionally(request.failure);
+            }
+        }
+    }
+
+    /**
+     * Flushes a directory, which makes the files created or renamed in it durable.
+     * Platforms that cannot open a directory, such as Windows, are skipped.
+     *
+     * @param directory The directory.
+     * @throws IOException If the directory cannot be flushed.
+     */
+    private static void syncDirectory(Path directory) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(directory, StandardOpenOption.READ);
+        } catch (IOException e) {
+            return;
+        }
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    // The step that moves a synced file into place
+    public interface Publish {
+        void run() throws IOException;
+    }
+
+    // An upload waiting for its batch
+    private static final class Request {
+        private final FileChannel channel;
+        private final Path directory;
+        private final Publish publish;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+        private Exception failure;
+
+        private Request(FileChannel channel, Path directory, Publish publish) {
+            this.channel = channel;
+            this.directory = directory;
+            this.publish = publish;
+        }
+    }
+}
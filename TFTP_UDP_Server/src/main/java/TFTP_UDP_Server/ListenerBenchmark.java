@@ -0,0 +1,152 @@
+package TFTP_UDP_Server;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ListenerBenchmark {
+    /**
+     * Measures request intake on loopback for a growing number of listeners.
+     * For each listener count (1, 2, 4, ... up to the maximum) a server is started in a
+     * separate JVM with -Dtftp.listeners set, and a number of client threads send
+     * read requests for a missing file in a closed loop. Each request costs the server a
+     * receive, a session and an ERROR reply, so the rate shows how intake scales with cores.
+     * Usage: ListenerBenchmark [maxListeners] [clients] [seconds] [server JVM options...]
+     *
+     * @param args The maximum listener count, the client threads and the seconds per run.
+     * @throws Exception If the server cannot be started.
+     */
+    public static void main(String[] args) throws Exception {
+        int maxListeners = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        List<String> jvmOptions = new ArrayList<>();
+        for (int i = 3; i < args.length; i++) {
+            jvmOptions.add(args[i]);
+        }
+
+        System.out.println("cores=" + Runtime.getRuntime().availableProcessors() + " clients=" + clients + " seconds=" + seconds);
+        for (int listeners = 1; listeners <= maxListeners; listeners *= 2) {
+            Process server = startServer(listeners, jvmOptions);
+            try {
+                awaitServer();
+                long[] result = run(clients, seconds);
+                System.out.printf("listeners=%d  requests/sec=%.0f  lost=%d%n", listeners, result[0] / (double) seconds, result[1]);
+            } finally {
+                server.destroy();
+                server.waitFor();
+            }
+        }
+    }
+
+    /**
+     * Starts a server JVM on the benchmark's own classpath with its output discarded.
+     *
+     * @param listeners The listener count.
+     * @param jvmOptions Extra options for the server JVM.
+     * @return The server process.
+     * @throws IOException If the process cannot be started.
+     */
+    private static Process startServer(int listeners, List<String> jvmOptions) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.add("-Dtftp.listeners=" + listeners);
+        command.addAll(jvmOptions);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(TFTPServer.class.getName());
+
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(ProcessBuilder.Redirect.to(new File(System.getProperty("os.name").startsWith("Windows") ? "NUL" : "/dev/null")));
+        return builder.start();
+    }
+
+    /**
+     * Sends requests until the server answers one.
+     *
+     * @throws IOException If the server does not answer within ten seconds.
+     */
+    private static void awaitServer() throws IOException {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout(200);
+            for (int i = 0; i < 50; i++) {
+                if (request(socket)) {
+                    return;
+                }
+            }
+        }
+        throw new IOException("Server did not start");
+    }
+
+    /**
+     * Runs the client threads for the given time.
+     *
+     * @param clients The number of client threads.
+     * @param seconds How long to run.
+     * @return The requests answered and the requests that timed out.
+     * @throws InterruptedException If interrupted while waiting for the clients.
+     */
+    private static long[] run(int clients, int seconds) throws InterruptedException {
+        AtomicLong answered = new AtomicLong();
+        AtomicLong lost = new AtomicLong();
+        long end = System.nanoTime() + seconds * 1_000_000_000L;
+
+        Thread[] threads = new Thread[clients];
+        for (int i = 0; i < clients; i++) {
+            threads[i] = new Thread(() -> {
+                try (DatagramSocket socket = new DatagramSocket()) {
+                    socket.setSoTimeout(1000);
+                    long count = 0;
+                    long missed = 0;
+                    while (System.nanoTime() - end < 0) {
+                        if (request(socket)) {
+                            count++;
+                        } else {
+                            missed++;
+                        }
+                    }
+                    answered.addAndGet(count);
+                    lost.addAndGet(missed);
+                } catch (IOException e) {
+                    System.out.println("Client Error: " + e.getMessage());
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return new long[] {answered.get(), lost.get()};
+    }
+
+    /**
+     * Sends one read request for a missing file and waits for the reply.
+     *
+     * @param socket The client's socket.
+     * @return true if the server answered, false if the request timed out.
+     * @throws IOException If an IO error occurs.
+     */
+    private static boolean request(DatagramSocket socket) throws IOException {
+        byte[] name = "benchmark.missing\0octet\0".getBytes(StandardCharsets.US_ASCII);
+        byte[] packet = new byte[name.length + 2];
+        packet[1] = Constants.RRQ;
+        System.arraycopy(name, 0, packet, 2, name.length);
+        socket.send(new DatagramPacket(packet, packet.length, InetAddress.getLoopbackAddress(), Constants.PORT));
+
+        byte[] reply = new byte[Constants.MAX_LEN];
+        try {
+            socket.receive(new DatagramPacket(reply, reply.length));
+            return true;
+        } catch (SocketTimeoutException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,355 @@
+package TFTP_UDP_Server;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+public class Log {
+    private static final Log SHARED = new Log(Constants.LOG_BUFFER);
+
+    private static final String ERROR = "ERROR";
+    private static final String INFO = "INFO ";
+    private static final String DEBUG = "DEBUG";
+    // How long the writer sleeps when the ring is empty
+    private static final long IDLE_NANOS = 10_000_000L;
+
+    // Ring of pending records; producers claim a slot by moving tail, the writer frees it by moving head
+    private final AtomicReferenceArray<Object> ring;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+    private final LongAdder dropped = new LongAdder();
+
+    // Debug records allowed in the current second
+    private final AtomicLong debugSecond = new AtomicLong();
+    private final AtomicLong debugIssued = new AtomicLong();
+    private final LongAdder debugSuppressed = new LongAdder();
+
+    private Writer console;
+    private Writer access;
+    private Thread writer;
+
+    private Log(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.ring = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * Gets the logger shared by the whole server.
+     *
+     * @return The shared logger.
+     */
+    public static Log shared() {
+        return SHARED;
+    }
+
+    /**
+     * Starts the thread that writes queued records out. Access records go to
+     * -Dtftp.log.access if it names a file, and to the console otherwise. Anything still
+     * queued when the JVM exits is written by a shutdown hook.
+     */
+    public synchronized void start() {
+        if (writer != null) {
+            return;
+        }
+        console = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+        access = console;
+        if (!Constants.ACCESS_LOG.isEmpty()) {
+            try {
+                access = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(Constants.ACCESS_LOG, true), StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                error("Access log not opened, using the console", e.getMessage());
+            }
+        }
+        writer = new Thread(this::drain, "tftp-log");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "tftp-log-flush"));
+    }
+
+    /**
+     * Queues an error.
+     *
+     * @param text What went wrong.
+     * @param arg A detail appended after a colon, or null for none.
+     */
+    public void error(String text, Object arg) {
+        offer(new Entry(ERROR, text, arg, null));
+    }
+
+    /**
+     * Queues an informational message.
+     *
+     * @param text The message.
+     */
+    public void info(String text) {
+        offer(new Entry(INFO, text, null, null));
+    }
+
+    /**
+     * Queues an informational message with a detail. The two are joined on the writer's
+     * thread, so the caller does no string building.
+     *
+     * @param text The message.
+     * @param arg A detail appended after a colon.
+     */
+    public void info(String text, Object arg) {
+        offer(new Entry(INFO, text, arg, null));
+    }
+
+    /**
+     * Queues a debug message if -Dtftp.log.debug is set and fewer than
+     * -Dtftp.log.debug.rate have been queued this second. Suppressed messages are
+     * counted and reported in their place.
+     *
+     * @param text The message.
+     * @param arg A detail appended after a colon.
+     * @param more A second detail, or null for none.
+     */
+    public void debug(String text, Object arg, Object more) {
+        if (!Constants.LOG_DEBUG) {
+            return;
+        }
+        long second = System.nanoTime() / 1_000_000_000L;
+        long current = debugSecond.get();
+        if (current != second && debugSecond.compareAndSet(current, second)) {
+            debugIssued.set(0);
+        }
+        if (debugIssued.incrementAndGet() > Constants.LOG_DEBUG_RATE) {
+            debugSuppressed.increment();
+            return;
+        }
+        offer(new Entry(DEBUG, text, arg, more));
+    }
+
+    /**
+     * Opens an access record for a transfer. The record is queued when the transfer ends.
+     *
+     * @param op The request, RRQ or WRQ.
+     * @param filename The file requested.
+     * @param addr The client's address.
+     * @param port The client's port.
+     * @return The access record.
+     */
+    public Access access(String op, String filename, InetAddress addr, int port) {
+        return new Access(this, op, filename, addr, port);
+    }
+
+    /**
+     * Puts a record in the ring without waiting. If the ring is full the record is
+     * dropped and counted, so a slow console never holds up a transfer.
+     *
+     * @param record The record.
+     */
+    private void offer(Object record) {
+        while (true) {
+            long t = tail.get();
+            if (t - head >= ring.length()) {
+                dropped.increment();
+                return;
+            }
+            if (tail.compareAndSet(t, t + 1)) {
+                ring.set((int) t & mask, record);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes records out for as long as the JVM runs, flushing whenever the ring runs dry.
+     */
+    private void drain() {
+        while (true) {
+            if (!writeQueued()) {
+                LockSupport.parkNanos(IDLE_NANOS);
+            }
+        }
+    }
+
+    /**
+     * Writes out whatever is queued when the JVM exits.
+     */
+    private void flush() {
+        writeQueued();
+    }
+
+    /**
+     * Writes out the records queued so far. A claimed slot whose record is not in yet
+     * ends the pass; the record is picked up on the next one.
+     *
+     * @return true if anything was written.
+     */
+    private synchronized boolean writeQueued() {
+        boolean wrote = false;
+        try {
+            while (true) {
+                int slot = (int) head & mask;
+                Object record = ring.get(slot);
+                if (record == null) {
+                    break;
+                }
+                ring.set(slot, null);
+                head = head + 1;
+                write(record);
+                wrote = true;
+            }
+
+            long lost = dropped.sumThenReset();
+            if (lost > 0) {
+                write(new Entry(ERROR, "Log full, records dropped", lost, null));
+                wrote = true;
+            }
+            long suppressed = debugSuppressed.sumThenReset();
+            if (suppressed > 0) {
+                write(new Entry(DEBUG, "Debug messages suppressed", suppressed, null));
+                wrote = true;
+            }
+
+            if (wrote) {
+                console.flush();
+                if (access != console) {
+                    access.flush();
+                }
+            }
+        } catch (IOException e) {
+            // Nowhere left to report it
+        }
+        return wrote;
+    }
+
+    private void write(Object record) throws IOException {
+        if (record instanceof Access) {
+            access.write(record.toString());
+            access.write(System.lineSeparator());
+        } else {
+            console.write(record.toString());
+            console.write(System.lineSeparator());
+        }
+    }
+
+    // A message waiting to be written, formatted only once it is taken off the ring
+    private static final class Entry {
+        private final long time = System.currentTimeMillis();
+        private final String level;
+        private final String text;
+        private final Object arg;
+        private final Object more;
+
+        private Entry(String level, String text, Object arg, Object more) {
+            this.level = level;
+            this.text = text;
+            this.arg = arg;
+            this.more = more;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder line = new StringBuilder(96).append(Instant.ofEpochMilli(time)).append(' ').append(level).append(' ').append(text);
+            if (arg != null) {
+                line.append(": ").append(arg);
+            }
+            if (more != null) {
+                line.append(' ').append(more);
+            }
+            return line.toString();
+        }
+    }
+
+    // One line per transfer: who, what, how much, how long and how it ended
+    public static final class Access {
+        private final Log log;
+        private final long startedAt = System.nanoTime();
+        private final long time = System.currentTimeMillis();
+        private final String op;
+        private final String filename;
+        private final InetAddress addr;
+        private final int port;
+        private long bytes;
+        private String outcome = "aborted";
+        private String detail;
+        private long millis;
+        private boolean ended;
+
+        private Access(Log log, String op, String filename, InetAddress addr, int port) {
+            this.log = log;
+            this.op = op;
+            this.filename = filename;
+            this.addr = addr;
+            this.port = port;
+        }
+
+        /**
+         * Sets the number of bytes transferred so far.
+         *
+         * @param bytes The bytes the client has acknowledged or the server has written.
+         */
+        public void setBytes(long bytes) {
+            this.bytes = bytes;
+        }
+
+        /**
+         * Adds to the number of bytes transferred.
+         *
+         * @param bytes The bytes just transferred.
+         */
+        public void addBytes(long bytes) {
+            this.bytes += bytes;
+        }
+
+        /**
+         * Sets how the transfer ended. A transfer that never sets it is logged as aborted.
+         *
+         * @param outcome A short word such as ok or timeout, or an error message.
+         */
+        public void setOutcome(String outcome) {
+            this.outcome = outcome;
+        }
+
+        /**
+         * Checks whether the transfer ended well.
+         *
+         * @return true if the outcome is ok.
+         */
+        public boolean isOk() {
+            return "ok".equals(outcome);
+        }
+
+        /**
+         * Adds key=value fields to the end of the record.
+         *
+         * @param detail The fields, separated by spaces.
+         */
+        public void setDetail(String detail) {
+            this.detail = detail;
+        }
+
+        /**
+         * Queues the record. Only the first call counts.
+         */
+        public void end() {
+            if (ended) {
+                return;
+            }
+            ended = true;
+            millis = (System.nanoTime() - startedAt) / 1_000_000L;
+            log.offer(this);
+        }
+
+        @Override
+        public String toString() {
+            return Instant.ofEpochMilli(time) + " ACCESS client=" + addr.getHostAddress() + ":" + port + " op=" + op
+                    + " file=\"" + filename + "\" bytes=" + bytes + " ms=" + millis + " outcome=\"" + outcome + "\""
+                    + (detail != null ? " " + detail : "");
+        }
+    }
+}
@@ -0,0 +1,404 @@
+package TFTP_UDP_Server;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+public class Metrics implements MetricsMBean {
+    private static final Metrics SHARED = new Metrics();
+    // RFC 1350 codes 0 to 7, RFC 2347's 8, and anything else in the last slot
+    private static final int ERROR_CODES = 10;
+
+    private final LongAdder sessionsStarted = new LongAdder();
+    private final LongAdder sessionsActive = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder packetsSent = new LongAdder();
+    private final LongAdder packetsReceived = new LongAdder();
+    private final LongAdder retransmits = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder syncBatches = new LongAdder();
+    private final LongAdder syncedFiles = new LongAdder();
+    private final LongAdder prefetchHits = new LongAdder();
+    private final LongAdder prefetchMisses = new LongAdder();
+    private final LongAdder writeStalls = new LongAdder();
+    private final LongAdder[] errors = new LongAdder[ERROR_CODES];
+    private final Histogram rtt = new Histogram();
+    private final Histogram sessionTime = new Histogram();
+    private final Histogram syncTime = new Histogram();
+    private final Histogram cwnd = new Histogram();
+
+    // Rates over the last reporting interval, updated by the reporter thread
+    private long lastSent;
+    private long lastReceived;
+    private long lastAt = System.nanoTime();
+    private volatile double sendRate;
+    private volatile double receiveRate;
+
+    private Metrics() {
+        for (int i = 0; i < ERROR_CODES; i++) {
+            errors[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Gets the metrics shared by every session and engine.
+     * Counters are striped LongAdders, so sessions on different threads never contend on
+     * a lock or a single cache line when they count a packet.
+     *
+     * @return The shared metrics.
+     */
+    public static Metrics shared() {
+        return SHARED;
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server and starts writing a snapshot
+     * to -Dtftp.metrics.file every -Dtftp.metrics.interval seconds. An empty file name
+     * turns the snapshot off; the rates seen over JMX are still updated.
+     */
+    public void start() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("TFTP_UDP_Server:type=Metrics"));
+        } catch (JMException e) {
+            Log.shared().error("Metrics not registered with JMX", e.getMessage());
+        }
+
+        Path file = Constants.METRICS_FILE.isEmpty() ? null : Paths.get(Constants.METRICS_FILE);
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "tftp-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        int interval = Math.max(1, Constants.METRICS_INTERVAL);
+        reporter.scheduleAtFixedRate(() -> report(file), interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Counts a session starting.
+     *
+     * @return The start time, to hand back to sessionEnded.
+     */
+    public long sessionStarted() {
+        sessionsStarted.increment();
+        sessionsActive.increment();
+        return System.nanoTime();
+    }
+
+    /**
+     * Counts a session ending and records how long it ran.
+     *
+     * @param startedAt The time returned by sessionStarted.
+     */
+    public void sessionEnded(long startedAt) {
+        sessionsActive.decrement();
+        sessionTime.record((System.nanoTime() - startedAt) / 1_000_000L);
+    }
+
+    /**
+     * Counts a datagram sent by the server.
+     *
+     * @param bytes The length of the datagram.
+     */
+    public void packetSent(int bytes) {
+        packetsSent.increment();
+        bytesSent.add(bytes);
+    }
+
+    /**
+     * Counts a datagram received by the server.
+     *
+     * @param bytes The length of the datagram.
+     */
+    public void packetReceived(int bytes) {
+        packetsReceived.increment();
+        bytesReceived.add(bytes);
+    }
+
+    /**
+     * Counts a timer expiry that led to a packet being sent again.
+     */
+    public void retransmit() {
+        retransmits.increment();
+    }
+
+    /**
+     * Counts a transfer abandoned because the peer stopped answering.
+     */
+    public void timeout() {
+        timeouts.increment();
+    }
+
+    /**
+     * Counts a request dropped because its client already has a session.
+     */
+    public void duplicateRequest() {
+        duplicates.increment();
+    }
+
+    /**
+     * Counts a batch of uploads made durable together and records how long it took.
+     *
+     * @param files The uploads in the batch.
+     * @param nanos The time spent syncing and publishing them.
+     */
+    public void syncBatch(int files, long nanos) {
+        syncBatches.increment();
+        syncedFiles.add(files);
+        syncTime.record(nanos / 1000L);
+    }
+
+    /**
+     * Counts a new block a download sent, by whether the read-ahead had it loaded.
+     *
+     * @param hit Whether the block came from the read-ahead rather than a read of its own.
+     */
+    public void prefetch(boolean hit) {
+        (hit ? prefetchHits : prefetchMisses).increment();
+    }
+
+    /**
+     * Counts an upload that had to wait for the disk because its write-behind queue was full.
+     */
+    public void writeStall() {
+        writeStalls.increment();
+    }
+
+    /**
+     * Records the congestion window a session ended with.
+     *
+     * @param blocks The window in blocks.
+     */
+    public void congestionWindow(long blocks) {
+        cwnd.record(blocks);
+    }
+
+    /**
+     * Counts an ERROR sent by the server.
+     *
+     * @param code The TFTP error code.
+     */
+    public void errorSent(short code) {
+        errors[code >= 0 && code < ERROR_CODES - 1 ? code : ERROR_CODES - 1].increment();
+    }
+
+    /**
+     * Records a round trip time measured by a retransmission timer.
+     *
+     * @param nanos The round trip time in nanoseconds.
+     */
+    public void rtt(long nanos) {
+        rtt.record(nanos / 1000L);
+    }
+
+    /**
+     * Updates the rates and writes the snapshot file, if there is one.
+     * The file is written next to its final name and moved over it, so a reader never sees half of it.
+     *
+     * @param file The snapshot file, or null for none.
+     */
+    private void report(Path file) {
+        long now = System.nanoTime();
+        long sent = bytesSent.sum();
+        long received = bytesReceived.sum();
+        double seconds = (now - lastAt) / 1e9;
+        sendRate = (sent - lastSent) / seconds;
+        receiveRate = (received - lastReceived) / seconds;
+        lastSent = sent;
+        lastReceived = received;
+        lastAt = now;
+
+        if (file == null) {
+            return;
+        }
+        try {
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.write(temp, snapshot().getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Log.shared().error("Metrics snapshot failed", e.getMessage());
+        }
+    }
+
+    /**
+     * Formats the metrics in the Prometheus text format.
+     *
+     * @return The snapshot.
+     */
+    public String snapshot() {
+        StringWriter text = new StringWriter();
+        PrintWriter out = new PrintWriter(text);
+        out.println("tftp_sessions_active " + getActiveSessions());
+        out.println("tftp_sessions_total " + getSessionsStarted());
+        out.println("tftp_bytes_total{direction=\"sent\"} " + getBytesSent());
+        out.println("tftp_bytes_total{direction=\"received\"} " + getBytesReceived());
+        out.printf("tftp_bytes_per_second{direction=\"sent\"} %.1f%n", getBytesSentPerSecond());
+        out.printf("tftp_bytes_per_second{direction=\"received\"} %.1f%n", getBytesReceivedPerSecond());
+        out.println("tftp_packets_total{direction=\"sent\"} " + getPacketsSent());
+        out.println("tftp_packets_total{direction=\"received\"} " + getPacketsReceived());
+        out.println("tftp_retransmits_total " + getRetransmits());
+        out.println("tftp_timeouts_total " + getTimeouts());
+        out.println("tftp_duplicate_requests_total " + getDuplicateRequests());
+        out.println("tftp_sync_batches_total " + getSyncBatches());
+        out.println("tftp_synced_files_total " + getSyncedFiles());
+        out.println("tftp_prefetch_total{result=\"hit\"} " + getPrefetchHits());
+        out.println("tftp_prefetch_total{result=\"miss\"} " + getPrefetchMisses());
+        out.println("tftp_write_stalls_total " + getWriteStalls());
+        long[] byCode = getErrorsByCode();
+        for (int i = 0; i < byCode.length; i++) {
+            out.println("tftp_errors_total{code=\"" + (i < ERROR_CODES - 1 ? Integer.toString(i) : "other") + "\"} " + byCode[i]);
+        }
+        summary(out, "tftp_rtt_microseconds", rtt);
+        summary(out, "tftp_session_milliseconds", sessionTime);
+        summary(out, "tftp_sync_microseconds", syncTime);
+        summary(out, "tftp_cwnd_blocks", cwnd);
+        out.flush();
+        return text.toString();
+    }
+
+    private static void summary(PrintWriter out, String name, Histogram histogram) {
+        for (double q : new double[] {0.5, 0.9, 0.99, 0.999}) {
+            out.println(name + "{quantile=\"" + q + "\"} " + histogram.percentile(q * 100));
+        }
+        out.println(name + "_max " + histogram.getMax());
+        out.println(name + "_sum " + histogram.getSum());
+        out.println(name + "_count " + histogram.getCount());
+    }
+
+    @Override
+    public long getActiveSessions() {
+        return sessionsActive.sum();
+    }
+
+    @Override
+    public long getSessionsStarted() {
+        return sessionsStarted.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public double getBytesSentPerSecond() {
+        return sendRate;
+    }
+
+    @Override
+    public double getBytesReceivedPerSecond() {
+        return receiveRate;
+    }
+
+    @Override
+    public long getPacketsSent() {
+        return packetsSent.sum();
+    }
+
+    @Override
+    public long getPacketsReceived() {
+        return packetsReceived.sum();
+    }
+
+    @Override
+    public long getRetransmits() {
+        return retransmits.sum();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    @Override
+    public long getDuplicateRequests() {
+        return duplicates.sum();
+    }
+
+    @Override
+    public long getSyncBatches() {
+        return syncBatches.sum();
+    }
+
+    @Override
+    public long getSyncedFiles() {
+        return syncedFiles.sum();
+    }
+
+    @Override
+    public long getPrefetchHits() {
+        return prefetchHits.sum();
+    }
+
+    @Override
+    public long getPrefetchMisses() {
+        return prefetchMisses.sum();
+    }
+
+    @Override
+    public long getWriteStalls() {
+        return writeStalls.sum();
+    }
+
+    @Override
+    public long[] getErrorsByCode() {
+        long[] byCode = new long[ERROR_CODES];
+        for (int i = 0; i < ERROR_CODES; i++) {
+            byCode[i] = errors[i].sum();
+        }
+        return byCode;
+    }
+
+    @Override
+    public long getRttP50Micros() {
+        return rtt.percentile(50);
+    }
+
+    @Override
+    public long getRttP99Micros() {
+        return rtt.percentile(99);
+    }
+
+    @Override
+    public long getRttP999Micros() {
+        return rtt.percentile(99.9);
+    }
+
+    @Override
+    public long getRttMaxMicros() {
+        return rtt.getMax();
+    }
+
+    @Override
+    public long getSessionP50Millis() {
+        return sessionTime.percentile(50);
+    }
+
+    @Override
+    public long getSessionP99Millis() {
+        return sessionTime.percentile(99);
+    }
+
+    @Override
+    public long getSessionMaxMillis() {
+        return sessionTime.getMax();
+    }
+}
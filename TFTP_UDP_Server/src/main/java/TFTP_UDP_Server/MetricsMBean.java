@@ -0,0 +1,52 @@
+package TFTP_UDP_Server;
+
+// What JMX sees of Metrics, registered as TFTP_UDP_Server:type=Metrics
+public interface MetricsMBean {
+    long getActiveSessions();
+
+    long getSessionsStarted();
+
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    double getBytesSentPerSecond();
+
+    double getBytesReceivedPerSecond();
+
+    long getPacketsSent();
+
+    long getPacketsReceived();
+
+    long getRetransmits();
+
+    long getTimeouts();
+
+    long getDuplicateRequests();
+
+    long getSyncBatches();
+
+    long getSyncedFiles();
+
+    long getPrefetchHits();
+
+    long getPrefetchMisses();
+
+    long getWriteStalls();
+
+    long[] getErrorsByCode();
+
+    long getRttP50Micros();
+
+    long getRttP99Micros();
+
+    long getRttP999Micros();
+
+    long getRttMaxMicros();
+
+    long getSessionP50Millis();
+
+    long getSessionP99Millis();
+
+    long getSessionMaxMillis();
+}
@@ -0,0 +1,155 @@
+package TFTP_UDP_Server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+
+public class MulticastGroups {
+    private static final MulticastGroups SHARED = new MulticastGroups(Constants.MCAST_GROUPS);
+
+    private final Map<String, MulticastTransfer> active = new HashMap<>();
+    private final boolean[] used;
+
+    /**
+     * Creates a registry handing out up to the given number of group addresses.
+     *
+     * @param groups The number of multicast transfers that may run at once.
+     */
+    public MulticastGroups(int groups) {
+        this.used = new boolean[Math.max(0, groups)];
+    }
+
+    /**
+     * Gets the registry shared by all sessions.
+     *
+     * @return The shared registry.
+     */
+    public static MulticastGroups shared() {
+        return SHARED;
+    }
+
+    /**
+     * Adds a client to the multicast transfer of a file, starting one if none is running.
+     * Clients share a transfer when they ask for the same file with the same options, so
+     * the OACK every member gets carries exactly what it asked for (RFC 2347); a client whose
+     * options differ gets a transfer of its own, or unicast once every group address is taken.
+     * The client that starts a transfer runs it on its own session thread until no member
+     * is left, so this only returns early for clients joining a running transfer.
+     *
+     * @param filename The requested file.
+     * @param opts The client's negotiated options.
+     * @param addr The address of the client.
+     * @param port The port of the client.
+     * @return false if every group address is in use, in which case the caller serves the client by unicast.
+     * @throws IOException If the group cannot be set up.
+     */
+    public boolean join(String filename, TransferOptions opts, InetAddress addr, int port) throws IOException {
+        InetSocketAddress client = new InetSocketAddress(addr, port);
+        String key = key(filename, opts);
+        MulticastTransfer transfer;
+
+        synchronized (this) {
+            MulticastTransfer running = active.get(key);
+            if (running != null) {
+                running.add(client);
+                return true;
+            }
+
+            int slot = freeSlot();
+            if (slot < 0) {
+                return false;
+            }
+            used[slot] = true;
+            try {
+                transfer = new MulticastTransfer(this, key, slot, groupAddress(slot), filename, opts);
+            } catch (UnknownHostException e) {
+                used[slot] = false;
+                throw e;
+            }
+            transfer.add(client);
+            active.put(key, transfer);
+        }
+
+        try {
+            transfer.run();
+        } finally {
+            close(transfer);
+        }
+        return true;
+    }
+
+    /**
+     * Ends a transfer whose members have all left, unless a client joined meanwhile.
+     * Joining and retiring both hold the registry lock, so a client never joins a
+     * transfer that has already stopped.
+     *
+     * @param transfer The transfer with no members left.
+     * @return true if the transfer ended, false if it has new clients to serve.
+     */
+    synchronized boolean retire(MulticastTransfer transfer) {
+        if (transfer.hasJoins()) {
+            return false;
+        }
+        close(transfer);
+        return true;
+    }
+
+    /**
+     * Removes a transfer and frees its group address. Safe to call more than once.
+     *
+     * @param transfer The transfer.
+     */
+    private synchronized void close(MulticastTransfer transfer) {
+        if (transfer.closed) {
+            return;
+        }
+        transfer.closed = true;
+        active.remove(transfer.key, transfer);
+        used[transfer.slot] = false;
+    }
+
+    /**
+     * Builds the registry key from the file and every option accepted for the client.
+     * The tsize asked for with an RRQ is always replaced by the file's size, so only
+     * whether it was asked for counts.
+     *
+     * @param filename The requested file.
+     * @param opts The client's negotiated options.
+     * @return The key.
+     */
+    private static String key(String filename, TransferOptions opts) {
+        StringBuilder key = new StringBuilder(filename);
+        for (Map.Entry<String, String> option : opts.getAccepted().entrySet()) {
+            key.append('\0').append(option.getKey());
+            if (!Constants.OPT_TSIZE.equals(option.getKey())) {
+                key.append('=').append(option.getValue());
+            }
+        }
+        return key.toString();
+    }
+
+    private int freeSlot() {
+        for (int i = 0; i < used.length; i++) {
+            if (!used[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the group address for a slot, counting up from the configured base address.
+     *
+     * @param slot The slot.
+     * @return The group address.
+     * @throws UnknownHostException If the base address is invalid.
+     */
+    private static InetAddress groupAddress(int slot) throws UnknownHostException {
+        byte[] addr = InetAddress.getByName(Constants.MCAST_GROUP).getAddress();
+        addr[addr.length - 1] += (byte) slot;
+        return InetAddress.getByAddress(addr);
+    }
+}
@@ -0,0 +1,426 @@
+package TFTP_UDP_Server;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class MulticastTransfer {
+    final String key;
+    final int slot;
+    // Guarded by the registry's lock
+    boolean closed;
+
+    private final MulticastGroups groups;
+    private final InetAddress group;
+    private final String filename;
+    private final TransferOptions opts;
+    private final int blockSize;
+    private final int windowSize;
+    private final int rollover;
+    private final Queue<InetSocketAddress> joins = new ConcurrentLinkedQueue<>();
+    private final List<Member> members = new ArrayList<>();
+    private final BufferPool pool = BufferPool.shared();
+    private final Metrics metrics = Metrics.shared();
+    private final Traffic.Flow flow = Traffic.shared().group();
+    private long size;
+
+    private MulticastSocket socket;
+    private int localPort;
+    private byte[] controlOut;
+    private DatagramPacket outPacket;
+    private byte[] controlIn;
+    private DatagramPacket inPacket;
+
+    /**
+     * Creates a multicast transfer of one file (RFC 2090). It does not run until run is called.
+     *
+     * @param groups The registry the transfer belongs to.
+     * @param key The registry key, the file and negotiated options.
+     * @param slot The registry slot holding the group address.
+     * @param group The group address the blocks are sent to.
+     * @param filename The file to send.
+     * @param opts The options negotiated with the first client, the same for every member.
+     */
+    MulticastTransfer(MulticastGroups groups, String key, int slot, InetAddress group, String filename, TransferOptions opts) {
+        this.groups = groups;
+        this.key = key;
+        this.slot = slot;
+        this.group = group;
+        this.filename = filename;
+        this.opts = opts;
+        this.blockSize = opts.getBlockSize();
+        this.windowSize = opts.getWindowSize();
+        this.rollover = opts.getRollover();
+    }
+
+    /**
+     * Queues a client to join the transfer. Called under the registry's lock.
+     *
+     * @param client The client's address and port.
+     */
+    void add(InetSocketAddress client) {
+        joins.add(client);
+    }
+
+    /**
+     * Checks whether clients are waiting to join.
+     *
+     * @return true if the join queue is not empty.
+     */
+    boolean hasJoins() {
+        return !joins.isEmpty();
+    }
+
+    /**
+     * Runs the transfer until every member has the file or has gone quiet.
+     * Every block is sent once to the group. One member at a time is the master client,
+     * told so by an OACK with mc=1, and only its ACKs move the window on, as in ReadRequest.
+     * Other members listen to the group and keep what they see. When the master finishes
+     * or stops answering, the next member becomes master and its first ACK says where its
+     * own copy has a gap, so late joiners get the blocks they missed from the same stream.
+     * Members that finish while listening send a final ACK and are dropped from the list.
+     *
+     * @throws IOException If an IO error occurs on the transfer's socket.
+     */
+    public void run() throws IOException {
+        byte[] data = pool.acquire(blockSize + 4);
+        controlOut = pool.acquire(Constants.MAX_LEN);
+        controlIn = pool.acquire(Constants.MAX_LEN);
+        outPacket = new DatagramPacket(controlOut, Constants.MAX_LEN);
+        inPacket = new DatagramPacket(controlIn, Constants.MAX_LEN);
+
+        try (MulticastSocket socket = new MulticastSocket()) {
+            this.socket = socket;
+            this.localPort = socket.getLocalPort();
+            socket.setTimeToLive(Constants.MCAST_TTL);
+            if (Constants.MCAST_INTERFACE != null) {
+                socket.setNetworkInterface(NetworkInterface.getByName(Constants.MCAST_INTERFACE));
+            }
+
+            BlockReader reader;
+            try {
+                reader = new BlockReader(filename, blockSize, data);
+            } catch (IOException e) {
+                admit(null);
+                for (Member member : members) {
+                    sendError(member.addr, BlockReader.errorCode(e), e.getMessage());
+                    member.access.setOutcome(e.getMessage());
+                }
+                return;
+            }
+
+            try {
+                size = reader.size();
+                opts.setTransferSize(size);
+                Log.shared().info("Multicast transfer of " + filename + " on", group.getHostAddress() + ":" + Constants.MCAST_PORT);
+                transfer(reader, new DatagramPacket(data, blockSize + 4, group, Constants.MCAST_PORT), reader.size() / blockSize + 1);
+            } finally {
+                reader.close();
+            }
+        } finally {
+            for (Member member : members) {
+                member.access.end();
+            }
+            pool.release(data);
+            pool.release(controlOut);
+            pool.release(controlIn);
+        }
+    }
+
+    /**
+     * The transfer loop. Elects a master when there is none, sends the window starting
+     * at the master's first missing block to the group, and waits for the master's ACK.
+     *
+     * @param reader The file being sent.
+     * @param dataPacket The DATA packet addressed to the group.
+     * @param lastBlock The number of the final, short block.
+     * @throws IOException If an IO error occurs.
+     */
+    private void transfer(BlockReader reader, DatagramPacket dataPacket, long lastBlock) throws IOException {
+        byte[] data = dataPacket.getData();
+        RetransmitTimer timer = new RetransmitTimer();
+        Member master = null;
+        long base = 1;
+        long sent = 1;
+
+        while (true) {
+            admit(master);
+
+            if (master == null) {
+                master = elect();
+                if (master == null) {
+                    if (groups.retire(this)) {
+                        return;
+                    }
+                    continue;
+                }
+
+                long acked = promote(master, timer, lastBlock);
+                if (acked < 0 || acked >= lastBlock) {
+                    leave(master, acked < 0 ? "client error" : "ok");
+                    master = null;
+                    timer = new RetransmitTimer();
+                    continue;
+                }
+                base = acked + 1;
+            }
+
+            long next = base;
+            boolean retransmit = base < sent;
+            while (next < base + windowSize && next <= lastBlock) {
+                int bytesRead = reader.readBlock(next);
+                PacketUtils.createData(data, BlockSequence.toWire(next, rollover));
+                dataPacket.setLength(bytesRead + 4);
+                Traffic.pause(flow.send(bytesRead + 4));
+                socket.send(dataPacket);
+                metrics.packetSent(bytesRead + 4);
+                Recorder.shared().sent(group, Constants.MCAST_PORT, localPort, dataPacket.getData(), 0, bytesRead + 4);
+                next++;
+            }
+            sent = Math.max(sent, next);
+            long sentAt = System.nanoTime();
+
+            long acked;
+            try {
+                // The master may already hold blocks past this window, so any block up to the last is a valid ACK
+                acked = awaitAck(master, timer.timeout(), base, lastBlock + 1, lastBlock);
+            } catch (SocketTimeoutException e) {
+                if (!timer.backoff()) {
+                    leave(master, "timeout");
+                    master = null;
+                    timer = new RetransmitTimer();
+                }
+                continue;
+            }
+
+            if (acked < 0) {
+                leave(master, "client error");
+                master = null;
+                continue;
+            }
+            if (acked >= base) {
+                if (!retransmit) {
+                    timer.sample(System.nanoTime() - sentAt);
+                }
+                timer.reset();
+            }
+            if (acked == lastBlock) {
+                leave(master, "ok");
+                master = null;
+                continue;
+            }
+            base = acked + 1;
+        }
+    }
+
+    /**
+     * Adds the clients waiting to join to the member list. While a master is running
+     * they are told straight away, with mc=0, to start listening to the group.
+     * A repeated request from a client that is already a member means its OACK was lost,
+     * so a member already told is sent its OACK again, with mc=1 if it is the master.
+     *
+     * @param master The running master, or null to only add the new members for now.
+     * @throws IOException If an IO error occurs.
+     */
+    private void admit(Member master) throws IOException {
+        InetSocketAddress client;
+        while ((client = joins.poll()) != null) {
+            Member existing = find(client.getAddress(), client.getPort());
+            if (existing != null) {
+                Metrics.shared().duplicateRequest();
+                if (master != null && existing.notified) {
+                    sendOack(existing, existing == master);
+                }
+                continue;
+            }
+            Member member = new Member(client, Log.shared().access("RRQ", filename, client.getAddress(), client.getPort()));
+            members.add(member);
+            if (master != null) {
+                sendOack(member, false);
+            }
+        }
+    }
+
+    /**
+     * Picks the longest-waiting member as master and tells any member not yet told to listen.
+     *
+     * @return The new master, or null if there are no members.
+     * @throws IOException If an IO error occurs.
+     */
+    private Member elect() throws IOException {
+        if (members.isEmpty()) {
+            return null;
+        }
+        Member master = members.get(0);
+        for (int i = 1; i < members.size(); i++) {
+            if (!members.get(i).notified) {
+                sendOack(members.get(i), false);
+            }
+        }
+        return master;
+    }
+
+    /**
+     * Makes a member the master with an OACK carrying mc=1, resending it on the timer,
+     * and waits for the ACK that says how much of the file the member already has.
+     *
+     * @param master The new master.
+     * @param timer The transfer's retransmission timer.
+     * @param lastBlock The number of the final block.
+     * @return The last block the member has in order, or -1 if it never answered.
+     * @throws IOException If an IO error occurs.
+     */
+    private long promote(Member master, RetransmitTimer timer, long lastBlock) throws IOException {
+        while (true) {
+            sendOack(master, true);
+            long sentAt = System.nanoTime();
+            try {
+                long acked = awaitAck(master, timer.timeout(), -1, lastBlock + 1, lastBlock);
+                if (acked >= 0) {
+                    timer.sample(System.nanoTime() - sentAt);
+                    timer.reset();
+                }
+                return acked;
+            } catch (SocketTimeoutException e) {
+                if (!timer.backoff()) {
+                    return -1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits for an ACK from the master. Final ACKs and ERRORs from other members remove them.
+     * With a base of -1 any block number is accepted and read as the nearest block to
+     * the start of the file, which is how a newly promoted master's ACK is taken. Past the
+     * first wrap of the wire number that can only be at or before the member's real
+     * position, so at worst blocks it already has are sent again.
+     *
+     * @param master The master.
+     * @param timeout How long to wait in total, in milliseconds.
+     * @param base The oldest unacknowledged block, or -1 for a newly promoted master.
+     * @param next The block after the highest one the master may acknowledge.
+     * @param lastBlock The number of the final block.
+     * @return The highest block the master acknowledged, or -1 if the master sent an ERROR.
+     * @throws SocketTimeoutException If the master does not answer in time.
+     * @throws IOException If an IO error occurs.
+     */
+    private long awaitAck(Member master, int timeout, long base, long next, long lastBlock) throws IOException {
+        long deadline = System.nanoTime() + timeout * 1_000_000L;
+        while (true) {
+            int remaining = (int) ((deadline - System.nanoTime()) / 1_000_000L);
+            if (remaining <= 0) {
+                throw new SocketTimeoutException();
+            }
+            socket.setSoTimeout(remaining);
+            inPacket.setLength(Constants.MAX_LEN);
+            socket.receive(inPacket);
+            metrics.packetReceived(inPacket.getLength());
+            Recorder.shared().received(inPacket.getAddress(), inPacket.getPort(), localPort, controlIn, 0, inPacket.getLength());
+
+            Member from = find(inPacket.getAddress(), inPacket.getPort());
+            if (from == null || inPacket.getLength() < 4) {
+                continue;
+            }
+            short ack = (short) (((controlIn[2] & 0xFF) << 8) | (controlIn[3] & 0xFF));
+
+            if (from != master) {
+                boolean done = controlIn[1] == Constants.ACK && ack == BlockSequence.toWire(lastBlock, rollover);
+                if (controlIn[1] == Constants.ERROR || done) {
+                    leave(from, done ? "ok" : "client error");
+                }
+                continue;
+            }
+
+            if (controlIn[1] == Constants.ERROR) {
+                return -1;
+            }
+            if (controlIn[1] != Constants.ACK) {
+                continue;
+            }
+
+            if (base < 0) {
+                return Math.min(ack & 0xFFFF, lastBlock);
+            }
+            long acked = BlockSequence.fromWireAfter(ack, base - 1, rollover);
+            if (acked >= base - 1 && acked < next) {
+                return acked;
+            }
+        }
+    }
+
+    /**
+     * Drops a member from the transfer and queues its access record.
+     *
+     * @param member The member leaving.
+     * @param outcome How its transfer ended.
+     */
+    private void leave(Member member, String outcome) {
+        members.remove(member);
+        if ("ok".equals(outcome)) {
+            member.access.setBytes(size);
+        }
+        member.access.setOutcome(outcome);
+        member.access.end();
+    }
+
+    private Member find(InetAddress addr, int port) {
+        for (Member member : members) {
+            if (member.addr.getPort() == port && member.addr.getAddress().equals(addr)) {
+                return member;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Sends a member the OACK with the shared options and "multicast" set to the group
+     * address, port and whether the member is the master.
+     *
+     * @param member The member.
+     * @param master Whether the member is now the master client.
+     * @throws IOException If an IO error occurs.
+     */
+    private void sendOack(Member member, boolean master) throws IOException {
+        Map<String, String> oack = new LinkedHashMap<>(opts.getAccepted());
+        oack.put(Constants.OPT_MULTICAST, group.getHostAddress() + "," + Constants.MCAST_PORT + "," + (master ? 1 : 0));
+
+        outPacket.setData(controlOut, 0, PacketUtils.writeOack(controlOut, oack));
+        outPacket.setSocketAddress(member.addr);
+        socket.send(outPacket);
+        metrics.packetSent(outPacket.getLength());
+        Recorder.shared().sent(member.addr.getAddress(), member.addr.getPort(), localPort, controlOut, 0, outPacket.getLength());
+        member.notified = true;
+    }
+
+    private void sendError(InetSocketAddress client, short code, String msg) throws IOException {
+        outPacket.setData(controlOut, 0, PacketUtils.writeError(controlOut, code, msg));
+        outPacket.setSocketAddress(client);
+        socket.send(outPacket);
+        metrics.packetSent(outPacket.getLength());
+        metrics.errorSent(code);
+        Recorder.shared().sent(client.getAddress(), client.getPort(), localPort, controlOut, 0, outPacket.getLength());
+    }
+
+    // A client taking part in the transfer
+    private static class Member {
+        final InetSocketAddress addr;
+        final Log.Access access;
+        boolean notified;
+
+        Member(InetSocketAddress addr, Log.Access access) {
+            this.addr = addr;
+            this.access = access;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package TFTP_UDP_Server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class NetasciiDecoder {
+    private final FileChannel channel;
+    private final ByteBuffer lone = ByteBuffer.wrap(new byte[] {'\r'});
+    // A CR ended the last block, and the next one says what it stood for
+    private boolean held;
+
+    /**
+     * Creates the translation stage between DATA packets and a file for a netascii
+     * write (RFC 764): CR LF is stored as a line feed and CR NUL as a carriage return.
+     * Translation never makes a block longer, so it is done in place in the packet buffer.
+     *
+     * @param channel The file to write to.
+     */
+    public NetasciiDecoder(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Translates a block in place and writes it. A CR at the end of a block is held back
+     * until the next block shows whether it began a CR LF or a CR NUL.
+     *
+     * @param buf The buffer holding the block.
+     * @param off The position of the block in buf.
+     * @param len The length of the block.
+     * @param payload A buffer over the same bytes, from off, used for the write.
+     * @throws IOException If the file cannot be written.
+     */
+    public void write(byte[] buf, int off, int len, ByteBuffer payload) throws IOException {
+        int i = off;
+        int o = off;
+        int end = off + len;
+        if (held && i < end) {
+            held = false;
+            if (buf[i] == '\n') {
+                o++;
+                i++;
+            } else if (buf[i] == 0) {
+                buf[o++] = '\r';
+                i++;
+            } else {
+                // A bare CR, which netascii does not allow, is kept as it was
+                writeLone();
+            }
+        }
+
+        while (i < end) {
+            byte b = buf[i++];
+            if (b != '\r') {
+                buf[o++] = b;
+            } else if (i == end) {
+                held = true;
+            } else if (buf[i] == '\n') {
+                buf[o++] = '\n';
+                i++;
+            } else if (buf[i] == 0) {
+                buf[o++] = '\r';
+                i++;
+            } else {
+                buf[o++] = '\r';
+            }
+        }
+
+        payload.clear().limit(o - off);
+        while (payload.hasRemaining()) {
+            channel.write(payload);
+        }
+    }
+
+    /**
+     * Writes a CR still held back when the transfer ends.
+     *
+     * @throws IOException If the file cannot be written.
+     */
+    public void finish() throws IOException {
+        if (held) {
+            held = false;
+            writeLone();
+        }
+    }
+
+    private void writeLone() throws IOException {
+        lone.clear();
+        while (lone.hasRemaining()) {
+            channel.write(lone);
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package TFTP_UDP_Server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class NioEngine {
+    private final EventLoop[] loops;
+    private final AtomicInteger sessions = new AtomicInteger();
+    private final int maxSessions;
+    private final BufferPool pool = BufferPool.shared();
+
+    /**
+     * Creates the selector engine. Every session gets its own non-blocking channel and
+     * lives on one of a small, fixed number of event loops, so the number of threads no
+     * longer grows with the number of transfers in flight.
+     *
+     * @param loopCount The number of event loop threads.
+     * @param maxSessions The number of sessions that may be open at once.
+     * @throws IOException If a selector cannot be opened.
+     */
+    public NioEngine(int loopCount, int maxSessions) throws IOException {
+        this.loops = new EventLoop[Math.max(1, loopCount)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop("tftp-loop-" + i);
+        }
+        this.maxSessions = maxSessions;
+    }
+
+    /**
+     * Binds the listening channel to the server port and starts the event loops.
+     * The listener is served by the first loop, which hands each request to the loops in turn.
+     * With -Dtftp.listeners=N and SO_REUSEPORT, the first N loops each get a listener of
+     * their own and only hand requests to their share of the loops, so intake is spread
+     * across cores as well. The loop threads keep the server running after this returns.
+     *
+     * @throws IOException If the port cannot be bound.
+     */
+    public void start() throws IOException {
+        int shards = Math.min(loops.length, Math.max(1, Constants.LISTENERS));
+        if (shards > 1 && ReusePort.isSupported()) {
+            for (int i = 0; i < shards; i++) {
+                listen(ReusePort.bind(Constants.PORT), i, shards);
+            }
+        } else {
+            DatagramChannel listener = DatagramChannel.open();
+            listener.bind(new InetSocketAddress(Constants.PORT));
+            listen(listener, 0, 1);
+        }
+
+        for (EventLoop loop : loops) {
+            loop.start();
+        }
+        Log.shared().info("TFTP UDP Server Started!");
+    }
+
+    /**
+     * Registers a listening channel with a loop.
+     *
+     * @param channel The channel bound to the server port.
+     * @param first The index of the loop serving the listener, and the first to get its sessions.
+     * @param step The distance between the loops that get its sessions.
+     * @throws IOException If the channel cannot be made non-blocking.
+     */
+    private void listen(DatagramChannel channel, int first, int step) throws IOException {
+        channel.configureBlocking(false);
+        Listener handler = new Listener(channel, first, step);
+        EventLoop loop = loops[first];
+        loop.execute(() -> {
+            try {
+                loop.register(channel, SelectionKey.OP_READ, handler);
+            } catch (IOException e) {
+                Log.shared().error("Cannot listen", e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Frees a session slot and the client's entry in the session table. Called once by
+     * each session as it closes.
+     *
+     * @param client The client's address and port.
+     */
+    void sessionClosed(InetSocketAddress client) {
+        sessions.decrementAndGet();
+        SessionTable.shared().release(client);
+        Traffic.shared().release(client.getAddress());
+    }
+
+    /**
+     * Opens a session for a request on its loop. Runs on that loop's thread.
+     *
+     * @param loop The loop that will own the session.
+     * @param request The pooled copy of the request, released here.
+     * @param length The length of the request.
+     * @param client The client's address and port.
+     */
+    private void open(EventLoop loop, byte[] request, int length, InetSocketAddress client) {
+        byte op = request[1];
+        TransferRequest parsed = PacketUtils.parseRequest(request, length);
+        pool.release(request);
+
+        DatagramChannel channel;
+        try {
+            channel = DatagramChannel.open();
+            channel.bind(null);
+            channel.configureBlocking(false);
+        } catch (IOException e) {
+            Log.shared().error("Cannot open session", e.getMessage());
+            sessionClosed(client);
+            return;
+        }
+
+        NioSession session = op == Constants.RRQ
+                ? new NioReadSession(this, loop, channel, client)
+                : new NioWriteSession(this, loop, channel, client);
+        session.open(parsed);
+    }
+
+    private class Listener implements ChannelHandler {
+        private final DatagramChannel channel;
+        private final byte[] buf = new byte[Constants.MAX_LEN];
+        private final ByteBuffer recv = ByteBuffer.wrap(buf);
+        private final byte[] reply = new byte[Constants.MAX_LEN];
+        private final int localPort;
+        private final int first;
+        private final int step;
+        private int nextLoop;
+
+        Listener(DatagramChannel channel, int first, int step) {
+            this.channel = channel;
+            this.localPort = channel.socket().getLocalPort();
+            this.first = first;
+            this.step = step;
+            this.nextLoop = first;
+        }
+
+        /**
+         * Drains the requests waiting on the server port. A read or write request from a
+         * client with no session, once admitted by Traffic, is copied into a pooled buffer
+         * and opened on the next loop; requests over the session limit are refused with an
+         * ERROR. DATA and ACK sent to the server port are answered with ERROR 5.
+         *
+         * @throws IOException If an IO error occurs while receiving.
+         */
+        @Override
+        public void onReadable() throws IOException {
+            SocketAddress src;
+            while (true) {
+                recv.clear();
+                src = channel.receive(recv);
+                if (src == null) {
+                    return;
+                }
+                int length = recv.position();
+                Metrics.shared().packetReceived(length);
+                InetSocketAddress client = (InetSocketAddress) src;
+                Recorder.shared().received(client.getAddress(), client.getPort(), localPort, buf, 0, length);
+                byte op = length > 1 ? buf[1] : 0;
+
+                Log.shared().debug("Request from", src, op);
+                if (op == Constants.DATA || op == Constants.ACK) {
+                    refuse(src, Constants.ERR_UNKNOWN_TID, "Unknown transfer ID");
+                    continue;
+                }
+                if (op != Constants.RRQ && op != Constants.WRQ) {
+                    Log.shared().debug("Invalid Opcode", op, src);
+                    continue;
+                }
+
+                if (!SessionTable.shared().claim(client)) {
+                    continue;
+                }
+                if (!Traffic.shared().admit(client.getAddress())) {
+                    SessionTable.shared().release(client);
+                    if (Traffic.shared().rejects()) {
+                        refuse(src, Constants.ERR_UNDEFINED, "Too many sessions");
+                    }
+                    continue;
+                }
+                if (sessions.incrementAndGet() > maxSessions) {
+                    sessionClosed(client);
+                    refuse(src, Constants.ERR_UNDEFINED, "Server busy");
+                    continue;
+                }
+
+                byte[] request = pool.acquire(length);
+                System.arraycopy(buf, 0, request, 0, length);
+                EventLoop loop = loops[nextLoop];
+                nextLoop += step;
+                if (nextLoop >= loops.length) {
+                    nextLoop = first;
+                }
+                loop.execute(() -> open(loop, request, length, client));
+            }
+        }
+
+        /**
+         * Answers a datagram on the server port with an ERROR.
+         *
+         * @param dst The sender.
+         * @param code The TFTP error code.
+         * @param msg The error message.
+         * @throws IOException If an IO error occurs while sending.
+         */
+        private void refuse(SocketAddress dst, short code, String msg) throws IOException {
+            int length = PacketUtils.writeError(reply, code, msg);
+            Metrics.shared().packetSent(channel.send(ByteBuffer.wrap(reply, 0, length), dst));
+            Metrics.shared().errorSent(code);
+            InetSocketAddress to = (InetSocketAddress) dst;
+            Recorder.shared().sent(to.getAddress(), to.getPort(), localPort, reply, 0, length);
+        }
+
+        @Override
+        public void onWritable() {
+            // The listener only sends the occasional ERROR and never waits to write
+        }
+
+        @Override
+        public void failed(IOException e) {
+            Log.shared().error("Listener error", e.getMessage());
+        }
+    }
+}
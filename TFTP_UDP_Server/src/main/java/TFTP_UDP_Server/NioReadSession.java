@@ -0,0 +1,267 @@
+package TFTP_UDP_Server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+
+public class NioReadSession extends NioSession {
+    private TransferOptions opts;
+    private int blockSize;
+    private int windowSize;
+    private byte[] data;
+    private ByteBuffer dataBuf;
+    private BlockReader reader;
+
+    private boolean negotiating;
+    private long base = 1;
+    private long sent = 1;
+    private long next;
+    private long lastBlock = -1;
+    private boolean retransmit;
+    private long sentAt;
+    // The window already resent for a repeated ACK
+    private long gapResent;
+    // The next block's share of the rate limits has been waited for
+    private boolean paced;
+
+    /**
+     * Creates a read session. See NioSession.
+     *
+     * @param engine The engine the session was accepted by.
+     * @param loop The event loop that owns the session.
+     * @param channel The session's channel.
+     * @param peer The client's address and port.
+     */
+    public NioReadSession(NioEngine engine, EventLoop loop, DatagramChannel channel, InetSocketAddress peer) {
+        super(engine, loop, channel, peer);
+    }
+
+    /**
+     * Opens the file and sends the OACK, or the first window when no options were accepted.
+     * The transfer then follows ReadRequest, driven by ACK arrivals and timer expiries
+     * instead of a blocking receive.
+     *
+     * @param request The parsed request.
+     * @throws IOException If an IO error occurs while sending.
+     */
+    @Override
+    protected void start(TransferRequest request) throws IOException {
+        access = Log.shared().access("RRQ", request.getFilename(), peer.getAddress(), peer.getPort());
+        opts = TransferOptions.negotiate(request.getOptions());
+        blockSize = opts.getBlockSize();
+        windowSize = opts.getWindowSize();
+        data = pool.acquire(blockSize + 4);
+        dataBuf = ByteBuffer.wrap(data);
+
+        try {
+            reader = new BlockReader(request.getFilename(), blockSize, data, request.isNetascii(), windowSize);
+        } catch (IOException e) {
+            abort(BlockReader.errorCode(e), e.getMessage());
+            return;
+        }
+        opts.setTransferSize(reader.transferSize());
+        // The loop never waits on a block being loaded ahead; it reads a missing one itself
+        reader.prefetch(windowSize, false);
+
+        if (opts.hasAccepted()) {
+            negotiating = true;
+            sendOack(opts.getAccepted());
+            sentAt = System.nanoTime();
+            arm();
+        } else {
+            sendWindow();
+        }
+    }
+
+    /**
+     * Drains the ACKs waiting on the channel. ACK 0 confirms the OACK; any later ACK is
+     * unwrapped to the sequence number nearest the last acknowledged block and moves the window on, as in ReadRequest.
+     * A repeated ACK for the block before the window only resends it once, and only for a
+     * window of more than one block, so duplicates cannot snowball.
+     *
+     * @throws IOException If an IO error occurs.
+     */
+    @Override
+    public void onReadable() throws IOException {
+        byte[] control = control();
+        int len;
+        while (!isClosed() && (len = receiveControl()) >= 0) {
+            if (len < 4) {
+                continue;
+            }
+            if (control[1] == Constants.ERROR) {
+                access.setOutcome("client error");
+                close();
+                return;
+            }
+            if (control[1] != Constants.ACK) {
+                continue;
+            }
+            short ack = (short) (((control[2] & 0xFF) << 8) | (control[3] & 0xFF));
+
+            if (negotiating) {
+                if (ack == 0) {
+                    timer.sample(System.nanoTime() - sentAt);
+                    timer.reset();
+                    negotiating = false;
+                    sendWindow();
+                }
+                continue;
+            }
+
+            long acked = BlockSequence.fromWire(ack, base - 1, opts.getRollover());
+            if (acked < base - 1 || acked >= next) {
+                continue;
+            }
+            if (acked == base - 1) {
+                if (windowSize == 1 || gapResent == base) {
+                    continue;
+                }
+                gapResent = base;
+            }
+
+            if (acked >= base) {
+                if (!retransmit) {
+                    long rtt = System.nanoTime() - sentAt;
+                    timer.sample(rtt);
+                    // An ACK for a gap may come after the client's own timeout, so only whole windows are timed
+                    if (acked == next - 1) {
+                        cc.sample(rtt);
+                    }
+                }
+                timer.reset();
+                access.setBytes(Math.min(acked * blockSize, reader.size()));
+            }
+            // An ACK short of the window reports a gap
+            if (acked < next - 1) {
+                cc.lost();
+            } else {
+                cc.acked(next - base, windowSize);
+            }
+
+            if (acked == lastBlock) {
+                access.setOutcome("ok");
+                close();
+                return;
+            }
+            base = acked + 1;
+            sendWindow();
+        }
+    }
+
+    /**
+     * Carries on with a window that filled the socket buffer.
+     *
+     * @throws IOException If an IO error occurs.
+     */
+    @Override
+    public void onWritable() throws IOException {
+        resume();
+    }
+
+    /**
+     * Resends the OACK or the window from the oldest unacknowledged block, or gives up
+     * once the retries run out.
+     *
+     * @throws IOException If an IO error occurs.
+     */
+    @Override
+    protected void expired() throws IOException {
+        cc.timedOut();
+        if (!timer.backoff()) {
+            abort(Constants.ERR_UNDEFINED, "Transfer timed out");
+            return;
+        }
+        if (negotiating) {
+            sendOack(opts.getAccepted());
+            arm();
+        } else {
+            sendWindow();
+        }
+    }
+
+    /**
+     * Starts sending the window that begins at base.
+     *
+     * @throws IOException If an IO error occurs.
+     */
+    private void sendWindow() throws IOException {
+        next = base;
+        retransmit = base < sent;
+        resume();
+    }
+
+    /**
+     * Carries on with the window once the rate limits allow the next block.
+     *
+     * @throws IOException If an IO error occurs.
+     */
+    @Override
+    protected void resumed() throws IOException {
+        resume();
+    }
+
+    /**
+     * Sends the rest of the current window. If the socket buffer fills, the timer stops
+     * and the loop calls back once the channel is writable again. If a block has to wait
+     * for the rate limits or the congestion window's pacing, the session pauses and the
+     * loop calls back when it may go.
+     *
+     * @throws IOException If an IO error occurs.
+     */
+    private void resume() throws IOException {
+        if (isPaused()) {
+            return;
+        }
+        while (next < base + windowSize && (lastBlock == -1 || next <= lastBlock)) {
+            if (!paced) {
+                long wait = Math.max(flow.send(blockSize + 4), cc.pace(windowSize));
+                if (wait > 0) {
+                    paced = true;
+                    pause(wait);
+                    return;
+                }
+            }
+            int bytesRead = reader.readBlock(next);
+            PacketUtils.createData(data, BlockSequence.toWire(next, opts.getRollover()));
+            dataBuf.clear();
+            dataBuf.limit(bytesRead + 4);
+            if (!send(dataBuf)) {
+                disarm();
+                interest(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            paced = false;
+
+            if (bytesRead < blockSize) {
+                lastBlock = next;
+            }
+            next++;
+        }
+        sent = Math.max(sent, next);
+        // Round trips are timed from the end of the window, leaving out any pacing
+        sentAt = System.nanoTime();
+        interest(SelectionKey.OP_READ);
+        arm();
+    }
+
+    @Override
+    public void close() {
+        if (isClosed()) {
+            return;
+        }
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (IOException ignored) {
+                // Only read from, nothing to lose
+            }
+        }
+        if (data != null) {
+            pool.release(data);
+        }
+        super.close();
+    }
+}
@@ -0,0 +1,348 @@
+package TFTP_UDP_Server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.Map;
+
+public abstract class NioSession implements ChannelHandler {
+    protected final NioEngine engine;
+    protected final EventLoop loop;
+    protected final DatagramChannel channel;
+    protected final InetSocketAddress peer;
+    protected final RetransmitTimer timer = new RetransmitTimer();
+    protected final BufferPool pool = BufferPool.shared();
+    protected final Traffic.Flow flow;
+    protected final Congestion.Session cc;
+    // Set by start once the request is known, queued to the access log on close
+    protected Log.Access access;
+
+    private final Metrics metrics = Metrics.shared();
+    private final Recorder recorder = Recorder.shared();
+    private final int localPort;
+    private final long startedAt;
+    private final byte[] control;
+    private final ByteBuffer controlBuf;
+    // The retransmission timer or pause, on the owning loop's timing wheel
+    private final TimerWheel.Timeout timeout = new TimerWheel.Timeout(this::timedOut);
+    private SelectionKey key;
+    private int interest;
+    private boolean paused;
+    private boolean closed;
+
+    /**
+     * Creates a session on its own non-blocking channel, whose ephemeral port is the
+     * server's transfer ID. The session belongs to one event loop and is only used on its thread.
+     *
+     * @param engine The engine the session was accepted by.
+     * @param loop The event loop that owns the session.
+     * @param channel The session's channel.
+     * @param peer The client's address and port.
+     */
+    protected NioSession(NioEngine engine, EventLoop loop, DatagramChannel channel, InetSocketAddress peer) {
+        this.engine = engine;
+        this.loop = loop;
+        this.channel = channel;
+        this.peer = peer;
+        this.localPort = channel.socket().getLocalPort();
+        this.flow = Traffic.shared().flow(peer.getAddress());
+        this.cc = Congestion.shared().session(peer.getAddress());
+        this.control = pool.acquire(Constants.MAX_LEN);
+        this.controlBuf = ByteBuffer.wrap(control);
+        this.startedAt = metrics.sessionStarted();
+    }
+
+    /**
+     * Registers the session with its loop and starts the transfer. Must be called on the loop's thread.
+     *
+     * @param request The parsed request.
+     */
+    public void open(TransferRequest request) {
+        try {
+            SessionTable.shared().bind(peer, ((InetSocketAddress) channel.getLocalAddress()).getPort());
+            key = loop.register(channel, SelectionKey.OP_READ, this);
+            interest = SelectionKey.OP_READ;
+            start(request);
+        } catch (IOException e) {
+            failed(e);
+        } catch (RuntimeException e) {
+            Log.shared().error("Session failed to start", e);
+            failed(new IOException("Internal server error", e));
+        }
+    }
+
+    /**
+     * Sends the first reply to the request.
+     *
+     * @param request The parsed request.
+     * @throws IOException If an IO error occurs.
+     */
+    protected abstract void start(TransferRequest request) throws IOException;
+
+    /**
+     * Called by the loop when the retransmission timer expires.
+     *
+     * @throws IOException If an IO error occurs.
+     */
+    protected abstract void expired() throws IOException;
+
+    /**
+     * Called by the loop when a pause started with pause is over. Sessions that pause
+     * carry on with whatever they held back.
+     *
+     * @throws IOException If an IO error occurs.
+     */
+    protected void resumed() throws IOException {
+    }
+
+    /**
+     * Called by the loop's timing wheel when the session's deadline has passed, which ends
+     * either a pause or a retransmission timeout. An IO error, or any other exception, fails the session.
+     */
+    private void timedOut() {
+        try {
+            if (paused) {
+                paused = false;
+                resumed();
+            } else {
+                expired();
+            }
+        } catch (IOException e) {
+            failed(e);
+        } catch (RuntimeException e) {
+            Log.shared().error("Session timer failed", e);
+            failed(new IOException("Internal server error", e));
+        }
+    }
+
+    @Override
+    public void onWritable() throws IOException {
+        interest(SelectionKey.OP_READ);
+    }
+
+    /**
+     * Abandons the transfer with an ERROR carrying the exception's message.
+     *
+     * @param e The exception that ended the transfer.
+     */
+    @Override
+    public void failed(IOException e) {
+        abort(Constants.ERR_UNDEFINED, e.getMessage());
+    }
+
+    /**
+     * Starts the retransmission timer with the timer's current timeout.
+     */
+    protected void arm() {
+        loop.schedule(timeout, System.nanoTime() + timer.timeout() * 1_000_000L);
+        paused = false;
+    }
+
+    /**
+     * Stops the retransmission timer.
+     */
+    protected void disarm() {
+        loop.cancel(timeout);
+        paused = false;
+    }
+
+    /**
+     * Holds the session back for a while in place of its retransmission timer, which the
+     * session restarts once it has resumed. Used to wait for rate limits without blocking the loop.
+     *
+     * @param nanos How long to wait.
+     */
+    protected void pause(long nanos) {
+        loop.schedule(timeout, System.nanoTime() + nanos);
+        paused = true;
+    }
+
+    /**
+     * Checks whether the session is waiting out a pause.
+     *
+     * @return true until the pause ends or the timer is restarted.
+     */
+    protected boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * Changes the events the session waits for, skipping the update when nothing changes.
+     *
+     * @param ops The new interest set.
+     */
+    protected void interest(int ops) {
+        if (ops != interest) {
+            key.interestOps(ops);
+            interest = ops;
+        }
+    }
+
+    /**
+     * Sends a datagram to the client without blocking.
+     *
+     * @param buf The datagram, from its position to its limit.
+     * @return false if the socket buffer was full and nothing was sent.
+     * @throws IOException If an IO error occurs.
+     */
+    protected boolean send(ByteBuffer buf) throws IOException {
+        int position = buf.position();
+        int sent = channel.send(buf, peer);
+        if (sent == 0) {
+            return false;
+        }
+        metrics.packetSent(sent);
+        recorder.sent(peer.getAddress(), peer.getPort(), localPort, buf.array(), buf.arrayOffset() + position, sent);
+        return true;
+    }
+
+    /**
+     * Receives the next datagram from the client into a buffer. Datagrams from any other
+     * address or port are answered with ERROR 5 and skipped; the transfer carries on.
+     *
+     * @param buf The buffer to receive into. It is cleared first.
+     * @return The datagram's length, or -1 if none is waiting.
+     * @throws IOException If an IO error occurs.
+     */
+    protected int receive(ByteBuffer buf) throws IOException {
+        while (true) {
+            buf.clear();
+            SocketAddress src = channel.receive(buf);
+            if (src == null) {
+                return -1;
+            }
+            metrics.packetReceived(buf.position());
+            InetSocketAddress from = (InetSocketAddress) src;
+            recorder.received(from.getAddress(), from.getPort(), localPort, buf.array(), buf.arrayOffset(), buf.position());
+            if (peer.equals(src)) {
+                return buf.position();
+            }
+            Log.shared().debug("Unknown transfer ID from", src, null);
+            int length = PacketUtils.writeError(control, Constants.ERR_UNKNOWN_TID, "Unknown transfer ID");
+            metrics.packetSent(channel.send(ByteBuffer.wrap(control, 0, length), src));
+            metrics.errorSent(Constants.ERR_UNKNOWN_TID);
+            recorder.sent(from.getAddress(), from.getPort(), localPort, control, 0, length);
+        }
+    }
+
+    /**
+     * Receives the next ACK or ERROR from the client into the control buffer.
+     *
+     * @return The datagram's length, or -1 if none is waiting.
+     * @throws IOException If an IO error occurs.
+     */
+    protected int receiveControl() throws IOException {
+        return receive(controlBuf);
+    }
+
+    /**
+     * Gets the control buffer holding the last datagram from receiveControl.
+     *
+     * @return The control buffer.
+     */
+    protected byte[] control() {
+        return control;
+    }
+
+    /**
+     * Sends an ACK for the given block.
+     *
+     * @param blockNum The block number.
+     * @throws IOException If an IO error occurs.
+     */
+    protected void sendAck(short blockNum) throws IOException {
+        PacketUtils.writeAck(control, blockNum);
+        sendControl(4);
+    }
+
+    /**
+     * Sends an OACK with the accepted options.
+     *
+     * @param accepted The accepted option names and values.
+     * @throws IOException If an IO error occurs.
+     */
+    protected void sendOack(Map<String, String> accepted) throws IOException {
+        sendControl(PacketUtils.writeOack(control, accepted));
+    }
+
+    /**
+     * Sends an ERROR packet.
+     *
+     * @param code The TFTP error code.
+     * @param msg The error message.
+     * @throws IOException If an IO error occurs.
+     */
+    protected void sendError(short code, String msg) throws IOException {
+        sendControl(PacketUtils.writeError(control, code, msg));
+        metrics.errorSent(code);
+    }
+
+    private void sendControl(int length) throws IOException {
+        controlBuf.clear();
+        controlBuf.limit(length);
+        send(controlBuf);
+    }
+
+    /**
+     * Sends an ERROR if the channel still allows it, then closes the session.
+     *
+     * @param code The TFTP error code.
+     * @param msg The error message.
+     */
+    protected void abort(short code, String msg) {
+        if (access != null && !closed) {
+            access.setOutcome(msg);
+        }
+        try {
+            if (!closed) {
+                sendError(code, msg);
+            }
+        } catch (IOException ignored) {
+            // The session is closing anyway
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Closes the channel, returns the buffers to the pool and frees the engine's session slot.
+     * Subclasses release their own resources and then call this.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        loop.cancel(timeout);
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // Nothing left to do with the channel
+        }
+        pool.release(control);
+        engine.sessionClosed(peer);
+        metrics.sessionEnded(startedAt);
+        if (access != null) {
+            if (!access.isOk()) {
+                recorder.failed(peer.getAddress(), peer.getPort());
+            }
+            cc.end(access);
+            access.end();
+        }
+    }
+
+    /**
+     * Checks whether the session has been closed.
+     *
+     * @return true once close has run.
+     */
+    protected boolean isClosed() {
+        return closed;
+    }
+}
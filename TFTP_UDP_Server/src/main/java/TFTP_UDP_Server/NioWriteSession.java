@@ -0,0 +1,275 @@
+package TFTP_UDP_Server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.concurrent.CompletionException;
+
+public class NioWriteSession extends NioSession {
+    private TransferOptions opts;
+    private int blockSize;
+    private int windowSize;
+    private byte[] data;
+    private ByteBuffer dataBuf;
+    private BlockWriter writer;
+
+    private long blockNum = 1;
+    private int inWindow;
+    private boolean gapAcked;
+    private boolean started;
+    private boolean committing;
+    private long ackedAt;
+    private boolean ackRepeated;
+    // Bytes taken in since the last ACK, charged to the rate limits when the window ends
+    private long windowBytes;
+    private final Runnable roomMade = () -> loop.execute(this::roomMade);
+
+    /**
+     * Creates a write session. See NioSession.
+     *
+     * @param engine The engine the session was accepted by.
+     * @param loop The event loop that owns the session.
+     * @param channel The session's channel.
+     * @param peer The client's address and port.
+     */
+    public NioWriteSession(NioEngine engine, EventLoop loop, DatagramChannel channel, InetSocketAddress peer) {
+        super(engine, loop, channel, peer);
+    }
+
+    /**
+     * Opens the temporary file and answers the request with an OACK or ACK 0. The transfer
+     * then follows WriteRequest, driven by DATA arrivals and timer expiries instead of a
+     * blocking receive.
+     *
+     * @param request The parsed request.
+     * @throws IOException If an IO error occurs.
+     */
+    @Override
+    protected void start(TransferRequest request) throws IOException {
+        access = Log.shared().access("WRQ", request.getFilename(), peer.getAddress(), peer.getPort());
+        opts = TransferOptions.negotiate(request.getOptions());
+        blockSize = opts.getBlockSize();
+        windowSize = opts.getWindowSize();
+        data = pool.acquire(blockSize + 4);
+        dataBuf = ByteBuffer.wrap(data, 0, blockSize + 4).slice();
+
+        // Room for a whole window, so a burst is not dropped by the socket
+        int rcvbuf = channel.getOption(StandardSocketOptions.SO_RCVBUF);
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, Math.max(rcvbuf, 2 * windowSize * (blockSize + 4)));
+
+        writer = new BlockWriter(request.getFilename(), blockSize, data, request.isNetascii());
+        writer.writeBehind(windowSize);
+        acknowledge();
+        ackedAt = System.nanoTime();
+        arm();
+    }
+
+    /**
+     * Drains the DATA waiting on the channel, writing each in-order block and acknowledging
+     * the end of each window. A window over the client's or subnet's rate limit, or sent
+     * faster than the client's congestion window allows, has its ACK held back by a pause,
+     * which slows the client down. The final block is committed off the loop, because the sync
+     * it waits for would stall every other session on this thread.
+     * Blocks are written behind on the disk threads. When the write-behind queue is full
+     * the session stops reading until the disk frees a chunk, leaving the DATA in the
+     * socket buffer rather than blocking the loop.
+     *
+     * @throws IOException If an IO error occurs.
+     */
+    @Override
+    public void onReadable() throws IOException {
+        while (!isClosed() && !committing) {
+            if (!writer.hasRoom(roomMade)) {
+                interest(0);
+                return;
+            }
+            int len = receive(dataBuf);
+            if (len < 0) {
+                break;
+            }
+            if (len < 4) {
+                continue;
+            }
+            if (data[1] == Constants.ERROR) {
+                access.setOutcome("client error");
+                close();
+                return;
+            }
+            if (data[1] != Constants.DATA) {
+                continue;
+            }
+
+            short recvBlock = (short) (((data[2] & 0xFF) << 8) | (data[3] & 0xFF));
+            if (recvBlock == BlockSequence.toWire(blockNum, opts.getRollover())) {
+                int size = len - 4;
+
+                // The first block after an ACK measures the round trip, unless the ACK was repeated
+                if (inWindow == 0 && !ackRepeated) {
+                    long rtt = System.nanoTime() - ackedAt;
+                    timer.sample(rtt);
+                    cc.sample(rtt);
+                }
+                timer.reset();
+                started = true;
+
+                writer.writeBlock(size);
+                access.addBytes(size);
+                windowBytes += len;
+                inWindow++;
+                gapAcked = false;
+
+                if (size < blockSize) {
+                    commit();
+                    return;
+                }
+
+                if (inWindow == windowSize) {
+                    cc.acked(windowSize, windowSize);
+                    long wait = Math.max(flow.receive(windowBytes), cc.holdAck(windowSize));
+                    windowBytes = 0;
+                    if (wait > 0) {
+                        inWindow = 0;
+                        blockNum++;
+                        pause(wait);
+                        return;
+                    }
+                    sendAck(BlockSequence.toWire(blockNum, opts.getRollover()));
+                    inWindow = 0;
+                    ackedAt = System.nanoTime();
+                    ackRepeated = false;
+                }
+                blockNum++;
+                arm();
+            } else if (!gapAcked) {
+                cc.lost();
+                acknowledge();
+                inWindow = 0;
+                ackRepeated = true;
+                gapAcked = true;
+                arm();
+            }
+        }
+    }
+
+    /**
+     * Repeats the last acknowledgment, or gives up once the retries run out.
+     *
+     * @throws IOException If an IO error occurs.
+     */
+    @Override
+    protected void expired() throws IOException {
+        cc.timedOut();
+        if (!timer.backoff()) {
+            abort(Constants.ERR_UNDEFINED, "Transfer timed out");
+            return;
+        }
+        acknowledge();
+        inWindow = 0;
+        ackRepeated = true;
+        arm();
+    }
+
+    /**
+     * Sends the ACK held back for the rate limits.
+     *
+     * @throws IOException If an IO error occurs.
+     */
+    @Override
+    protected void resumed() throws IOException {
+        acknowledge();
+        ackedAt = System.nanoTime();
+        ackRepeated = false;
+        arm();
+    }
+
+    /**
+     * Starts reading again once the disk has made room, on the loop.
+     */
+    private void roomMade() {
+        if (isClosed() || committing) {
+            return;
+        }
+        interest(SelectionKey.OP_READ);
+        try {
+            onReadable();
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    @Override
+    public void failed(IOException e) {
+        Log.shared().error("Error writing to file", e.getMessage());
+        short code = BlockWriter.errorCode(e);
+        abort(code, code == Constants.ERR_DISK_FULL ? "Disk full" : "Error writing file");
+    }
+
+    /**
+     * Hands the file to the group commit, then sends the final ACK back on the loop once
+     * the file is durable and in place. The session ignores the channel meanwhile.
+     */
+    private void commit() {
+        committing = true;
+        disarm();
+        interest(0);
+        writer.commitAsync().whenComplete((ignored, failure) -> loop.execute(() -> finish(failure)));
+    }
+
+    /**
+     * Sends the final ACK, or an ERROR if the commit failed, and closes the session.
+     *
+     * @param failure The exception from the commit, or null if it succeeded.
+     */
+    private void finish(Throwable failure) {
+        if (failure instanceof CompletionException && failure.getCause() != null) {
+            failure = failure.getCause();
+        }
+        if (failure != null) {
+            failed(failure instanceof IOException ? (IOException) failure : new IOException(failure));
+            return;
+        }
+        try {
+            access.setOutcome("ok");
+            sendAck(BlockSequence.toWire(blockNum, opts.getRollover()));
+        } catch (IOException ignored) {
+            // The file is in place; a lost final ACK is the client's to retry
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Acknowledges the last block received in order. Before any data has arrived this is
+     * the reply to the request itself, which is the OACK when options were accepted.
+     *
+     * @throws IOException If an IO error occurs.
+     */
+    private void acknowledge() throws IOException {
+        if (!started && opts.hasAccepted()) {
+            sendOack(opts.getAccepted());
+        } else {
+            sendAck(started ? BlockSequence.toWire(blockNum - 1, opts.getRollover()) : 0);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (isClosed()) {
+            return;
+        }
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException ignored) {
+                // The temporary file may already be gone
+            }
+        }
+        if (data != null) {
+            pool.release(data);
+        }
+        super.close();
+    }
+}
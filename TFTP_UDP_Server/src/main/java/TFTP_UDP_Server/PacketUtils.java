@@ -4,108 +4,161 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
 
 public class PacketUtils {
     /**
-     * Extracts filename from the provided request data.
-     * The filename is located in the data starting from the 3rd byte and continues
-     * until a null byte is encountered, which is the end of the filename.
+     * Parses a RRQ or WRQ into its filename, mode and options (RFC 2347).
+     * The request is a sequence of null-terminated strings after the opcode:
+     * filename, mode, then option name and value pairs. Option names and the mode
+     * are case-insensitive and returned in lower case.
      *
      * @param data The byte array containing the request data.
-     * @return The extracted filename as a String.
+     * @param length The number of valid bytes in data.
+     * @return The parsed request.
      */
-    public static String getFilename(byte[] data) {
-        int len = 0;
-        byte[] name = new byte[Constants.LEN];
-        int dataLen = data.length;
+    public static TransferRequest parseRequest(byte[] data, int length) {
+        String[] fields = new String[length / 2 + 1];
+        int count = 0;
+        int start = 2;
 
-        for (int i = 2; i < dataLen; i++) {
+        for (int i = 2; i < length; i++) {
             if (data[i] == 0) {
-                int pos = i - 2;
-                len = pos;
-                break;
+                fields[count++] = new String(data, start, i - start, StandardCharsets.US_ASCII);
+                start = i + 1;
             }
-
-            byte d = data[i];
-            name[i - 2] = d;
         }
 
-        return new String(name, 0, len);
+        String filename = count > 0 ? fields[0] : "";
+        String mode = count > 1 ? fields[1].toLowerCase(Locale.ROOT) : "";
+
+        Map<String, String> options = new LinkedHashMap<>();
+        for (int i = 2; i + 1 < count; i += 2) {
+            if (!fields[i].isEmpty()) {
+                options.put(fields[i].toLowerCase(Locale.ROOT), fields[i + 1]);
+            }
+        }
+        return new TransferRequest(filename, mode, options);
     }
 
     /**
-     * Extracts block number from a given DatagramPacket.
-     * The block number is stored in bytes 2 and 3 of the packet data.
+     * Sends an option acknowledgment (OACK) listing the options the server accepted.
      *
-     * @param packet The packet containing the data.
-     * @return The block number as a short.
+     * @param accepted The accepted option names and values.
+     * @param addr The address of the client.
+     * @param port The port of the client.
+     * @param serverSocket The socket used to send the OACK.
+     * @throws IOException If an IO error occurs while sending the OACK.
      */
-    public static short blockNum(DatagramPacket packet) {
-        return (short) (((packet.getData()[2] & 0xFF) << 8) | (packet.getData()[3] & 0xFF));
+    public static void sendOack(Map<String, String> accepted, InetAddress addr, int port, DatagramSocket serverSocket) throws IOException {
+        int len = 2;
+        for (Map.Entry<String, String> opt : accepted.entrySet()) {
+            len += opt.getKey().length() + opt.getValue().length() + 2;
+        }
+
+        byte[] packet = new byte[len];
+        writeOack(packet, accepted);
+
+        DatagramPacket sendPacket = new DatagramPacket(packet, packet.length, addr, port);
+        serverSocket.send(sendPacket);
+        Metrics.shared().packetSent(packet.length);
+        Recorder.shared().sent(addr, port, serverSocket.getLocalPort(), packet, 0, packet.length);
     }
 
     /**
-     * Sends an acknowledgment packet to the address and port.
-     * If the init flag is true, it sends the initial ACK with block number 0.
-     * Otherwise, it sends an ACK with the specified block number.
+     * Writes an OACK listing the accepted options into a buffer.
      *
-     * @param init If true, send an initial ACK, otherwise send an ACK with specified block.
-     * @param addr The address of the client to send the ACK.
-     * @param port The port of the client to send the ACK.
-     * @param serverSocket The socket used to send the ACK.
-     * @param blockNum The block number to acknowledge.
-     * @throws IOException If an IO error occurs while sending the ACK.
+     * @param packet The buffer to write into. It must be large enough for every option.
+     * @param accepted The accepted option names and values.
+     * @return The length of the OACK.
      */
-    public static void sendAck(boolean init, InetAddress addr, int port, DatagramSocket serverSocket, short blockNum) throws IOException {
-        if (init) {
-            byte[] packet = createAck((short) 0);
-            DatagramPacket sendPacket = new DatagramPacket(packet, packet.length, addr, port);
-            serverSocket.send(sendPacket);
-        } else {
-            byte[] ackPacket = createAck(blockNum);
-            DatagramPacket sendPacket = new DatagramPacket(ackPacket, ackPacket.length, addr, port);
-            serverSocket.send(sendPacket);
+    public static int writeOack(byte[] packet, Map<String, String> accepted) {
+        packet[0] = 0;
+        packet[1] = Constants.OACK;
+
+        int pos = 2;
+        for (Map.Entry<String, String> opt : accepted.entrySet()) {
+            pos = putString(packet, pos, opt.getKey());
+            pos = putString(packet, pos, opt.getValue());
         }
+        return pos;
     }
 
     /**
-     * Waits for an acknowledgment packet from the client.
-     * The server checks if the block number in the received packet matches what is expected.
+     * Writes an ERROR packet into a buffer of at least MAX_LEN bytes. The message is
+     * written as ASCII and cut short if it does not fit.
      *
-     * @param blockNum The expected block number to be acknowledged.
-     * @param serverSocket The socket used to receive the ACK packet.
-     * @throws IOException If an IO error occurs while receiving the ACK.
+     * @param packet The buffer to write into.
+     * @param code The TFTP error code.
+     * @param msg The error message, or null for none.
+     * @return The length of the ERROR packet.
      */
-    public static void recvAck(short blockNum, DatagramSocket serverSocket) throws IOException {
-        byte[] buf = new byte[4];
+    public static int writeError(byte[] packet, short code, String msg) {
+        if (msg == null) {
+            msg = "";
+        }
 
-        DatagramPacket packet = new DatagramPacket(buf, buf.length);
-        serverSocket.receive(packet);
+        packet[0] = 0;
+        packet[1] = Constants.ERROR;
+        packet[2] = FileUtils.convertBlock(code, 2);
+        packet[3] = FileUtils.convertBlock(code, 3);
 
-        short recvBlock = blockNum(packet);
-        if (recvBlock != blockNum) {
-            System.out.println("Invalid Block!");
+        int len = Math.min(msg.length(), Constants.MAX_LEN - 5);
+        for (int i = 0; i < len; i++) {
+            packet[4 + i] = (byte) msg.charAt(i);
         }
+        packet[4 + len] = 0;
+        return len + 5;
+    }
+
+    /**
+     * Copies an ASCII string into a packet followed by a null byte.
+     *
+     * @param packet The packet being built.
+     * @param pos The position to write at.
+     * @param value The string to write.
+     * @return The position after the null byte.
+     */
+    private static int putString(byte[] packet, int pos, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(bytes, 0, packet, pos, bytes.length);
+        packet[pos + bytes.length] = 0;
+        return pos + bytes.length + 1;
+    }
+
+    /**
+     * Extracts block number from a given DatagramPacket.
+     * The block number is stored in bytes 2 and 3 of the packet data.
+     *
+     * @param packet The packet containing the data.
+     * @return The block number as a short.
+     */
+    public static short blockNum(DatagramPacket packet) {
+        return (short) (((packet.getData()[2] & 0xFF) << 8) | (packet.getData()[3] & 0xFF));
     }
 
     /**
-     * Creates and sends an error packet with the error message.
+     * Creates and sends an error packet with the error code and message.
      * The error message is included in the packet and terminated with a null byte.
      *
+     * @param code The TFTP error code.
      * @param msg The error message to be included in the ERR packet.
      * @param addr The address of the client to send the error packet.
      * @param port The client port to send the error packet.
      * @param serverSocket The socket used to send the packet.
      * @throws IOException If an IO error occurs while sending the error packet.
      */
-    public static void createErr(String msg, InetAddress addr, int port, DatagramSocket serverSocket) throws IOException {
+    public static void createErr(short code, String msg, InetAddress addr, int port, DatagramSocket serverSocket) throws IOException {
         int len = 4 + msg.length() + 1;
 
         byte[] msgBytes = msg.getBytes();
         byte[] packet = new byte[len];
         packet[1] = Constants.ERROR;
-        packet[2] = 0;
-        packet[3] = 1;
+        packet[2] = FileUtils.convertBlock(code, 2);
+        packet[3] = FileUtils.convertBlock(code, 3);
 
         packet[0] = 0;
         System.arraycopy(msgBytes, 0, packet, 4, msgBytes.length);
@@ -114,6 +167,9 @@ public class PacketUtils {
 
         DatagramPacket sendPacket = new DatagramPacket(packet, packet.length, addr, port);
         serverSocket.send(sendPacket);
+        Metrics.shared().packetSent(packet.length);
+        Recorder.shared().sent(addr, port, serverSocket.getLocalPort(), packet, 0, packet.length);
+        Metrics.shared().errorSent(code);
     }
 
     /**
@@ -131,20 +187,18 @@ public class PacketUtils {
     }
 
     /**
-     * Creates an acknowledgment packet with the block number.
+     * Writes an acknowledgment packet into the first 4 bytes of an existing buffer.
      * The ACK packet is sent to the client to acknowledge the receipt of data blocks.
      *
+     * @param packet The buffer to write the ACK into.
      * @param blockNum The block number to acknowledge.
-     * @return A byte array representing the ACK packet.
      */
-    public static byte[] createAck(short blockNum) {
-        byte[] packet = new byte[4];
+    public static void writeAck(byte[] packet, short blockNum) {
         packet[1] = Constants.ACK;
         packet[2] = FileUtils.convertBlock(blockNum, 2);
         packet[3] = FileUtils.convertBlock(blockNum, 3);
 
         packet[0] = 0;
-        return packet;
     }
 
 
@@ -1,61 +1,192 @@
 package TFTP_UDP_Server;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.SocketTimeoutException;
 
 public class ReadRequest implements RequestHandler {
     /**
      * Handles read request from client. This method reads the requested file in blocks,
-     * sends the blocks to the client, and waits for acknowledgments (ACK) for each block.
+     * sends them a window at a time (RFC 7440), after an OACK if the client asked for
+     * options, and resends from the last block the client has in order until the whole
+     * file is acknowledged. A client asking for multicast (RFC 2090) is handed to
+     * MulticastGroups instead.
      *
      * @param data The data received in the request. This should include the filename and any other information.
+     * @param length The length of the request.
      * @param addr The address of client requesting the file.
      * @param port The port on the client to send the response to.
      * @param serverSocket The DatagramSocket for sending and receiving packets.
      * @throws IOException If an I/O error occurs during the process, such as file reading errors.
      */
     @Override
-    public void readRequest(byte[] data, InetAddress addr, int port, DatagramSocket serverSocket) throws IOException {
-        String filename = PacketUtils.getFilename(data);
-        System.out.println("Received read request for file: " + filename);
-        try {
-            int off = 0;
-            boolean lastBlock = false;
-            short blockNo = 1;
-
-            while (!lastBlock) {
-                byte[] fileData = FileUtils.readFile(filename, off, Constants.LEN);
-                byte[] buf = new byte[Constants.MAX_LEN];
-                int bytesRead = fileData.length;
-
-                System.arraycopy(fileData, 0, buf, 4, bytesRead);
-                PacketUtils.createData(buf, blockNo);
-
-                DatagramPacket sendPacket = new DatagramPacket(buf, bytesRead + 4, addr, port);
-                serverSocket.send(sendPacket);
-
-                try {
-                    PacketUtils.recvAck(blockNo, serverSocket);
-                } catch (IOException e) {
-                    continue;
+    public void readRequest(byte[] data, int length, InetAddress addr, int port, DatagramSocket serverSocket) throws IOException {
+        TransferRequest request = PacketUtils.parseRequest(data, length);
+        String filename = request.getFilename();
+        TransferOptions opts = TransferOptions.negotiate(request.getOptions());
+        int blockSize = opts.getBlockSize();
+        int windowSize = opts.getWindowSize();
+
+        if (opts.isMulticast() && !request.isNetascii() && MulticastGroups.shared().join(filename, opts, addr, port)) {
+            return;
+        }
+
+        Log.Access access = Log.shared().access("RRQ", filename, addr, port);
+        Congestion.Session cc = Congestion.shared().session(addr);
+        try (SessionSocket io = new SessionSocket(serverSocket, addr, port, blockSize)) {
+            try (BlockReader reader = new BlockReader(filename, blockSize, io.data(), request.isNetascii(), windowSize)) {
+                RetransmitTimer timer = new RetransmitTimer();
+                Traffic.Flow flow = Traffic.shared().flow(addr);
+                opts.setTransferSize(reader.transferSize());
+                reader.prefetch(windowSize, true);
+
+                if (opts.hasAccepted() && !sendOack(opts, io, addr, port, timer)) {
+                    access.setOutcome("timeout");
+                    return;
                 }
 
-                blockNo++;
-                off += bytesRead;
+                int rollover = opts.getRollover();
+                long base = 1;
+                long sent = 1;
+                long lastBlock = -1;
+                // The window already resent for a repeated ACK
+                long gapResent = 0;
+
+                while (true) {
+                    long next = base;
+                    boolean retransmit = base < sent;
+                    while (next < base + windowSize && (lastBlock == -1 || next <= lastBlock)) {
+                        int bytesRead = reader.readBlock(next);
+                        Traffic.pause(Math.max(flow.send(bytesRead + 4), cc.pace(windowSize)));
+                        io.sendData(BlockSequence.toWire(next, rollover), bytesRead);
+
+                        if (bytesRead < blockSize) {
+                            lastBlock = next;
+                        }
+                        next++;
+                    }
+                    sent = Math.max(sent, next);
+                    long sentAt = System.nanoTime();
+
+                    long acked;
+                    try {
+                        io.setTimeout(timer.timeout());
+                        acked = awaitAck(io, base, next, rollover, windowSize > 1 && gapResent != base);
+                    } catch (SocketTimeoutException e) {
+                        cc.timedOut();
+                        if (!timer.backoff()) {
+                            io.sendError(Constants.ERR_UNDEFINED, "Transfer timed out");
+                            access.setOutcome("timeout");
+                            return;
+                        }
+                        continue;
+                    }
 
-                if (bytesRead < Constants.LEN) {
-                    lastBlock = true;
+                    if (acked >= base) {
+                        if (!retransmit) {
+                            long rtt = System.nanoTime() - sentAt;
+                            timer.sample(rtt);
+                            // An ACK for a gap may come after the client's own timeout, so only whole windows are timed
+                            if (acked == next - 1) {
+                                cc.sample(rtt);
+                            }
+                        }
+                        timer.reset();
+                        access.setBytes(Math.min(acked * blockSize, reader.size()));
+                    }
+                    // An ACK short of the window reports a gap
+                    if (acked < next - 1) {
+                        cc.lost();
+                    } else {
+                        cc.acked(next - base, windowSize);
+                    }
+
+                    if (acked == lastBlock) {
+                        access.setOutcome("ok");
+                        break;
+                    }
+                    if (acked == base - 1) {
+                        gapResent = base;
+                    }
+                    base = acked + 1;
+                }
+            } catch (IOException e) {
+                if (io.isAborted()) {
+                    access.setOutcome("client error");
+                } else {
+                    access.setOutcome(e.getMessage());
+                    io.sendError(BlockReader.errorCode(e), e.getMessage());
                 }
             }
-        } catch (IOException e) {
-            PacketUtils.createErr(e.getMessage(), addr, port, serverSocket);
+        } finally {
+            if (!access.isOk()) {
+                Recorder.shared().failed(addr, port);
+            }
+            cc.end(access);
+            access.end();
+        }
+    }
+
+    /**
+     * Sends the OACK and waits for the client to confirm it with ACK 0, resending the
+     * OACK each time the timer expires.
+     *
+     * @param opts The negotiated options.
+     * @param io The session's socket and packets.
+     * @param addr The address of the client.
+     * @param port The port of the client.
+     * @param timer The session's retransmission timer.
+     * @return true once ACK 0 has arrived, false if the client never answered.
+     * @throws IOException If an IO error occurs, or the client sent an ERROR.
+     */
+    private boolean sendOack(TransferOptions opts, SessionSocket io, InetAddress addr, int port, RetransmitTimer timer) throws IOException {
+        while (true) {
+            PacketUtils.sendOack(opts.getAccepted(), addr, port, io.socket());
+            long sentAt = System.nanoTime();
+            try {
+                io.setTimeout(timer.timeout());
+                awaitAck(io, 1, 1, opts.getRollover(), true);
+                timer.sample(System.nanoTime() - sentAt);
+                timer.reset();
+                return true;
+            } catch (SocketTimeoutException e) {
+                if (!timer.backoff()) {
+                    io.sendError(Constants.ERR_UNDEFINED, "Transfer timed out");
+                    return false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits for an ACK that falls inside the current window.
+     * The 16-bit block number on the wire is unwrapped to the sequence number nearest the
+     * last acknowledged block, and ACKs that do not fall between it and the last block sent
+     * are stale and skipped. A repeated ACK for the block before the window is only taken
+     * when repeats is set, once per window of more than one block: answering every repeat
+     * would double every packet from then on (the Sorcerer's Apprentice, RFC 1123 4.2.3.1).
+     *
+     * @param io The session's socket and packets.
+     * @param base The oldest unacknowledged block.
+     * @param next The block after the last one sent.
+     * @param rollover The block number that follows 65535 on the wire.
+     * @param repeats Whether a repeated ACK for the block before base is returned rather than skipped.
+     * @return The highest block the client acknowledged.
+     * @throws SocketTimeoutException If no ACK arrives before the socket timeout.
+     * @throws IOException If an IO error occurs, or the client sent an ERROR.
+     */
+    private long awaitAck(SessionSocket io, long base, long next, int rollover, boolean repeats) throws IOException {
+        while (true) {
+            long acked = BlockSequence.fromWire(io.recvAck(), base - 1, rollover);
+            if (acked >= (repeats ? base - 1 : base) && acked < next) {
+                return acked;
+            }
         }
     }
 
     @Override
-    public void writeRequest(byte[] data, InetAddress addr, int port, DatagramSocket serverSocket) {
+    public void writeRequest(byte[] data, int length, InetAddress addr, int port, DatagramSocket serverSocket) {
         // Not Implemented
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,95 @@
+package TFTP_UDP_Server;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+public class Receiver implements Runnable {
+    private final DatagramSocket socket;
+    private final SessionEngine[] groups;
+    private final BufferPool pool = BufferPool.shared();
+
+    /**
+     * Creates a receiver for a listening socket.
+     *
+     * @param socket The socket bound to the server port.
+     * @param groups The worker groups to hand sessions to. A client always lands in the same group.
+     */
+    public Receiver(DatagramSocket socket, SessionEngine[] groups) {
+        this.socket = socket;
+        this.groups = groups;
+    }
+
+    /**
+     * Receives requests until the socket fails.
+     * When packet received, it checks the opcode and hands read and write requests
+     * to a worker group, then goes straight back to receiving.
+     * The receive buffer is reused, and each request is copied into a pooled buffer for its session.
+     */
+    @Override
+    public void run() {
+        byte[] buf = new byte[Constants.MAX_LEN];
+        DatagramPacket recv = new DatagramPacket(buf, buf.length);
+        int localPort = socket.getLocalPort();
+        try {
+            while (true) {
+                recv.setLength(buf.length);
+                socket.receive(recv);
+                Metrics.shared().packetReceived(recv.getLength());
+                InetAddress addr = recv.getAddress();
+                int port = recv.getPort();
+                int length = recv.getLength();
+                Recorder.shared().received(addr, port, localPort, buf, 0, length);
+
+                byte op = length > 1 ? buf[1] : 0;
+                Log.shared().debug("Request from", recv.getSocketAddress(), op);
+
+                if (op == Constants.DATA || op == Constants.ACK) {
+                    PacketUtils.createErr(Constants.ERR_UNKNOWN_TID, "Unknown transfer ID", addr, port, socket);
+                } else if (op == 1 || op == 2) {
+                    InetSocketAddress client = (InetSocketAddress) recv.getSocketAddress();
+                    if (!SessionTable.shared().claim(client)) {
+                        continue;
+                    }
+                    if (!Traffic.shared().admit(addr)) {
+                        SessionTable.shared().release(client);
+                        if (Traffic.shared().rejects()) {
+                            PacketUtils.createErr(Constants.ERR_UNDEFINED, "Too many sessions", addr, port, socket);
+                        }
+                        continue;
+                    }
+
+                    byte[] request = pool.acquire(length);
+                    System.arraycopy(buf, 0, request, 0, length);
+
+                    TransferSession session = new TransferSession(request, length, addr, port);
+                    if (!group(addr, port).submit(session)) {
+                        session.release();
+                        PacketUtils.createErr(Constants.ERR_UNDEFINED, "Server busy", addr, port, socket);
+                    }
+                } else {
+                    Log.shared().debug("Invalid Opcode", op, recv.getSocketAddress());
+                }
+            }
+        } catch (IOException e) {
+            Log.shared().error("Receiver Error", e.getMessage());
+        }
+    }
+
+    /**
+     * Picks the worker group for a client by hashing its address and port.
+     *
+     * @param addr The client's address.
+     * @param port The client's port.
+     * @return The worker group.
+     */
+    private SessionEngine group(InetAddress addr, int port) {
+        if (groups.length == 1) {
+            return groups[0];
+        }
+        int hash = addr.hashCode() * 31 + port;
+        return groups[(hash & Integer.MAX_VALUE) % groups.length];
+    }
+}
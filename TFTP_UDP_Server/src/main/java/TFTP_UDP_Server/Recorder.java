@@ -0,0 +1,363 @@
+package TFTP_UDP_Server;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+public class Recorder implements RecorderMBean {
+    private static final Recorder SHARED = new Recorder(Constants.PCAP_PACKETS, Constants.PCAP_SNAPLEN);
+
+    // pcap with nanosecond timestamps, holding raw IPv4 or IPv6 packets with no link-layer header
+    private static final int PCAP_MAGIC_NANOS = 0xa1b23c4d;
+    private static final int LINKTYPE_RAW = 101;
+    private static final int IPV4_HEADER = 20;
+    private static final int IPV6_HEADER = 40;
+    private static final int UDP_HEADER = 8;
+    private static final int PROTO_UDP = 17;
+    private static final DateTimeFormatter FILE_TIME = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss.SSS").withZone(ZoneOffset.UTC);
+
+    // Ring of the last packets; a packet claims a slot by moving next and publishes it by setting the slot's seq
+    private final Slot[] ring;
+    private final int mask;
+    private final int snaplen;
+    private final AtomicLong next = new AtomicLong();
+    // Turns System.nanoTime into nanoseconds since the epoch, taken once from the wall clock
+    private final long epochOffset = System.currentTimeMillis() * 1_000_000L - System.nanoTime();
+    private final long failureGapNanos = Constants.PCAP_FAILURES * 1_000_000L;
+    private final AtomicLong lastFailureDump = new AtomicLong();
+    private final LongAdder dumps = new LongAdder();
+    // Writes the dumps of failed sessions, so a session's thread or event loop never waits for the disk
+    private final ExecutorService writer;
+
+    private Recorder(int packets, int snaplen) {
+        int size = packets > 0 ? Integer.highestOneBit(Math.max(2, packets - 1)) << 1 : 0;
+        this.ring = size > 0 ? new Slot[size] : null;
+        this.mask = size - 1;
+        this.snaplen = Math.max(4, snaplen);
+        for (int i = 0; i < size; i++) {
+            ring[i] = new Slot(this.snaplen);
+        }
+        this.writer = size > 0 && Constants.PCAP_FAILURES > 0 ? Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "tftp-pcap");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+        lastFailureDump.set(System.nanoTime() - failureGapNanos);
+    }
+
+    /**
+     * Gets the packet recorder shared by every receiver and session.
+     *
+     * @return The shared recorder.
+     */
+    public static Recorder shared() {
+        return SHARED;
+    }
+
+    /**
+     * Registers the recorder with the platform MBean server, so its packets can be dumped
+     * while the server runs. Does nothing unless -Dtftp.pcap is set.
+     */
+    public void start() {
+        if (ring == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("TFTP_UDP_Server:type=Recorder"));
+        } catch (JMException e) {
+            Log.shared().error("Packet recorder not registered with JMX", e.getMessage());
+        }
+        Log.shared().info("Recording the last packets", ring.length);
+    }
+
+    /**
+     * Records a packet sent to a client.
+     *
+     * @param addr The client's address.
+     * @param port The client's port.
+     * @param localPort The port it was sent from.
+     * @param buf The buffer holding the packet.
+     * @param off The position of the packet in buf.
+     * @param len The length of the packet.
+     */
+    public void sent(InetAddress addr, int port, int localPort, byte[] buf, int off, int len) {
+        record(true, addr, port, localPort, buf, off, len);
+    }
+
+    /**
+     * Records a packet received from a client.
+     *
+     * @param addr The client's address.
+     * @param port The client's port.
+     * @param localPort The port it arrived on.
+     * @param buf The buffer holding the packet.
+     * @param off The position of the packet in buf.
+     * @param len The length of the packet.
+     */
+    public void received(InetAddress addr, int port, int localPort, byte[] buf, int off, int len) {
+        record(false, addr, port, localPort, buf, off, len);
+    }
+
+    /**
+     * Keeps a packet in the ring, overwriting the oldest. The cost is one atomic increment
+     * and a copy of at most -Dtftp.pcap.snaplen bytes into a slot allocated up front, so
+     * recording can stay on in production; with -Dtftp.pcap unset it is a single check.
+     */
+    private void record(boolean sent, InetAddress addr, int port, int localPort, byte[] buf, int off, int len) {
+        if (ring == null) {
+            return;
+        }
+        long n = next.getAndIncrement();
+        Slot slot = ring[(int) (n & mask)];
+        slot.seq = -1;
+        slot.nanos = System.nanoTime();
+        slot.sent = sent;
+        slot.addr = addr;
+        slot.port = port;
+        slot.localPort = localPort;
+        slot.length = len;
+        slot.captured = Math.min(len, snaplen);
+        System.arraycopy(buf, off, slot.data, 0, slot.captured);
+        slot.seq = n;
+    }
+
+    /**
+     * Dumps a failed session's packets still in the ring to its own pcap file in
+     * -Dtftp.pcap.dir. At most one session is dumped every -Dtftp.pcap.failures
+     * milliseconds, so a burst of failures cannot fill the disk. The packets are picked out
+     * straight away, before newer ones overwrite them, and written on a background thread.
+     *
+     * @param addr The client's address.
+     * @param port The client's port.
+     */
+    public void failed(InetAddress addr, int port) {
+        if (writer == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        long last = lastFailureDump.get();
+        if (now - last < failureGapNanos || !lastFailureDump.compareAndSet(last, now)) {
+            return;
+        }
+        List<Packet> packets = snapshot(addr, port);
+        Path file = file(addr.getHostAddress().replaceAll("[^0-9A-Za-z.]", "_") + "-" + port);
+        writer.execute(() -> {
+            try {
+                write(file, packets);
+                Log.shared().info("Failed session dumped to", file);
+            } catch (IOException e) {
+                Log.shared().error("Packet dump failed", e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Dumps every packet still in the ring to a pcap file in -Dtftp.pcap.dir.
+     *
+     * @return The file written.
+     * @throws IOException If the file cannot be written.
+     */
+    @Override
+    public String dump() throws IOException {
+        if (ring == null) {
+            throw new IOException("Packet recording is off; start the server with -Dtftp.pcap");
+        }
+        Path file = file("all");
+        write(file, snapshot(null, 0));
+        return file.toAbsolutePath().toString();
+    }
+
+    @Override
+    public int getCapacity() {
+        return ring == null ? 0 : ring.length;
+    }
+
+    @Override
+    public int getSnapLength() {
+        return snaplen;
+    }
+
+    @Override
+    public long getRecorded() {
+        return next.get();
+    }
+
+    @Override
+    public long getDumps() {
+        return dumps.sum();
+    }
+
+    /**
+     * Copies the packets out of the ring, oldest first. A slot being written, or
+     * overwritten while it is copied, is skipped.
+     *
+     * @param addr Only packets to and from this client, or null for all.
+     * @param port The client's port.
+     * @return The packets.
+     */
+    private List<Packet> snapshot(InetAddress addr, int port) {
+        List<Packet> packets = new ArrayList<>();
+        long end = next.get();
+        for (long n = Math.max(0, end - ring.length); n < end; n++) {
+            Slot slot = ring[(int) (n & mask)];
+            if (slot.seq != n) {
+                continue;
+            }
+            if (addr != null && (slot.port != port || !addr.equals(slot.addr))) {
+                continue;
+            }
+            Packet packet = new Packet(slot);
+            if (slot.seq == n) {
+                packets.add(packet);
+            }
+        }
+        return packets;
+    }
+
+    private Path file(String what) {
+        String time = FILE_TIME.format(Instant.now());
+        return Paths.get(Constants.PCAP_DIR, "tftp-udp-" + time + "-" + what + ".pcap");
+    }
+
+    /**
+     * Writes packets as a pcap file. Each is given the IP and UDP headers it had on the
+     * wire. The server's side shows the unspecified address, as its sockets are bound to
+     * the wildcard, and the checksums are left out.
+     *
+     * @param file The file.
+     * @param packets The packets, oldest first.
+     * @throws IOException If the file cannot be written.
+     */
+    private void write(Path file, List<Packet> packets) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(PCAP_MAGIC_NANOS);
+            out.writeShort(2);
+            out.writeShort(4);
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeInt(65535);
+            out.writeInt(LINKTYPE_RAW);
+            for (Packet packet : packets) {
+                packet.writeTo(out);
+            }
+        }
+        dumps.increment();
+    }
+
+    // A ring slot, reused for every packet that lands in it
+    private static final class Slot {
+        // The number of the packet in the slot, -1 while it is being written
+        private volatile long seq = -1;
+        private final byte[] data;
+        private long nanos;
+        private boolean sent;
+        private InetAddress addr;
+        private int port;
+        private int localPort;
+        private int length;
+        private int captured;
+
+        private Slot(int snaplen) {
+            this.data = new byte[snaplen];
+        }
+    }
+
+    // A packet copied out of the ring for a dump
+    private final class Packet {
+        private final long nanos;
+        private final boolean sent;
+        private final InetAddress addr;
+        private final int port;
+        private final int localPort;
+        private final int length;
+        private final byte[] data;
+
+        private Packet(Slot slot) {
+            this.nanos = slot.nanos;
+            this.sent = slot.sent;
+            this.addr = slot.addr;
+            this.port = slot.port;
+            this.localPort = slot.localPort;
+            this.length = slot.length;
+            this.data = Arrays.copyOf(slot.data, slot.captured);
+        }
+
+        private void writeTo(DataOutputStream out) throws IOException {
+            byte[] peer = addr.getAddress();
+            byte[] local = new byte[peer.length];
+            byte[] src = sent ? local : peer;
+            byte[] dst = sent ? peer : local;
+            boolean v6 = addr instanceof Inet6Address;
+            int headers = (v6 ? IPV6_HEADER : IPV4_HEADER) + UDP_HEADER;
+
+            long time = epochOffset + nanos;
+            out.writeInt((int) (time / 1_000_000_000L));
+            out.writeInt((int) (time % 1_000_000_000L));
+            out.writeInt(headers + data.length);
+            out.writeInt(headers + length);
+
+            if (v6) {
+                out.writeInt(0x60000000);
+                out.writeShort(UDP_HEADER + length);
+                out.writeByte(PROTO_UDP);
+                out.writeByte(64);
+                out.write(src);
+                out.write(dst);
+            } else {
+                out.write(ipv4Header(src, dst, IPV4_HEADER + UDP_HEADER + length));
+            }
+            out.writeShort(sent ? localPort : port);
+            out.writeShort(sent ? port : localPort);
+            out.writeShort(UDP_HEADER + length);
+            out.writeShort(0);
+            out.write(data);
+        }
+    }
+
+    /**
+     * Builds an IPv4 header for a UDP datagram, with its checksum.
+     *
+     * @param src The source address.
+     * @param dst The destination address.
+     * @param total The length of the whole IP packet.
+     * @return The header.
+     */
+    private static byte[] ipv4Header(byte[] src, byte[] dst, int total) {
+        byte[] h = new byte[IPV4_HEADER];
+        h[0] = 0x45;
+        h[2] = (byte) (total >>> 8);
+        h[3] = (byte) total;
+        h[6] = 0x40;
+        h[8] = 64;
+        h[9] = PROTO_UDP;
+        System.arraycopy(src, 0, h, 12, 4);
+        System.arraycopy(dst, 0, h, 16, 4);
+        int sum = 0;
+        for (int i = 0; i < IPV4_HEADER; i += 2) {
+            sum += ((h[i] & 0xFF) << 8) | (h[i + 1] & 0xFF);
+        }
+        sum = (sum & 0xFFFF) + (sum >>> 16);
+        sum = ~((sum & 0xFFFF) + (sum >>> 16));
+        h[10] = (byte) (sum >>> 8);
+        h[11] = (byte) sum;
+        return h;
+    }
+}
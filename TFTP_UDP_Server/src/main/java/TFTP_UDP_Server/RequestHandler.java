@@ -5,6 +5,6 @@ import java.net.DatagramSocket;
 import java.net.InetAddress;
 
 public interface RequestHandler {
-    void readRequest(byte[] data, InetAddress addr, int port, DatagramSocket serverSocket) throws IOException;
-    void writeRequest(byte[] data, InetAddress addr, int port, DatagramSocket serverSocket) throws IOException;
+    void readRequest(byte[] data, int length, InetAddress addr, int port, DatagramSocket serverSocket) throws IOException;
+    void writeRequest(byte[] data, int length, InetAddress addr, int port, DatagramSocket serverSocket) throws IOException;
 }
@@ -0,0 +1,72 @@
+package TFTP_UDP_Server;
+
+public class RetransmitTimer {
+    private long srtt = -1;
+    private long rttvar;
+    private long rto = Constants.INITIAL_RTO * 1_000_000L;
+    private int retries;
+
+    /**
+     * Gets the time to wait for the peer before retransmitting, including any backoff.
+     *
+     * @return The timeout in milliseconds, suitable for setSoTimeout.
+     */
+    public int timeout() {
+        long max = Constants.MAX_RTO * 1_000_000L;
+        // A shift that would overflow the sign bit is past any maximum, so it saturates there
+        long backedOff = retries < Long.numberOfLeadingZeros(rto) - 1 ? Math.min(rto << retries, max) : max;
+        return (int) Math.max(1, backedOff / 1_000_000L);
+    }
+
+    /**
+     * Adds a round trip measurement to the smoothed RTT and RTT variance (RFC 6298).
+     * Measurements must only be taken for packets that were not retransmitted (Karn's algorithm).
+     *
+     * @param rttNanos The measured round trip time in nanoseconds.
+     */
+    public void sample(long rttNanos) {
+        Metrics.shared().rtt(rttNanos);
+        if (srtt < 0) {
+            srtt = rttNanos;
+            rttvar = rttNanos / 2;
+        } else {
+            rttvar = (3 * rttvar + Math.abs(srtt - rttNanos)) / 4;
+            srtt = (7 * srtt + rttNanos) / 8;
+        }
+
+        long min = Constants.MIN_RTO * 1_000_000L;
+        long max = Constants.MAX_RTO * 1_000_000L;
+        rto = Math.min(max, Math.max(min, srtt + 4 * rttvar));
+    }
+
+    /**
+     * Doubles the timeout after a retransmission.
+     *
+     * @return true if another retransmission is allowed, false once the retry limit is reached.
+     */
+    public boolean backoff() {
+        retries++;
+        if (retries > Constants.MAX_RETRIES) {
+            Metrics.shared().timeout();
+            return false;
+        }
+        Metrics.shared().retransmit();
+        return true;
+    }
+
+    /**
+     * Clears the backoff once the peer has made progress.
+     */
+    public void reset() {
+        retries = 0;
+    }
+
+    /**
+     * Gets the smoothed round trip time.
+     *
+     * @return The smoothed RTT in nanoseconds, or -1 before the first measurement.
+     */
+    public long getSrtt() {
+        return srtt;
+    }
+}
@@ -0,0 +1,58 @@
+package TFTP_UDP_Server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
+
+public class ReusePort {
+    // SO_REUSEPORT arrived in Java 9 while the server still builds for Java 8
+    private static final SocketOption<Boolean> OPTION = lookup();
+
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> lookup() {
+        try {
+            return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Checks whether several sockets can bind the same port, with the kernel spreading
+     * incoming datagrams across them by source address and port.
+     *
+     * @return true if this JVM and platform support SO_REUSEPORT on datagram sockets.
+     */
+    public static boolean isSupported() {
+        if (OPTION == null) {
+            return false;
+        }
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            return channel.supportedOptions().contains(OPTION);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Opens a channel bound to the port with SO_REUSEPORT set, so other channels opened
+     * the same way can share the port. Check isSupported first.
+     *
+     * @param port The port to bind.
+     * @return The bound channel, in blocking mode.
+     * @throws IOException If the channel cannot be opened or bound.
+     */
+    public static DatagramChannel bind(int port) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            channel.setOption(OPTION, true);
+            channel.bind(new InetSocketAddress(port));
+            return channel;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package TFTP_UDP_Server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SessionEngine {
+    private final ExecutorService workers;
+    private final AtomicInteger active = new AtomicInteger();
+    private final int limit;
+
+    /**
+     * Creates the engine with a fixed number of worker threads and a bounded queue
+     * of sessions waiting for a worker.
+     *
+     * @param threads The number of worker threads running transfers.
+     * @param pending The number of sessions that may wait for a free worker.
+     */
+    public SessionEngine(int threads, int pending) {
+        this.workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(pending), new WorkerFactory());
+        this.limit = 0;
+    }
+
+    /**
+     * Creates the engine on an executor that starts a thread per session, such as one
+     * running virtual threads. The executor never queues, so the number of sessions
+     * running at once is capped here instead.
+     *
+     * @param perTask The executor starting a thread for each session.
+     * @param limit The number of sessions that may run at once.
+     */
+    public SessionEngine(ExecutorService perTask, int limit) {
+        this.workers = perTask;
+        this.limit = limit;
+    }
+
+    /**
+     * Hands a session to the worker pool without blocking the caller.
+     *
+     * @param session The session to run.
+     * @return true if the session was accepted, false if the pool and its queue, or the session limit, are full.
+     */
+    public boolean submit(TransferSession session) {
+        if (limit == 0) {
+            try {
+                workers.execute(session);
+                return true;
+            } catch (RejectedExecutionException e) {
+                return false;
+            }
+        }
+
+        if (active.incrementAndGet() > limit) {
+            active.decrementAndGet();
+            return false;
+        }
+        try {
+            workers.execute(() -> {
+                try {
+                    session.run();
+                } finally {
+                    active.decrementAndGet();
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            active.decrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * Stops accepting sessions and lets running transfers finish.
+     */
+    public void shutdown() {
+        workers.shutdown();
+    }
+
+    // Names worker threads and keeps them from holding the JVM open.
+    private static class WorkerFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "tftp-session-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
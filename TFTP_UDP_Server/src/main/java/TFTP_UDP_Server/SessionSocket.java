@@ -0,0 +1,235 @@
+package TFTP_UDP_Server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+
+public class SessionSocket implements Closeable {
+    private final DatagramSocket socket;
+    private final InetAddress addr;
+    private final int port;
+    private final int blockSize;
+    private final BufferPool pool = BufferPool.shared();
+    private final Metrics metrics = Metrics.shared();
+    private final Recorder recorder = Recorder.shared();
+    private final int localPort;
+
+    private final byte[] data;
+    private final DatagramPacket dataPacket;
+    private final byte[] controlOut;
+    private final DatagramPacket controlOutPacket;
+    private final byte[] controlIn;
+    private final DatagramPacket controlInPacket;
+    // Set once the client has sent an ERROR, which must not be answered with another
+    private boolean aborted;
+
+    /**
+     * Wraps a session's socket with the packets it needs for the whole transfer.
+     * The buffers come from the shared pool and the DatagramPackets are created once,
+     * so sending DATA, ACK and ERROR packets and receiving ACKs does not allocate.
+     *
+     * @param socket The session's socket.
+     * @param addr The address of the client.
+     * @param port The port of the client.
+     * @param blockSize The negotiated block size.
+     */
+    public SessionSocket(DatagramSocket socket, InetAddress addr, int port, int blockSize) {
+        this.socket = socket;
+        this.addr = addr;
+        this.port = port;
+        this.blockSize = blockSize;
+        this.localPort = socket.getLocalPort();
+
+        this.data = pool.acquire(blockSize + 4);
+        this.dataPacket = new DatagramPacket(data, blockSize + 4, addr, port);
+        this.controlOut = pool.acquire(Constants.MAX_LEN);
+        this.controlOutPacket = new DatagramPacket(controlOut, 4, addr, port);
+        this.controlIn = pool.acquire(Constants.MAX_LEN);
+        this.controlInPacket = new DatagramPacket(controlIn, Constants.MAX_LEN);
+    }
+
+    /**
+     * Gets the DATA buffer. The header takes the first 4 bytes and the payload follows.
+     *
+     * @return The DATA buffer, at least blockSize + 4 bytes long.
+     */
+    public byte[] data() {
+        return data;
+    }
+
+    /**
+     * Gets the underlying socket.
+     *
+     * @return The session's socket.
+     */
+    public DatagramSocket socket() {
+        return socket;
+    }
+
+    /**
+     * Gets the address of the client.
+     *
+     * @return The client's address.
+     */
+    public InetAddress getAddress() {
+        return addr;
+    }
+
+    /**
+     * Gets the port of the client, its transfer ID.
+     *
+     * @return The client's port.
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Sends the payload currently in the DATA buffer as the given block.
+     *
+     * @param blockNum The block number.
+     * @param length The number of payload bytes.
+     * @throws IOException If an IO error occurs while sending.
+     */
+    public void sendData(short blockNum, int length) throws IOException {
+        PacketUtils.createData(data, blockNum);
+        dataPacket.setData(data, 0, length + 4);
+        dataPacket.setAddress(addr);
+        dataPacket.setPort(port);
+        socket.send(dataPacket);
+        metrics.packetSent(length + 4);
+        recorder.sent(addr, port, localPort, data, 0, length + 4);
+    }
+
+    /**
+     * Sends an ACK for the given block.
+     *
+     * @param blockNum The block number to acknowledge.
+     * @throws IOException If an IO error occurs while sending.
+     */
+    public void sendAck(short blockNum) throws IOException {
+        PacketUtils.writeAck(controlOut, blockNum);
+        controlOutPacket.setLength(4);
+        socket.send(controlOutPacket);
+        metrics.packetSent(4);
+        recorder.sent(addr, port, localPort, controlOut, 0, 4);
+    }
+
+    /**
+     * Sends an ERROR packet, written straight into the reused buffer.
+     *
+     * @param code The TFTP error code.
+     * @param msg The error message.
+     * @throws IOException If an IO error occurs while sending.
+     */
+    public void sendError(short code, String msg) throws IOException {
+        controlOutPacket.setLength(PacketUtils.writeError(controlOut, code, msg));
+        socket.send(controlOutPacket);
+        metrics.packetSent(controlOutPacket.getLength());
+        metrics.errorSent(code);
+        recorder.sent(addr, port, localPort, controlOut, 0, controlOutPacket.getLength());
+    }
+
+    /**
+     * Tells whether the transfer ended because the client sent an ERROR.
+     *
+     * @return True once recvAck has seen an ERROR from the client.
+     */
+    public boolean isAborted() {
+        return aborted;
+    }
+
+    /**
+     * Waits for an ACK from the client. Datagrams from any other address or port are
+     * answered with ERROR 5 and skipped, as are runts and anything but an ACK or ERROR.
+     *
+     * @return The block number carried by the ACK.
+     * @throws IOException If an IO error occurs, the socket times out, or the client sent an ERROR.
+     */
+    public short recvAck() throws IOException {
+        while (true) {
+            controlInPacket.setLength(Constants.MAX_LEN);
+            socket.receive(controlInPacket);
+            metrics.packetReceived(controlInPacket.getLength());
+            recorder.received(controlInPacket.getAddress(), controlInPacket.getPort(), localPort, controlIn, 0, controlInPacket.getLength());
+
+            if (!fromPeer(controlInPacket)) {
+                rejectStray(controlInPacket);
+                continue;
+            }
+            if (controlInPacket.getLength() < 4) {
+                continue;
+            }
+            if (controlIn[1] == Constants.ERROR) {
+                aborted = true;
+                throw new IOException("Transfer aborted by client");
+            }
+            if (controlIn[1] == Constants.ACK) {
+                return (short) (((controlIn[2] & 0xFF) << 8) | (controlIn[3] & 0xFF));
+            }
+        }
+    }
+
+    /**
+     * Receives a packet into the DATA buffer.
+     *
+     * @return The packet, whose length and source are those of the datagram received.
+     * @throws IOException If an IO error occurs or the socket times out.
+     */
+    public DatagramPacket receiveData() throws IOException {
+        dataPacket.setData(data, 0, blockSize + 4);
+        socket.receive(dataPacket);
+        metrics.packetReceived(dataPacket.getLength());
+        recorder.received(dataPacket.getAddress(), dataPacket.getPort(), localPort, data, 0, dataPacket.getLength());
+        return dataPacket;
+    }
+
+    /**
+     * Checks whether a received packet came from the client this session serves.
+     *
+     * @param packet The received packet.
+     * @return true if the packet's address and port match the client's.
+     */
+    public boolean fromPeer(DatagramPacket packet) {
+        return port == packet.getPort() && addr.equals(packet.getAddress());
+    }
+
+    /**
+     * Answers a datagram that reached this session's TID from another address or port
+     * with ERROR 5 (RFC 1350). The transfer itself carries on.
+     *
+     * @param packet The stray datagram.
+     * @throws IOException If an IO error occurs while sending.
+     */
+    public void rejectStray(DatagramPacket packet) throws IOException {
+        Log.shared().debug("Unknown transfer ID from", packet.getSocketAddress(), null);
+        int length = PacketUtils.writeError(controlOut, Constants.ERR_UNKNOWN_TID, "Unknown transfer ID");
+        socket.send(new DatagramPacket(controlOut, length, packet.getSocketAddress()));
+        metrics.packetSent(length);
+        metrics.errorSent(Constants.ERR_UNKNOWN_TID);
+        recorder.sent(packet.getAddress(), packet.getPort(), localPort, controlOut, 0, length);
+    }
+
+    /**
+     * Sets how long the next receive may block.
+     *
+     * @param millis The timeout in milliseconds.
+     * @throws IOException If the timeout cannot be set.
+     */
+    public void setTimeout(int millis) throws IOException {
+        socket.setSoTimeout(millis);
+    }
+
+    /**
+     * Returns the buffers to the pool. The socket itself belongs to the session and is
+     * closed by it.
+     */
+    @Override
+    public void close() {
+        pool.release(data);
+        pool.release(controlOut);
+        pool.release(controlIn);
+    }
+}
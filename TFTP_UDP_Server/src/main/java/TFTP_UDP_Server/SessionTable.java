@@ -0,0 +1,61 @@
+package TFTP_UDP_Server;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+public class SessionTable {
+    private static final SessionTable SHARED = new SessionTable();
+    // Held for a client whose session has been accepted but has no socket yet
+    private static final int NO_TID = 0;
+
+    // Client address and port to the server TID, the local port of the session serving it
+    private final ConcurrentMap<InetSocketAddress, Integer> sessions = new ConcurrentHashMap<>();
+
+    /**
+     * Gets the table shared by every receiver and engine.
+     *
+     * @return The shared table.
+     */
+    public static SessionTable shared() {
+        return SHARED;
+    }
+
+    /**
+     * Claims the client's address and port for a new session. A client keeps its TID for
+     * the whole transfer (RFC 1350), so a request from an address and port that already
+     * has a session is a retransmission of the request that started it. It is dropped
+     * rather than starting a second transfer; the running session answers it by
+     * retransmitting its own first packet.
+     *
+     * @param client The client's address and port.
+     * @return true if the session may start, false if the request is a duplicate.
+     */
+    public boolean claim(InetSocketAddress client) {
+        if (sessions.putIfAbsent(client, NO_TID) == null) {
+            return true;
+        }
+        Metrics.shared().duplicateRequest();
+        Log.shared().debug("Duplicate request from", client, sessions.get(client));
+        return false;
+    }
+
+    /**
+     * Records the TID a session was given once its socket is open.
+     *
+     * @param client The client's address and port.
+     * @param tid The session's local port.
+     */
+    public void bind(InetSocketAddress client, int tid) {
+        sessions.replace(client, tid);
+    }
+
+    /**
+     * Frees the client's address and port when its session ends.
+     *
+     * @param client The client's address and port.
+     */
+    public void release(InetSocketAddress client) {
+        sessions.remove(client);
+    }
+}
@@ -1,63 +1,91 @@
 package TFTP_UDP_Server;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
 import java.net.DatagramSocket;
-import java.net.InetAddress;
+import java.util.concurrent.ExecutorService;
 
 public class TFTPServer {
-    private DatagramSocket socket;
+    private final Receiver[] receivers;
 
     /**
      * Constructor initialises the DatagramSocket to listen on the port defined in Constants.
      * The server socket is created, allowing the server to receive UDP packet.
+     * With -Dtftp.listeners=N the port is read by N receivers, each bound with SO_REUSEPORT
+     * and feeding its own worker group, so request intake is spread across cores.
+     * Where SO_REUSEPORT is not available, one receiver spreads requests over N worker groups.
      *
      * @throws IOException if socket cannot be created cannot be bound to the port.
      */
     public TFTPServer() throws IOException {
-        this.socket = new DatagramSocket(Constants.PORT);
+        int shards = Math.max(1, Constants.LISTENERS);
+
+        if (shards == 1) {
+            receivers = new Receiver[] {new Receiver(new DatagramSocket(Constants.PORT), new SessionEngine[] {createEngine(1)})};
+        } else if (ReusePort.isSupported()) {
+            receivers = new Receiver[shards];
+            for (int i = 0; i < shards; i++) {
+                DatagramSocket socket = ReusePort.bind(Constants.PORT).socket();
+                receivers[i] = new Receiver(socket, new SessionEngine[] {createEngine(shards)});
+            }
+        } else {
+            Log.shared().info("SO_REUSEPORT not supported, using one receiver for worker groups", shards);
+            SessionEngine[] groups = new SessionEngine[shards];
+            for (int i = 0; i < shards; i++) {
+                groups[i] = createEngine(shards);
+            }
+            receivers = new Receiver[] {new Receiver(new DatagramSocket(Constants.PORT), groups)};
+        }
     }
 
     /**
-     * Starts server, always running to listen for incoming requests.
-     * When packet received, it checks the opcode and processes the request.
-     * It handles read and write requests from the client.
+     * Creates a worker group with its share of the worker threads and queue. With
+     * -Dtftp.threads=virtual each session runs on its own virtual thread, so blocking
+     * transfers no longer need a pooled platform thread each. On a JVM without virtual
+     * threads the fixed worker pool is used instead.
      *
-     * @throws IOException if an error occurs while receiving packets or processing requests.
+     * @param shares The number of groups the workers are split between.
+     * @return The session engine for the group.
      */
-    public void start() throws IOException {
-        System.out.println("TFTP UDP Server Started!");
-        while (true) {
-            byte[] buf = new byte[Constants.MAX_LEN];
-            DatagramPacket recv = new DatagramPacket(buf, buf.length);
-            socket.receive(recv);
-            InetAddress addr = recv.getAddress();
-            int port = recv.getPort();
-            byte[] data = recv.getData();
-
-            System.out.println("Connection Established: " + addr);
-            System.out.println("Port: " + port);
-
-            byte op = data[1];
-
-            if (op == 1) {
-                new ReadRequest().readRequest(data, addr, port, socket);
-            } else if (op == 2) {
-                new WriteRequest().writeRequest(data, addr, port, socket);
-            } else {
-                System.out.println("Invalid Opcode: " + op);
+    private static SessionEngine createEngine(int shares) {
+        if ("virtual".equals(Constants.THREADS)) {
+            ExecutorService virtual = VirtualThreads.newPerTaskExecutor();
+            if (virtual != null) {
+                return new SessionEngine(virtual, Math.max(1, Constants.MAX_SESSIONS / shares));
             }
+            Log.shared().info("Virtual threads need Java 21, using platform threads");
         }
+        return new SessionEngine(Math.max(1, Constants.WORKER_THREADS / shares), Math.max(1, Constants.MAX_PENDING / shares));
+    }
+
+    /**
+     * Starts server, always running to listen for incoming requests.
+     * Every receiver but the first gets its own thread; the first runs on the caller's.
+     */
+    public void start() {
+        Log.shared().info("TFTP UDP Server Started!");
+        for (int i = 1; i < receivers.length; i++) {
+            new Thread(receivers[i], "tftp-receiver-" + i).start();
+        }
+        receivers[0].run();
     }
 
     /**
      * Main method that starts the server.
      * This method initialises the server and calls start method to start receiving requests.
+     * With -Dtftp.engine=nio the selector engine serves the port instead of the thread pool.
      *
      * @param args command-line arguments - not used.
      * @throws IOException if there is an error while starting/init the server or receiving requests.
      */
     public static void main(String[] args) throws IOException {
+        Log.shared().start();
+        Metrics.shared().start();
+        Traffic.shared().start();
+        Recorder.shared().start();
+        if ("nio".equals(Constants.ENGINE)) {
+            new NioEngine(Constants.EVENT_LOOPS, Constants.MAX_SESSIONS).start();
+            return;
+        }
         TFTPServer server = new TFTPServer();
         server.start();
     }
@@ -0,0 +1,76 @@
+package TFTP_UDP_Server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TokenBucket {
+    // When the bucket would be full again if nothing more were taken, in System.nanoTime
+    private final AtomicLong refilledAt = new AtomicLong(System.nanoTime());
+    private volatile long rate;
+    private volatile long burst;
+
+    /**
+     * Creates a bucket that refills at a rate and holds up to a burst.
+     *
+     * @param rate The rate in bytes per second, or 0 for no limit.
+     * @param burst The bytes that may go at once after the bucket has been idle.
+     */
+    public TokenBucket(long rate, long burst) {
+        this.rate = rate;
+        this.burst = burst;
+    }
+
+    /**
+     * Takes tokens for a number of bytes and says how long to wait before sending them.
+     * The tokens are always taken, so the bucket can go into debt: a caller that is told
+     * to wait has already reserved its slot, and the next caller is scheduled after it.
+     * Callers are therefore served in the order they asked, and sessions sharing a
+     * bucket take turns packet by packet instead of racing for it. This is the generic
+     * cell rate algorithm, one compare-and-set per call and no lock.
+     *
+     * @param bytes The bytes about to be sent or acknowledged.
+     * @return The nanoseconds to wait first, 0 if they may go now.
+     */
+    public long reserve(long bytes) {
+        long r = rate;
+        if (r <= 0) {
+            return 0;
+        }
+        long cost = (long) (bytes * 1e9 / r);
+        long tolerance = (long) (burst * 1e9 / r);
+        long now = System.nanoTime();
+        while (true) {
+            long current = refilledAt.get();
+            long next = Math.max(current, now) + cost;
+            if (refilledAt.compareAndSet(current, next)) {
+                return Math.max(0, next - now - tolerance);
+            }
+        }
+    }
+
+    /**
+     * Gets the refill rate.
+     *
+     * @return The rate in bytes per second, or 0 for no limit.
+     */
+    public long getRate() {
+        return rate;
+    }
+
+    /**
+     * Changes the refill rate. Tokens already reserved are not repriced.
+     *
+     * @param rate The rate in bytes per second, or 0 for no limit.
+     */
+    public void setRate(long rate) {
+        this.rate = rate;
+    }
+
+    /**
+     * Changes the burst the bucket holds.
+     *
+     * @param burst The burst in bytes.
+     */
+    public void setBurst(long burst) {
+        this.burst = burst;
+    }
+}
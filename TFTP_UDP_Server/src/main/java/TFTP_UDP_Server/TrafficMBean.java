@@ -0,0 +1,40 @@
+package TFTP_UDP_Server;
+
+// What JMX sees of Traffic, registered as TFTP_UDP_Server:type=Traffic; every limit can be changed while running
+public interface TrafficMBean {
+    long getGlobalRate();
+
+    void setGlobalRate(long bytesPerSecond);
+
+    long getClientRate();
+
+    void setClientRate(long bytesPerSecond);
+
+    long getSubnetRate();
+
+    void setSubnetRate(long bytesPerSecond);
+
+    long getBurst();
+
+    void setBurst(long bytes);
+
+    int getMaxSessions();
+
+    void setMaxSessions(int sessions);
+
+    int getMaxSessionsPerClient();
+
+    void setMaxSessionsPerClient(int sessions);
+
+    int getMaxSessionsPerSubnet();
+
+    void setMaxSessionsPerSubnet(int sessions);
+
+    String getPolicy();
+
+    void setPolicy(String policy);
+
+    int getAdmittedSessions();
+
+    long getRefused();
+}
@@ -0,0 +1,139 @@
+package TFTP_UDP_Server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class TransferOptions {
+    private int blockSize = Constants.LEN;
+    private int windowSize = 1;
+    private int rollover = Constants.ROLLOVER;
+    private boolean multicast;
+    private final Map<String, String> accepted = new LinkedHashMap<>();
+
+    /**
+     * Negotiates the options requested by a client (RFC 2347).
+     * Options the server does not support, or whose values are malformed, are left
+     * out of the reply, which the client takes as the default.
+     *
+     * @param requested The options from the RRQ or WRQ.
+     * @return The negotiated options for the session.
+     */
+    public static TransferOptions negotiate(Map<String, String> requested) {
+        TransferOptions opts = new TransferOptions();
+
+        long size = parse(requested.get(Constants.OPT_BLKSIZE));
+        if (size >= Constants.MIN_BLKSIZE) {
+            opts.blockSize = (int) Math.min(size, Constants.MAX_BLKSIZE);
+            opts.accepted.put(Constants.OPT_BLKSIZE, Integer.toString(opts.blockSize));
+        }
+
+        long window = parse(requested.get(Constants.OPT_WINDOWSIZE));
+        if (window >= 1) {
+            opts.windowSize = (int) Math.min(window, Constants.MAX_WINDOWSIZE);
+            opts.accepted.put(Constants.OPT_WINDOWSIZE, Integer.toString(opts.windowSize));
+        }
+
+        long rollover = parse(requested.get(Constants.OPT_ROLLOVER));
+        if (rollover == 0 || rollover == 1) {
+            opts.rollover = (int) rollover;
+            opts.accepted.put(Constants.OPT_ROLLOVER, Long.toString(rollover));
+        }
+
+        // A WRQ's tsize is echoed; an RRQ sends 0 and gets the file size from setTransferSize
+        long tsize = parse(requested.get(Constants.OPT_TSIZE));
+        if (tsize >= 0) {
+            opts.accepted.put(Constants.OPT_TSIZE, Long.toString(tsize));
+        }
+
+        // The multicast value differs per client, so it is added to the OACK by the group transfer
+        opts.multicast = Constants.MULTICAST && requested.containsKey(Constants.OPT_MULTICAST);
+        return opts;
+    }
+
+    /**
+     * Parses a numeric option value.
+     *
+     * @param value The value sent by the client, or null if the option was not sent.
+     * @return The parsed value, or -1 if the option is missing or malformed.
+     */
+    private static long parse(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Puts the size of the file being read into the OACK, if the client asked for it
+     * with tsize (RFC 2349), so it can check for room and preallocate before the transfer.
+     *
+     * @param size The size of the file in bytes, or -1 if it is not known up front, which
+     *             leaves tsize out of the OACK.
+     */
+    public void setTransferSize(long size) {
+        if (size < 0) {
+            accepted.remove(Constants.OPT_TSIZE);
+        } else if (accepted.containsKey(Constants.OPT_TSIZE)) {
+            accepted.put(Constants.OPT_TSIZE, Long.toString(size));
+        }
+    }
+
+    /**
+     * Gets the number of data bytes carried by each DATA packet.
+     *
+     * @return The negotiated block size.
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Gets the number of DATA packets the sender may have in flight before it needs an ACK.
+     *
+     * @return The negotiated window size, 1 for lock-step transfers.
+     */
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    /**
+     * Gets the block number that follows 65535 on the wire. Blocks are counted with 64-bit
+     * sequence numbers, see BlockSequence.
+     *
+     * @return 0 or 1, as asked for by the client or configured with -Dtftp.rollover.
+     */
+    public int getRollover() {
+        return rollover;
+    }
+
+    /**
+     * Checks whether the client asked to receive the file by multicast (RFC 2090).
+     *
+     * @return true if the multicast option was sent and the server allows it.
+     */
+    public boolean isMulticast() {
+        return multicast;
+    }
+
+    /**
+     * Gets the options to acknowledge in the OACK.
+     *
+     * @return The accepted options, in the fixed order negotiate checks them: blksize, windowsize, rollover, tsize.
+     */
+    public Map<String, String> getAccepted() {
+        return accepted;
+    }
+
+    /**
+     * Checks whether an OACK has to be sent in place of the usual first packet.
+     *
+     * @return true if any option was accepted.
+     */
+    public boolean hasAccepted() {
+        return !accepted.isEmpty();
+    }
+}
@@ -0,0 +1,58 @@
+package TFTP_UDP_Server;
+
+import java.util.Map;
+
+public class TransferRequest {
+    private final String filename;
+    private final String mode;
+    private final Map<String, String> options;
+
+    /**
+     * Constructs a parsed RRQ or WRQ.
+     *
+     * @param filename The requested filename.
+     * @param mode The transfer mode, lower case.
+     * @param options The options appended to the request, keyed by lower case name.
+     */
+    public TransferRequest(String filename, String mode, Map<String, String> options) {
+        this.filename = filename;
+        this.mode = mode;
+        this.options = options;
+    }
+
+    /**
+     * Gets the requested filename.
+     *
+     * @return The filename.
+     */
+    public String getFilename() {
+        return filename;
+    }
+
+    /**
+     * Gets the transfer mode, such as "octet" or "netascii".
+     *
+     * @return The mode, or an empty string if the client did not send one.
+     */
+    public String getMode() {
+        return mode;
+    }
+
+    /**
+     * Checks whether the file is sent as netascii, with line ends translated, rather than as it is.
+     *
+     * @return true for the netascii mode.
+     */
+    public boolean isNetascii() {
+        return Constants.MODE_NETASCII.equals(mode);
+    }
+
+    /**
+     * Gets the options the client asked for.
+     *
+     * @return The requested options, keyed by lower case name.
+     */
+    public Map<String, String> getOptions() {
+        return options;
+    }
+}
@@ -0,0 +1,65 @@
+package TFTP_UDP_Server;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+public class TransferSession implements Runnable {
+    private final byte[] request;
+    private final int length;
+    private final InetAddress addr;
+    private final int port;
+
+    /**
+     * Creates a session for a single RRQ or WRQ received on the listening socket.
+     *
+     * @param request The request packet, copied out of the listener's receive buffer into a pooled buffer.
+     * @param length The length of the request.
+     * @param addr The address of the client.
+     * @param port The port of the client.
+     */
+    public TransferSession(byte[] request, int length, InetAddress addr, int port) {
+        this.request = request;
+        this.length = length;
+        this.addr = addr;
+        this.port = port;
+    }
+
+    /**
+     * Runs the transfer on its own socket bound to an ephemeral port.
+     * The ephemeral port is the server's transfer ID (RFC 1350), so every packet of
+     * the transfer is exchanged away from the listening socket.
+     * The request buffer goes back to the pool when the session ends.
+     */
+    @Override
+    public void run() {
+        long startedAt = Metrics.shared().sessionStarted();
+        try (DatagramSocket socket = new DatagramSocket()) {
+            SessionTable.shared().bind(new InetSocketAddress(addr, port), socket.getLocalPort());
+            byte op = request[1];
+
+            if (op == 1) {
+                new ReadRequest().readRequest(request, length, addr, port, socket);
+            } else if (op == 2) {
+                new WriteRequest().writeRequest(request, length, addr, port, socket);
+            }
+        } catch (IOException e) {
+            Log.shared().error("Session Error", e.getMessage());
+        } finally {
+            Metrics.shared().sessionEnded(startedAt);
+            release();
+        }
+    }
+
+    /**
+     * Returns the request buffer to the pool and frees the client's entry in the session
+     * table and its admission. Called when the session ends, or by the listener if the
+     * session was never started.
+     */
+    public void release() {
+        BufferPool.shared().release(request);
+        SessionTable.shared().release(new InetSocketAddress(addr, port));
+        Traffic.shared().release(addr);
+    }
+}
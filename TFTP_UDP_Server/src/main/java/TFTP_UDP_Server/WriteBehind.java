@@ -0,0 +1,225 @@
+package TFTP_UDP_Server;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class WriteBehind {
+    private static final ExecutorService DISK = createExecutor();
+
+    private final Sink sink;
+    private final Metrics metrics = Metrics.shared();
+    // Chunks waiting to be filled, and filled chunks waiting for the disk, in block order
+    private final BlockingQueue<Chunk> free;
+    private final Queue<Chunk> filled = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final Runnable drain = this::drain;
+    // Run once by the disk thread when a chunk is freed, for a session that found none
+    private final AtomicReference<Runnable> onRoom = new AtomicReference<>();
+    // The first write that failed; every later write and the flush report it
+    private volatile IOException failure;
+    private volatile CompletableFuture<Void> flushed;
+    private volatile boolean closed;
+
+    /**
+     * Creates the write-behind stage for one upload. Blocks are copied into one of depth
+     * chunks and written to the file in order on the shared disk threads, so the session
+     * can acknowledge and receive the next blocks while earlier ones are still being
+     * written. Once every chunk is waiting for the disk, the session waits for one too,
+     * which holds back its ACKs and so slows the client down to the disk's pace.
+     *
+     * @param sink Writes a block to the file. Only ever called by one thread at a time.
+     * @param blockSize The negotiated block size.
+     * @param depth The number of blocks that can wait for the disk.
+     */
+    public WriteBehind(Sink sink, int blockSize, int depth) {
+        this.sink = sink;
+        this.free = new ArrayBlockingQueue<>(depth);
+        for (int i = 0; i < depth; i++) {
+            free.add(new Chunk(blockSize));
+        }
+    }
+
+    /**
+     * Creates the disk threads shared by every upload.
+     *
+     * @return The executor.
+     */
+    private static ExecutorService createExecutor() {
+        AtomicInteger threadId = new AtomicInteger();
+        return Executors.newFixedThreadPool(Math.max(1, Constants.DISK_THREADS), task -> {
+            Thread thread = new Thread(task, "tftp-disk-" + threadId.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queues a block to be written, waiting for a free chunk if every one is queued.
+     *
+     * @param src The buffer holding the block.
+     * @param off The position of the block in src.
+     * @param len The length of the block.
+     * @throws IOException If an earlier block could not be written, such as the disk being full.
+     */
+    public void write(byte[] src, int off, int len) throws IOException {
+        check();
+        Chunk chunk = free.poll();
+        if (chunk == null) {
+            metrics.writeStall();
+            try {
+                chunk = free.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for the disk");
+            }
+            check();
+        }
+        System.arraycopy(src, off, chunk.data, 0, len);
+        chunk.length = len;
+        filled.add(chunk);
+        kick();
+    }
+
+    /**
+     * Checks whether a block can be queued without waiting. If not, onRoom is run on a disk
+     * thread once a chunk is freed or a write has failed; event loops use this to stop
+     * reading instead of blocking.
+     *
+     * @param onRoom Run once when there is room again.
+     * @return true if write will not wait.
+     */
+    public boolean hasRoom(Runnable onRoom) {
+        if (!free.isEmpty() || failure != null) {
+            return true;
+        }
+        this.onRoom.set(onRoom);
+        // A chunk freed before the callback was set would not have run it
+        if ((!free.isEmpty() || failure != null) && this.onRoom.compareAndSet(onRoom, null)) {
+            return true;
+        }
+        metrics.writeStall();
+        return false;
+    }
+
+    /**
+     * Waits until every queued block has been written.
+     *
+     * @throws IOException If a block could not be written.
+     */
+    public void flush() throws IOException {
+        try {
+            flushAsync().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the disk");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Lets the disk threads report when every block queued so far has been written. No
+     * more blocks may be queued afterwards.
+     *
+     * @return Completed once the queue is empty, or exceptionally if a block could not be written.
+     */
+    public CompletableFuture<Void> flushAsync() {
+        if (flushed == null) {
+            flushed = new CompletableFuture<>();
+            kick();
+        }
+        return flushed;
+    }
+
+    /**
+     * Drops the blocks still queued. A write already running finishes or fails on the closed file.
+     */
+    public void close() {
+        closed = true;
+    }
+
+    private void check() throws IOException {
+        IOException e = failure;
+        if (e != null) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    private void kick() {
+        if (draining.compareAndSet(false, true)) {
+            DISK.execute(drain);
+        }
+    }
+
+    /**
+     * Writes the queued blocks in order and hands their chunks back. After a failure the
+     * rest are dropped, and the session learns of it from its next write or the flush.
+     */
+    private void drain() {
+        try {
+            while (true) {
+                // Read before the queue, so an empty queue means every block before the flush is written
+                CompletableFuture<Void> done = flushed;
+                Chunk chunk = filled.poll();
+                if (chunk == null) {
+                    if (done != null) {
+                        if (failure != null) {
+                            done.completeExceptionally(failure);
+                        } else {
+                            done.complete(null);
+                        }
+                    }
+                    break;
+                }
+                if (failure == null && !closed) {
+                    try {
+                        sink.write(chunk.data, 0, chunk.length, chunk.view);
+                    } catch (IOException e) {
+                        failure = e;
+                    }
+                }
+                free.add(chunk);
+                Runnable callback = onRoom.getAndSet(null);
+                if (callback != null) {
+                    callback.run();
+                }
+            }
+        } finally {
+            draining.set(false);
+        }
+        // A block or the flush may have arrived after the last check
+        CompletableFuture<Void> done = flushed;
+        if (!filled.isEmpty() || (done != null && !done.isDone())) {
+            kick();
+        }
+    }
+
+    // Writes a block to the file
+    public interface Sink {
+        void write(byte[] buf, int off, int len, ByteBuffer view) throws IOException;
+    }
+
+    // A block waiting for the disk, with a buffer over it for the write
+    private static class Chunk {
+        private final byte[] data;
+        private final ByteBuffer view;
+        private int length;
+
+        private Chunk(int blockSize) {
+            this.data = new byte[blockSize];
+            this.view = ByteBuffer.wrap(data);
+        }
+    }
+}
@@ -1,67 +1,160 @@
 package TFTP_UDP_Server;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.SocketTimeoutException;
 
 public class WriteRequest implements RequestHandler {
     @Override
-    public void readRequest(byte[] data, InetAddress addr, int port, DatagramSocket serverSocket) throws IOException {
+    public void readRequest(byte[] data, int length, InetAddress addr, int port, DatagramSocket serverSocket) throws IOException {
         // Not Implemented
     }
 
     /**
-     * Handles write request from a client. Receives file data in blocks and accumulates,
-     * acknowledging each block after it's received. Once all blocks are received, writes the complete
-     * file to disk.
+     * Handles write request from a client. Confirms any accepted options with an OACK,
+     * receives the file a window at a time (RFC 7440) into a temporary file, and renames it
+     * into place once it is on disk, before the final ACK, so readers never see a partial file.
      *
      * @param data The data received in the request.
+     * @param length The length of the request.
      * @param addr The client's address.
      * @param port The client's port.
      * @param serverSocket The socket for sending and receiving packets.
      * @throws IOException If an IO error occurs.
      */
     @Override
-    public void writeRequest(byte[] data, InetAddress addr, int port, DatagramSocket serverSocket) throws IOException {
-        String filename = PacketUtils.getFilename(data);
-        System.out.println("Received write request for file: " + filename);
-        PacketUtils.sendAck(true, addr, port, serverSocket, (short) 0);
+    public void writeRequest(byte[] data, int length, InetAddress addr, int port, DatagramSocket serverSocket) throws IOException {
+        TransferRequest request = PacketUtils.parseRequest(data, length);
+        String filename = request.getFilename();
+        TransferOptions opts = TransferOptions.negotiate(request.getOptions());
+        int blockSize = opts.getBlockSize();
+        int windowSize = opts.getWindowSize();
+        // Room for a whole window, so a burst is not dropped by the socket
+        serverSocket.setReceiveBufferSize(Math.max(serverSocket.getReceiveBufferSize(), 2 * windowSize * (blockSize + 4)));
+        SessionSocket io = new SessionSocket(serverSocket, addr, port, blockSize);
+        Log.Access access = Log.shared().access("WRQ", filename, addr, port);
+        Congestion.Session cc = Congestion.shared().session(addr);
+        try (BlockWriter writer = new BlockWriter(filename, blockSize, io.data(), request.isNetascii())) {
+            writer.writeBehind(windowSize);
+            acknowledge(opts, false, 0, io);
 
-        try {
-            short blockNum = 1;
-            ByteArrayOutputStream accum = new ByteArrayOutputStream();
+            int rollover = opts.getRollover();
+            long blockNum = 1;
+            int inWindow = 0;
+            boolean gapAcked = false;
+            boolean started = false;
+            RetransmitTimer timer = new RetransmitTimer();
+            Traffic.Flow flow = Traffic.shared().flow(addr);
+            long ackedAt = System.nanoTime();
+            boolean ackRepeated = false;
 
             while (true) {
-                byte[] buffer = new byte[Constants.MAX_LEN];
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                serverSocket.receive(packet);
+                DatagramPacket packet;
+                try {
+                    io.setTimeout(timer.timeout());
+                    packet = io.receiveData();
+                } catch (SocketTimeoutException e) {
+                    cc.timedOut();
+                    if (!timer.backoff()) {
+                        io.sendError(Constants.ERR_UNDEFINED, "Transfer timed out");
+                        access.setOutcome("timeout");
+                        return;
+                    }
+                    acknowledge(opts, started, blockNum - 1, io);
+                    inWindow = 0;
+                    ackRepeated = true;
+                    continue;
+                }
 
-                if (addr.equals(packet.getAddress()) && port == packet.getPort()) {
+                if (!io.fromPeer(packet)) {
+                    io.rejectStray(packet);
+                    continue;
+                }
+                if (packet.getLength() < 4) {
+                    continue;
+                }
+                if (io.data()[1] == Constants.ERROR) {
+                    access.setOutcome("client error");
+                    return;
+                }
+                if (io.data()[1] == Constants.DATA) {
                     short recvBlock = PacketUtils.blockNum(packet);
-                    if (recvBlock == blockNum) {
+                    if (recvBlock == BlockSequence.toWire(blockNum, rollover)) {
                         int size = packet.getLength() - 4;
-                        byte[] blockData = new byte[size];
-                        System.arraycopy(packet.getData(), 4, blockData, 0, size);
 
-                        accum.write(blockData);
+                        // The first block after an ACK measures the round trip, unless the ACK was repeated
+                        if (inWindow == 0 && !ackRepeated) {
+                            long rtt = System.nanoTime() - ackedAt;
+                            timer.sample(rtt);
+                            cc.sample(rtt);
+                        }
+                        timer.reset();
+                        started = true;
 
-                        PacketUtils.sendAck(false, addr, port, serverSocket, blockNum);
-                        blockNum++;
+                        Traffic.pause(flow.receive(size + 4));
+                        writer.writeBlock(size);
+                        access.addBytes(size);
+                        inWindow++;
+                        gapAcked = false;
 
-                        if (size < Constants.LEN) {
-                            FileUtils.writeFile(filename, accum.toByteArray());
-                            System.out.println("File Transferred!");
+                        if (size < blockSize) {
+                            writer.commit();
+                            io.sendAck(BlockSequence.toWire(blockNum, rollover));
+                            access.setOutcome("ok");
                             break;
                         }
-                    } else {
-                        System.out.println("Block Number Incorrect!");
+
+                        if (inWindow == windowSize) {
+                            cc.acked(windowSize, windowSize);
+                            Traffic.pause(cc.holdAck(windowSize));
+                            io.sendAck(BlockSequence.toWire(blockNum, rollover));
+                            inWindow = 0;
+                            ackedAt = System.nanoTime();
+                            ackRepeated = false;
+                        }
+                        blockNum++;
+                    } else if (!gapAcked) {
+                        Log.shared().debug("Block Number Incorrect", recvBlock, io.getAddress());
+                        cc.lost();
+                        acknowledge(opts, started, blockNum - 1, io);
+                        inWindow = 0;
+                        ackRepeated = true;
+                        gapAcked = true;
                     }
                 }
             }
         } catch (IOException e) {
-            System.out.println("Error writing to file: " + e.getMessage());
+            Log.shared().error("Error writing to file", e.getMessage());
+            access.setOutcome(e.getMessage());
+            short code = BlockWriter.errorCode(e);
+            io.sendError(code, code == Constants.ERR_DISK_FULL ? "Disk full" : "Error writing file");
+        } finally {
+            io.close();
+            if (!access.isOk()) {
+                Recorder.shared().failed(addr, port);
+            }
+            cc.end(access);
+            access.end();
+        }
+    }
+
+    /**
+     * Acknowledges the last block received in order. Before any data has arrived this is
+     * the reply to the request itself, which is the OACK when options were accepted.
+     *
+     * @param opts The negotiated options.
+     * @param started Whether any data has been received yet.
+     * @param blockNum The last block received in order.
+     * @param io The session's socket and packets.
+     * @throws IOException If an IO error occurs.
+     */
+    private void acknowledge(TransferOptions opts, boolean started, long blockNum, SessionSocket io) throws IOException {
+        if (!started && opts.hasAccepted()) {
+            PacketUtils.sendOack(opts.getAccepted(), io.getAddress(), io.getPort(), io.socket());
+        } else {
+            io.sendAck(started ? BlockSequence.toWire(blockNum, opts.getRollover()) : 0);
         }
     }
-}
\ No newline at end of file
+}